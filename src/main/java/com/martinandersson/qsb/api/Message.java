@@ -1,11 +1,14 @@
 package com.martinandersson.qsb.api;
 
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.util.function.Supplier;
 
 /**
  * A message.<p>
  * 
- * Use {@link #get()} to get the message content.
+ * Use {@link #get()} to get the message content, or {@link #buffer()} to get
+ * the content as UTF-8 bytes.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
@@ -29,6 +32,34 @@ public interface Message extends Supplier<String>
         return -1;
     }
     
+    /**
+     * Returns how many times this message has been delivered, this delivery
+     * included.
+     * 
+     * @implSpec
+     * The default implementation return {@code 0}, meaning deliveries are not
+     * counted.
+     * 
+     * @return how many times this message has been delivered
+     */
+    default int deliveries() {
+        return 0;
+    }
+    
+    /**
+     * Returns the message priority.
+     * 
+     * @implSpec
+     * The default implementation return {@code 0}.
+     * 
+     * @return the message priority
+     * 
+     * @see QueueService#push(String, String, int)
+     */
+    default int priority() {
+        return 0;
+    }
+    
     /**
      * Returns the queue [name] this message belongs to.
      * 
@@ -43,4 +74,16 @@ public interface Message extends Supplier<String>
      */
     @Override
     public String get();
+    
+    /**
+     * Returns the message content as a read-only buffer of UTF-8 bytes.
+     * 
+     * @implSpec
+     * The default implementation encodes {@link #get()}.
+     * 
+     * @return the message content as a read-only buffer (never {@code null})
+     */
+    default ByteBuffer buffer() {
+        return ByteBuffer.wrap(get().getBytes(UTF_8)).asReadOnlyBuffer();
+    }
 }
\ No newline at end of file
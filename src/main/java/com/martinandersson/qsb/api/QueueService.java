@@ -1,6 +1,11 @@
 package com.martinandersson.qsb.api;
 
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * A queue service provide a "FIFO" structure for message storage and
@@ -20,6 +25,9 @@ import java.util.Arrays;
  * guarantee ordering and provide exactly-once delivery. These are details
  * specified by such implementation.<p>
  * 
+ * Strict ordering may be requested per message group, see {@link
+ * #pushGrouped(String, String, String)}.<p>
+ * 
  * A queue service must support messages that time out. A message that timed out
  * will be re-delivered to next consumer. All consumers must therefore invoke
  * {@link #complete(Message)} to mark the completion of message processing.<p>
@@ -36,6 +44,9 @@ public interface QueueService
      * 
      * @param queue    queue [name] (must not be {@code null})
      * @param message  message (must not be {@code null})
+     * 
+     * @throws IllegalStateException
+     *             if the queue is bounded and full (all push methods)
      */
     void push(String queue, String message);
     
@@ -70,6 +81,189 @@ public interface QueueService
         messages.forEach(m -> push(queue, m));
     }
     
+    /**
+     * Push specified UTF-8 encoded {@code message} into specified {@code
+     * queue}.<p>
+     * 
+     * The queue service may keep the array as is. It must not be modified
+     * after the push.
+     * 
+     * @implSpec
+     * The default implementation decodes the message and uses {@link
+     * #push(String, String)}.
+     * 
+     * @param queue    queue [name] (must not be {@code null})
+     * @param message  message (must not be {@code null})
+     * 
+     * @see Message#buffer()
+     */
+    default void push(String queue, byte[] message) {
+        push(queue, new String(message, UTF_8));
+    }
+    
+    /**
+     * Push the remaining UTF-8 encoded bytes of specified {@code message} into
+     * specified {@code queue}.<p>
+     * 
+     * The position of the buffer is not changed.
+     * 
+     * @implSpec
+     * The default implementation copies the bytes and uses {@link
+     * #push(String, byte[])}.
+     * 
+     * @param queue    queue [name] (must not be {@code null})
+     * @param message  message (must not be {@code null})
+     * 
+     * @see Message#buffer()
+     */
+    default void push(String queue, ByteBuffer message) {
+        final byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        push(queue, bytes);
+    }
+    
+    /**
+     * Push specified UTF-8 encoded {@code messages} into specified {@code
+     * queue}, in order, for as long as the queue has room.<p>
+     * 
+     * An implementation may push the messages as one batch, cheaper than one
+     * at a time. If the queue is bounded and becomes full, the rest of the
+     * messages are not pushed. The arrays must not be modified after the push.
+     * 
+     * @implSpec
+     * The default implementation uses {@link #push(String, byte[])}, until it
+     * throws {@code IllegalStateException}.
+     * 
+     * @param queue     queue [name] (must not be {@code null})
+     * @param messages  messages (must not be {@code null})
+     * 
+     * @return number of messages pushed
+     */
+    default int pushBatch(String queue, Iterable<byte[]> messages) {
+        int n = 0;
+        
+        for (byte[] m : messages) {
+            try {
+                push(queue, m);
+            }
+            catch (IllegalStateException e) {
+                break;
+            }
+            
+            ++n;
+        }
+        
+        return n;
+    }
+    
+    /**
+     * Push specified {@code message} into specified {@code queue}, but do not
+     * make the message visible to consumers until the specified {@code delay}
+     * has passed.<p>
+     * 
+     * A delay that is zero or negative is no delay at all.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param queue    queue [name] (must not be {@code null})
+     * @param message  message (must not be {@code null})
+     * @param delay    delay (must not be {@code null})
+     * 
+     * @throws UnsupportedOperationException if delayed messages are not supported
+     */
+    default void push(String queue, String message, Duration delay) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Push specified {@code message} into specified {@code queue}, but do not
+     * make the message visible to consumers until the specified point in time.
+     * 
+     * @implSpec
+     * The default implementation uses {@link #push(String, String, Duration)}.
+     * 
+     * @param queue    queue [name] (must not be {@code null})
+     * @param message  message (must not be {@code null})
+     * @param at       when the message is due (must not be {@code null})
+     * 
+     * @throws UnsupportedOperationException if delayed messages are not supported
+     */
+    default void push(String queue, String message, Instant at) {
+        push(queue, message, Duration.between(Instant.now(), at));
+    }
+    
+    /**
+     * Push specified {@code message} into specified {@code queue} with the
+     * specified {@code priority}.<p>
+     * 
+     * Priority 0 is the lowest and the default of all other push methods.
+     * Messages of a higher priority are delivered before messages of a lower
+     * priority. Messages of the same priority are delivered in FIFO order.
+     * Which priorities are supported is specified by the implementation.
+     * 
+     * @implSpec
+     * The default implementation ignores the priority and uses {@link
+     * #push(String, String)}.
+     * 
+     * @param queue     queue [name] (must not be {@code null})
+     * @param message   message (must not be {@code null})
+     * @param priority  message priority
+     * 
+     * @throws IllegalArgumentException if the priority is not supported
+     */
+    default void push(String queue, String message, int priority) {
+        push(queue, message);
+    }
+    
+    /**
+     * Push specified {@code message} into specified {@code queue} as a member
+     * of the specified message {@code group}.<p>
+     * 
+     * Messages of the same group are delivered in strict FIFO order and at most
+     * one message of a group is delivered at any given time. The next message
+     * of the group is not delivered until the previous one has been completed
+     * (or timed out, in which case it is re-delivered first). Messages of
+     * different groups, and messages without a group, are delivered in
+     * parallel.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param queue    queue [name] (must not be {@code null})
+     * @param group    message group (must not be {@code null})
+     * @param message  message (must not be {@code null})
+     * 
+     * @throws UnsupportedOperationException if message groups are not supported
+     */
+    default void pushGrouped(String queue, String group, String message) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Push specified {@code message} into specified {@code queue}, unless a
+     * message with the same deduplication {@code key} was pushed to the queue
+     * recently.<p>
+     * 
+     * This makes it safe for producers to retry a push. For how long, and how
+     * many, keys are remembered is specified by the implementation.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param queue    queue [name] (must not be {@code null})
+     * @param key      deduplication key (must not be {@code null})
+     * @param message  message (must not be {@code null})
+     * 
+     * @return {@code true} if the message was pushed, {@code false} if it was
+     *         dropped as a duplicate
+     * 
+     * @throws UnsupportedOperationException if deduplication is not supported
+     */
+    default boolean pushIdempotent(String queue, String key, String message) {
+        throw new UnsupportedOperationException();
+    }
+    
     /**
      * Poll head of specified {@code queue}.<p>
      * 
@@ -81,6 +275,49 @@ public interface QueueService
      */
     Message poll(String queue);
     
+    /**
+     * Poll head of specified {@code queue}, leasing the message for the
+     * specified duration instead of the default timeout of the queue service.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param queue  queue [name] (must not be {@code null})
+     * @param lease  for how long the message is leased (must not be {@code null})
+     * 
+     * @return a message, or {@code null} if the queue is empty
+     * 
+     * @throws IllegalArgumentException if {@code lease} is negative
+     * @throws UnsupportedOperationException if leases are not supported
+     */
+    default Message poll(String queue, Duration lease) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Extend the lease of specified {@code message}, which will then time out
+     * after the specified duration, counted from now.<p>
+     * 
+     * A consumer that needs more time to process a message may call this
+     * method repeatedly ("heartbeat"). A lease that has already expired can not
+     * be extended, the message may then already have been redelivered.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param message  message (must not be {@code null})
+     * @param lease    new lease length (must not be {@code null})
+     * 
+     * @return {@code true} if the lease was extended, {@code false} if the
+     *         lease had expired or the message has been completed
+     * 
+     * @throws IllegalArgumentException if {@code lease} is negative
+     * @throws UnsupportedOperationException if leases are not supported
+     */
+    default boolean extend(Message message, Duration lease) {
+        throw new UnsupportedOperationException();
+    }
+    
     /**
      * Complete specified {@code message}.<p>
      * 
@@ -93,4 +330,181 @@ public interface QueueService
      * @param message  message to remove (must not be {@code null})
      */
     void complete(Message message);
+    
+    /**
+     * Negatively acknowledge specified {@code message}.<p>
+     * 
+     * The lease is released and the message is made available for redelivery
+     * right away.
+     * 
+     * @implSpec
+     * The default implementation uses {@link #nack(Message, Duration)} with a
+     * zero backoff.
+     * 
+     * @param message  message (must not be {@code null})
+     * 
+     * @throws UnsupportedOperationException if nack is not supported
+     */
+    default void nack(Message message) {
+        nack(message, Duration.ZERO);
+    }
+    
+    /**
+     * Negatively acknowledge specified {@code message}.<p>
+     * 
+     * The lease is released and the message is made available for redelivery
+     * once the specified backoff has passed. A redelivery count as a delivery
+     * like any other. Nacking a message whose lease has already expired, or a
+     * message that has been completed, has no effect.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param message  message (must not be {@code null})
+     * @param backoff  redelivery backoff (must not be {@code null})
+     * 
+     * @throws IllegalArgumentException if {@code backoff} is negative
+     * @throws UnsupportedOperationException if nack is not supported
+     */
+    default void nack(Message message, Duration backoff) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Complete the message with the specified {@code id} from the specified
+     * {@code queue}.<p>
+     * 
+     * This is an alternative to {@link #complete(Message)} for clients that do
+     * not hold on to the message object. Only delivered messages can be
+     * completed. An unknown id, for example of a message already completed and
+     * removed, is ignored.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param queue  queue [name] (must not be {@code null})
+     * @param id     message id
+     * 
+     * @throws UnsupportedOperationException
+     *             if the implementation does not provide message ids
+     * 
+     * @see Message#id()
+     */
+    default void complete(String queue, long id) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Complete all messages with an id in the specified range.<p>
+     * 
+     * The range should only cover messages delivered to the caller. Ids in the
+     * range that are unknown, or not yet delivered, are ignored.
+     * 
+     * @implSpec
+     * The default implementation calls {@link #complete(String, long)} for
+     * each id in the range.
+     * 
+     * @param queue   queue [name] (must not be {@code null})
+     * @param fromId  first message id (inclusive)
+     * @param toId    last message id (exclusive)
+     * 
+     * @throws UnsupportedOperationException
+     *             if the implementation does not provide message ids
+     */
+    default void complete(String queue, long fromId, long toId) {
+        for (long id = fromId; id < toId; ++id) {
+            complete(queue, id);
+        }
+    }
+    
+    /**
+     * Complete all messages with an id equal to {@code baseId} plus the index
+     * of a set bit in the specified {@code offsets}.<p>
+     * 
+     * Ids that are unknown, or not yet delivered, are ignored.
+     * 
+     * @implSpec
+     * The default implementation calls {@link #complete(String, long)} for
+     * each set bit.
+     * 
+     * @param queue    queue [name] (must not be {@code null})
+     * @param baseId   message id of bit 0
+     * @param offsets  offsets from {@code baseId} (must not be {@code null})
+     * 
+     * @throws UnsupportedOperationException
+     *             if the implementation does not provide message ids
+     */
+    default void complete(String queue, long baseId, BitSet offsets) {
+        offsets.stream().forEach(i -> complete(queue, baseId + i));
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | ID-BASED API |
+     *  --------------
+     */
+    
+    /**
+     * Register specified {@code queue} and return an id that may be used
+     * instead of the queue name.<p>
+     * 
+     * Ids are dense, starting at 0 and assigned in order of registration.
+     * Registering the same queue twice return the same id. A registered queue
+     * is never removed by the queue service, even if it is empty.<p>
+     * 
+     * The id-based API is an optional optimization. Messages pushed using the
+     * id may be polled using the queue name and vice versa.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param queue  queue [name] (must not be {@code null})
+     * 
+     * @return the queue id
+     * 
+     * @throws UnsupportedOperationException if the id-based API is not supported
+     */
+    default int register(String queue) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Push specified {@code message} into the queue with the specified {@code
+     * id}.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param queue    queue id
+     * @param message  message (must not be {@code null})
+     * 
+     * @throws IllegalArgumentException if the queue id has not been registered
+     * @throws UnsupportedOperationException if the id-based API is not supported
+     * 
+     * @see #register(String)
+     */
+    default void push(int queue, String message) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Poll head of the queue with the specified {@code id}.
+     * 
+     * @implSpec
+     * The default implementation throws {@code UnsupportedOperationException}.
+     * 
+     * @param queue  queue id
+     * 
+     * @return a message, or {@code null} if the queue is empty
+     * 
+     * @throws IllegalArgumentException if the queue id has not been registered
+     * @throws UnsupportedOperationException if the id-based API is not supported
+     * 
+     * @see #register(String)
+     */
+    default Message poll(int queue) {
+        throw new UnsupportedOperationException();
+    }
 }
\ No newline at end of file
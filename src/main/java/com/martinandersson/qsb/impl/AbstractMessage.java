@@ -1,21 +1,46 @@
 package com.martinandersson.qsb.impl;
 
 import com.martinandersson.qsb.api.Message;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.time.Duration;
-import java.time.Instant;
 import static java.util.Objects.requireNonNull;
 
 /**
  * A {@link Message} implementation that provide state-management of a {@code
- * queue} and {@code content}.
+ * queue} and {@code content}.<p>
+ * 
+ * The content is either a {@code String} or a {@code byte[]} of UTF-8,
+ * depending on how the message was pushed. Either way, it is stored as is and
+ * converted only if asked for in the other form. The content may also be a
+ * {@link Payload} stored elsewhere, for example off-heap.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 public abstract class AbstractMessage implements Message
 {
-    private final String
-            queue,
-            content;
+    private final String queue;
+    
+    /** A {@code String}, a {@code byte[]} or a {@code Payload}. */
+    private final Object content;
+    
+    /**
+     * Set by {@code AbstractQS} before the message is made visible to other
+     * threads.
+     */
+    private long id = -1;
+    
+    /**
+     * Message group, or {@code null} if the message is not grouped. Set by
+     * {@code AbstractQS} before the message is made visible to other threads.
+     */
+    private String group;
+    
+    /**
+     * Set by {@code AbstractQS} before the message is made visible to other
+     * threads.
+     */
+    private int priority;
     
     
     
@@ -32,14 +57,157 @@ public abstract class AbstractMessage implements Message
         this.content = requireNonNull(content);
     }
     
+    /**
+     * Constructs a message.<p>
+     * 
+     * The array is not copied. It must not be modified after this point.
+     * 
+     * @param queue    queue
+     * @param content  message content, UTF-8 encoded
+     * 
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public AbstractMessage(String queue, byte[] content) {
+        this.queue   = requireNonNull(queue);
+        this.content = requireNonNull(content);
+    }
     
+    /**
+     * Constructs a message.<p>
+     * 
+     * The payload is released by {@code AbstractQS} when the message is
+     * evicted from its queue.
+     * 
+     * @param queue    queue
+     * @param content  message content, UTF-8 encoded
+     * 
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public AbstractMessage(String queue, Payload content) {
+        this.queue   = requireNonNull(queue);
+        this.content = requireNonNull(content);
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * The id is a sequence number, unique within the queue the message was
+     * pushed to.
+     */
+    @Override
+    public final long id() {
+        return id;
+    }
+    
+    final void id(long id) {
+        this.id = id;
+    }
+    
+    final String group() {
+        return group;
+    }
+    
+    final void group(String group) {
+        this.group = group;
+    }
     
     /**
      * {@inheritDoc}
      */
     @Override
+    public final int priority() {
+        return priority;
+    }
+    
+    final void priority(int priority) {
+        this.priority = priority;
+    }
+    
+    /**
+     * Returns the size of the message content, in bytes.<p>
+     * 
+     * This is an estimate of the heap used by the content; two bytes per char
+     * of a {@code String}, or the length of a {@code byte[]}. Object headers
+     * are not included. For a {@code Payload}, this is the payload length.
+     * 
+     * @return the size of the message content, in bytes
+     */
+    public final int bytes() {
+        if (content instanceof String) {
+            return ((String) content).length() << 1;
+        }
+        
+        return content instanceof byte[] ?
+                ((byte[]) content).length :
+                ((Payload) content).length();
+    }
+    
+    /**
+     * Returns the content as an array, or {@code null} if the content is a
+     * {@code String}.<p>
+     * 
+     * A {@code Payload} is copied.
+     * 
+     * @return the content as an array (may be {@code null})
+     */
+    final byte[] payload() {
+        if (content instanceof byte[]) {
+            return (byte[]) content;
+        }
+        
+        if (content instanceof Payload) {
+            ByteBuffer b = ((Payload) content).buffer();
+            byte[] bytes = new byte[b.remaining()];
+            b.get(bytes);
+            return bytes;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Release the content if stored as a {@code Payload}, otherwise noop.
+     */
+    final void release() {
+        if (content instanceof Payload) {
+            ((Payload) content).release();
+        }
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * Content pushed as bytes is decoded on each call.
+     */
+    @Override
     public final String get() {
-        return content;
+        if (content instanceof String) {
+            return (String) content;
+        }
+        
+        return content instanceof byte[] ?
+                new String((byte[]) content, UTF_8) :
+                UTF_8.decode(((Payload) content).buffer()).toString();
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * Content pushed as bytes is wrapped, not copied.
+     */
+    @Override
+    public final ByteBuffer buffer() {
+        if (content instanceof Payload) {
+            return ((Payload) content).buffer();
+        }
+        
+        final byte[] bytes = content instanceof String ?
+                ((String) content).getBytes(UTF_8) :
+                (byte[]) content;
+        
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
     }
     
     /**
@@ -52,37 +220,136 @@ public abstract class AbstractMessage implements Message
     
     
     
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * The count is incremented each time the message is successfully grabbed.
+     */
+    @Override
+    public abstract int deliveries();
+    
+    /**
+     * Set the delivery count of a recovered message, before the message is
+     * made visible to other threads.
+     * 
+     * @param deliveries  delivery count
+     * 
+     * @see Recovery
+     */
+    protected abstract void deliveries(int deliveries);
+    
     /**
      * Mark this message as completed.
+     * 
+     * @return {@code true} if the message was not already completed, otherwise
+     *         {@code false}
      */
-    protected abstract void complete();
+    protected abstract boolean complete();
+    
+    /**
+     * Mark this message as completed, whether or not it has been grabbed.
+     * 
+     * @return {@code true} if the message was not already completed, otherwise
+     *         {@code false}
+     */
+    protected abstract boolean discard();
+    
+    /**
+     * Mark this message as completed, unless it is leased.<p>
+     * 
+     * A message that has never been grabbed, or whose lease has expired, is
+     * completed.
+     * 
+     * @param now  current {@code System.nanoTime()}
+     * 
+     * @return {@code SUCCEEDED} if the message was completed, {@code ACTIVE}
+     *         if it is leased, or {@code COMPLETED} if it was already
+     *         completed
+     */
+    protected abstract GrabResponse tryDiscard(long now);
     
     /**
      * Try grab this message.<p>
      * 
-     * The message timestamp is only used (stored) if message was successfully
-     * grabbed.
+     * The lease is only used (stored) if message was successfully grabbed.
      * 
-     * @param timeout  message timeout
+     * @param lease  lease length in nanoseconds
      * 
      * @return grab response
      */
-    final GrabResponse tryGrab(Duration timeout) {
-        Instant then = Instant.now();
-        return tryGrab(then, then.plus(timeout));
+    final GrabResponse tryGrab(long lease) {
+        final long now = System.nanoTime();
+        return tryGrab(now, deadline(now, lease));
     }
     
     /**
      * Try grab this message.<p>
      * 
-     * The arguments are only used (stored) if message was successfully grabbed.
+     * The deadline is only used (stored) if message was successfully grabbed.
      * 
-     * @param then     grabbed timestamp
-     * @param expires  expiration timestamp
+     * @param now       current {@code System.nanoTime()}
+     * @param deadline  lease deadline in terms of {@code System.nanoTime()}
      * 
      * @return grab response
      */
-    protected abstract GrabResponse tryGrab(Instant then, Instant expires);
+    protected abstract GrabResponse tryGrab(long now, long deadline);
+    
+    /**
+     * Extend the lease of this message.
+     * 
+     * @param lease  new lease length in nanoseconds, counted from now
+     * 
+     * @return {@code true} if the lease was extended, {@code false} if the
+     *         lease had already expired or the message has been completed
+     */
+    final boolean extend(long lease) {
+        final long now = System.nanoTime();
+        return extend(now, deadline(now, lease));
+    }
+    
+    /**
+     * Extend the lease of this message.<p>
+     * 
+     * A lease can only be extended if it is still active.
+     * 
+     * @param now       current {@code System.nanoTime()}
+     * @param deadline  new lease deadline in terms of {@code System.nanoTime()}
+     * 
+     * @return {@code true} if the lease was extended, otherwise {@code false}
+     */
+    protected abstract boolean extend(long now, long deadline);
+    
+    /**
+     * Returns specified duration in nanoseconds, saturated to {@code
+     * Long.MAX_VALUE}.
+     * 
+     * @param duration  duration
+     * 
+     * @return duration in nanoseconds
+     */
+    static long nanos(Duration duration) {
+        try {
+            return duration.toNanos();
+        }
+        catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+    
+    /**
+     * Returns {@code now + lease}, saturated so that the result never reach
+     * {@code Long.MAX_VALUE} (which implementations may use as a sentinel).
+     */
+    static long deadline(long now, long lease) {
+        final long d = now + lease;
+        
+        // Overflow if both operands have a different sign than the result
+        if (((now ^ d) & (lease ^ d)) < 0 || d == Long.MAX_VALUE) {
+            return Long.MAX_VALUE - 1;
+        }
+        
+        return d;
+    }
     
     
     
@@ -2,15 +2,103 @@ package com.martinandersson.qsb.impl;
 
 import com.martinandersson.qsb.api.Message;
 import com.martinandersson.qsb.api.QueueService;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 import java.util.Queue;
+import java.util.Set;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.stream.LongStream;
 
 /**
  * Skeleton queue service implementation built on top of a {@code Map} that map
  * queue names to {@code Queue}s of messages.<p>
  * 
+ * Queues may also be {@linkplain #register(String) registered}, in which case
+ * they are never removed from the map and are additionally indexed by an
+ * integer id. The id-based API bypass the map lookup (hashing and comparing the
+ * queue name) but is still routed through a map-read access so that the
+ * synchronization strategy of the implementation is honored.<p>
+ * 
+ * Each queue assigns a monotonically increasing {@linkplain Message#id() id}
+ * to pushed messages. A delivered message is indexed by this id until it is
+ * evicted from the queue, which makes it possible to {@linkplain
+ * #complete(String, long) complete} the message using only the queue name and
+ * the id.<p>
+ * 
+ * Ranges and bitmaps of ids that are completed in bulk are applied at once to
+ * the delivered messages, using the same index.<p>
+ * 
+ * Messages pushed with a group are delivered in strict FIFO order per group.
+ * No shared state is needed for this. A delivered message remain in the queue
+ * until evicted, so the poll iteration - which always start at the head -
+ * will see an active message of a group before any message behind it of the
+ * same group. This holds for messages of the same priority only; a queue that
+ * honor priorities will walk higher priorities first.<p>
+ * 
+ * Delayed messages are kept per queue in a separate structure ordered by due
+ * time. They are promoted to the queue by the first poll that observe them to
+ * be due. A delayed message get its id and is journaled, with its due time,
+ * when pushed; the promotion is not journaled.<p>
+ * 
+ * A message that has been delivered the configured max number of times and is
+ * about to be redelivered once more is instead completed by the poll iteration
+ * and pushed to a {@linkplain Configuration#deadLetter(int, Function)
+ * dead-letter queue}. The push happens after all locks have been released.<p>
+ * 
+ * Queues may be {@linkplain Configuration#capacity(int, Overflow, Duration)
+ * bounded}. Only then does each queue keep a count of its messages, in a
+ * {@code LongAdder} of its own. A message is counted when pushed and uncounted
+ * by whichever operation first mark it as completed.<p>
+ * 
+ * The content size of messages is accounted for per queue and globally, also
+ * using {@code LongAdder}s. Bytes are charged when a message enter a queue and
+ * refunded when it is evicted. A push fail fast if a {@linkplain
+ * Configuration#memoryBudget(long) memory budget} is configured and exceeded.<p>
+ * 
+ * Message content may be stored off-heap, in {@linkplain
+ * Configuration#slabs(int, int) slabs}. The content is then copied into a slab
+ * when the message is created and released when it is evicted, or when the
+ * push fails. The slabs may also be {@linkplain Configuration#mapped(
+ * java.nio.file.Path, int) memory-mapped segment files}, in which case the
+ * buffer of a polled message is a zero-copy view of the file.<p>
+ * 
+ * Under memory pressure, the tail of a queue may be {@linkplain
+ * Configuration#spill(java.nio.file.Path, long, int, int) spilled} to disk.
+ * Once the threshold is crossed, a push to a queue append the message to the
+ * queue's {@code SpilledTail} instead of the queue, and keep doing so until
+ * the tail has been read back. A poll read back a batch of messages when the
+ * queue is about to run dry in memory. Spilled messages are counted by the
+ * queue but not charged until read back.<p>
+ * 
+ * A {@linkplain Configuration#journal(Journal) journal} may be configured to
+ * receive all events that change the state of a message; push, lease and
+ * completion. Events are reported from within the access that made the change,
+ * so the journal must not serialize more than the queue service already does.
+ * A journal such as the {@link WriteAheadLog} is lock-free. A push then wait
+ * for the journal to {@linkplain Journal#sync() sync}, after all access has
+ * been released so that concurrent pushes can be synced together.<p>
+ * 
  * Access to these building blocks is routed through a {@link Lockable} which
  * determines if explicit locking is required and if so, how.<p>
  * 
@@ -38,8 +126,61 @@ public abstract class AbstractQS<M extends AbstractMessage> implements QueueServ
      */
     private static final boolean LAZY_EVICTION = true;
     
+    /**
+     * Longest delay, in nanoseconds. Due times are compared as differences
+     * of {@code System.nanoTime()}, which are only right below 2<sup>63</sup>
+     * nanoseconds; a longer delay is cut to this, about 146 years.
+     */
+    private static final long MAX_DELAY = Long.MAX_VALUE / 2;
+    
     private final Configuration<M>.Read c;
     
+    /**
+     * Configured timeout, in nanoseconds.
+     */
+    private final long timeout;
+    
+    /**
+     * Queue name to registered id.<p>
+     * 
+     * Guarded by {@code this}. Only used by {@code register()}.
+     */
+    private final Map<String, Integer> ids = new HashMap<>();
+    
+    /**
+     * Registered queues, indexed by id.<p>
+     * 
+     * Copy-on-write, written by {@code register()} while holding {@code this}.
+     */
+    private volatile QueueState<M>[] registered = newArray(0);
+    
+    /**
+     * Every new queue instance take a number from this counter. The number is
+     * used as the upper 32 bits of the first message id of the queue, so that
+     * a queue which is deleted and then re-created does not reuse the message
+     * ids of its previous incarnation.
+     */
+    private final AtomicLong incarnations = new AtomicLong();
+    
+    private final LongAdder redeliveries = new LongAdder(),
+                            deadLettered = new LongAdder(),
+                            dropped      = new LongAdder(),
+                            bytes        = new LongAdder(),
+                            spilled      = new LongAdder();
+    
+    private final boolean bounded;
+    
+    /**
+     * Off-heap storage of message content, or {@code null} if content is kept
+     * on the heap.
+     */
+    private final SlabStore slabs;
+    
+    /**
+     * Receiver of message events, or {@code null}.
+     */
+    private final Journal journal;
+    
     
     
     /**
@@ -48,7 +189,40 @@ public abstract class AbstractQS<M extends AbstractMessage> implements QueueServ
      * @param config  configuration object
      */
     public AbstractQS(Configuration<M> config) {
+        this(config, x -> {});
+    }
+    
+    /**
+     * Constructs a {@code AbstractQS}.<p>
+     * 
+     * The specified options may override the configuration provided by the
+     * concrete implementation, for example to configure a dead-letter queue.
+     * 
+     * @param config   configuration object
+     * @param options  configuration options
+     */
+    public AbstractQS(Configuration<M> config, Consumer<? super Configuration<M>> options) {
+        options.accept(config);
         c = config.read();
+        timeout = AbstractMessage.nanos(c.timeout());
+        bounded = c.capacity() != Integer.MAX_VALUE;
+        journal = c.journal();
+        
+        if (c.slabSize() == 0) {
+            slabs = null;
+        }
+        else if (c.offHeapFactory() == null) {
+            throw new IllegalStateException("Off-heap message factory not set.");
+        }
+        else {
+            slabs = c.mappedDir() == null ?
+                    new SlabStore(c.slabSize(), c.slabPool()) :
+                    SlabStore.mapped(c.mappedDir(), c.slabSize());
+        }
+        
+        if (c.restore() != null) {
+            restore(c.restore());
+        }
     }
     
     
@@ -71,148 +245,1465 @@ public abstract class AbstractQS<M extends AbstractMessage> implements QueueServ
      * If the remapping function push to a preexisting queue, then this queue
      * will be write-accessed. Access to a queue that the remapping function
      * created will bypass any locking in place as the queue instance is not yet
-     * visible to other threads.
+     * visible to other threads.<p>
+     * 
+     * If the queue is bounded and full, the remapping function leave the map
+     * untouched and the overflow policy kick in. A blocking push repeat the
+     * procedure, parking in between attempts.
      */
     @Override
     public final void push(String queue, String message) {
-        push0(c.messageFactory().apply(queue, message));
+        push0(newMessage(queue, message));
     }
     
-    private void push0(M message) {
-        boolean[] pushed = {false};
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Same as {@link #push(String, String)}, using the {@linkplain
+     * Configuration#payload(BiFunction) payload factory} if one has been
+     * configured. The array is then stored as is, unless content is stored
+     * off-heap.
+     */
+    @Override
+    public final void push(String queue, byte[] message) {
+        push0(newMessage(queue, message));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Same as {@link #pushBatch(String, Iterable)}.
+     */
+    @Override
+    public final void push(String queue, Iterable<String> messages) {
+        final List<M> batch = new ArrayList<>();
         
-        c.map().write(map -> {
-            map.compute(message.queue(), (key, old) -> {
-                final Lockable<Queue<M>> lq;
-                
-                if (pushed[0]) {
-                    throw new AssertionError("Remapping function called twice.");
-                }
-                
-                if (old != null) {
-                    old.write(q -> q.add(message));
-                    lq = old;
-                }
-                else {
-                    lq = c.queueFactory().get();
-                    lq.unsafe(q -> q.add(message));
-                }
-                
-                pushed[0] = true;
-                return lq;
-            });
-        });
+        try {
+            for (String m : messages) {
+                batch.add(newMessage(queue, m));
+                requireJournaled(batch.get(batch.size() - 1));
+            }
+        }
+        catch (RuntimeException e) {
+            batch.forEach(AbstractMessage::release);
+            throw e;
+        }
+        
+        if (push0(queue, batch) < batch.size()) {
+            throw new IllegalStateException("Queue full: " + queue);
+        }
     }
     
     /**
      * {@inheritDoc}
      * 
      * @implNote
-     * In the first step of this implementation, the map is read-accessed to get
-     * hold of the queue. If the queue exist, it is read-accessed to iterate
-     * through messages starting at the head. Each message is attempted to be
-     * marked as grabbed by calling {@code AbstractMessage.tryGrab()}. First
-     * such call that succeeds brake the iteration.<p>
+     * The map is write-accessed once and the queue is write-accessed once for
+     * as many messages as the queue has room for, and the journal, if any, is
+     * synced once. Messages that do not fit a bounded queue are pushed one at a
+     * time, following the overflow policy, until one fails.
+     */
+    @Override
+    public final int pushBatch(String queue, Iterable<byte[]> messages) {
+        final List<M> batch = new ArrayList<>();
+        
+        try {
+            for (byte[] m : messages) {
+                batch.add(newMessage(queue, m));
+                requireJournaled(batch.get(batch.size() - 1));
+            }
+        }
+        catch (RuntimeException e) {
+            batch.forEach(AbstractMessage::release);
+            throw e;
+        }
+        
+        return push0(queue, batch);
+    }
+    
+    /**
+     * {@inheritDoc}
      * 
-     * In the second step, if the implementation has a strong reason to believe
-     * the queue is empty, then an attempt to remove the queue from the map will
-     * be performed. This entails one write-access of the map and if the queue
-     * is still present, it will be confirmed empty by using a read-access.
+     * @implNote
+     * Same as {@link #push(String, String)}. The priority is stored in the
+     * message and it is up to the queue to honor it, see {@link PriorityLanes}.
+     * A queue that does not will deliver the message in FIFO order.
+     * 
+     * @throws IllegalArgumentException
+     *             if the priority is not within {@code [0, PriorityLanes.LEVELS)}
      */
     @Override
-    public final Message poll(String queue) {
-        boolean[] empty = {true};
+    public final void push(String queue, String message, int priority) {
+        if (priority < 0 || priority >= PriorityLanes.LEVELS) {
+            throw new IllegalArgumentException("Priority out of range: " + priority);
+        }
         
-        final Message v = c.map().readGet(m -> {
-            Lockable<Queue<M>> lq = m.get(queue);
-
-            if (lq == null) {
-                // ..don't try a delete, no need!
-                empty[0] = false;
-                return null;
+        final M msg = newMessage(queue, message);
+        msg.priority(priority);
+        push0(msg);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Same as {@link #push(String, String)}. The group is stored in the message
+     * and honored by the poll iteration.
+     * 
+     * @throws IllegalArgumentException
+     *             if the group is longer than 32767 UTF-8 bytes, the most a
+     *             spilled tail or a journal can record
+     */
+    @Override
+    public final void pushGrouped(String queue, String group, String message) {
+        // ..a char is at most 3 UTF-8 bytes, encode only if need be
+        if (group.length() > Short.MAX_VALUE / 3 &&
+                group.getBytes(UTF_8).length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Group too long: " + group.length() + " chars.");
+        }
+        
+        final M msg = newMessage(queue, message);
+        msg.group(group);
+        push0(msg);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Same as {@link #push(String, String)}. The key is looked up in a bounded
+     * per-queue cache from within the remapping function, so the lookup and
+     * the push is atomic. A queue with remembered keys is not deleted when
+     * empty, the keys would be lost otherwise.
+     */
+    @Override
+    public final boolean pushIdempotent(String queue, String key, String message) {
+        return push0(newMessage(queue, message), requireNonNull(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * The map is write-accessed to create the queue if need be. The message is
+     * then added to the delayed messages of the queue, which is thread-safe on
+     * its own. A queue with delayed messages is not deleted when empty.<p>
+     * 
+     * The message is assigned an id and journaled with its due time while
+     * the map is write-accessed. The push then wait for the journal to sync.
+     * A delay longer than about 146 years is cut to that.
+     */
+    @Override
+    public final void push(String queue, String message, Duration delay) {
+        if (delay.isNegative() || delay.isZero()) {
+            push(queue, message);
+            return;
+        }
+        
+        // Before the message is allocated, nothing to release if this throw
+        final long wait = Math.min(AbstractMessage.nanos(delay), MAX_DELAY),
+                   due  = System.nanoTime() + wait;
+        
+        final Instant at = Instant.ofEpochMilli(
+                System.currentTimeMillis() + NANOSECONDS.toMillis(wait));
+        
+        final M msg = newMessage(queue, message);
+        boolean pushed = false;
+        
+        try {
+            requireBudget(msg);
+            requireJournaled(msg);
+            pushDelayed(queue, msg, due, at);
+            pushed = true;
+        }
+        finally {
+            if (!pushed) {
+                msg.release();
             }
+        }
+        
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+    
+    /**
+     * Add specified message to the delayed messages of specified queue.
+     * 
+     * @param queue  queue [name]
+     * @param msg    message
+     * @param due    due time in terms of {@code System.nanoTime()}
+     * @param at     due time, as journaled
+     */
+    private void pushDelayed(String queue, M msg, long due, Instant at) {
+        offer(queue, () -> {
+            boolean[] admitted = {false};
             
-            // Next we need to grab the message. We write-access the queue if lazy
-            // eviction is turned on because then, if we see a completed message
-            // we remove also it. If lazy eviction is turned off, then is the job
-            // of complete() to remove the queue eagerly and in this method call,
-            // we ignore completed messages and may therefore resort to a
-            // read-access of the queue.
-            
-            Function<Queue<M>, Message> grabber = q -> {
-                Iterator<M> it = q.iterator();
+            c.map().write(map -> map.compute(queue, (key, old) -> {
+                QueueState<M> qs = old != null ? old : newQueue(key);
                 
-                M msg = null;
+                if (!queue(qs, old == null, q -> admit(qs, q))) {
+                    return old;
+                }
                 
-                iteration: while (it.hasNext()) {
-                    empty[0] = false;
-                    
-                    final M impl = it.next();
-                    
-                    switch (impl.tryGrab(c.timeout())) {
-                        case COMPLETED:
-                            if (LAZY_EVICTION) {
-                                it.remove();
-                            }
-                        case ACTIVE:
-                            // Try next message..
-                            break;
-                        case SUCCEEDED:
-                            msg = impl;
-                            break iteration;
-                        default:
-                            throw new UnsupportedOperationException();
+                msg.id(qs.nextId());
+                
+                if (journal != null) {
+                    try {
+                        journal.delayed(msg, msg.group(), at);
+                    }
+                    catch (RuntimeException e) {
+                        uncount(qs);
+                        throw e;
                     }
                 }
                 
-                return msg;
-            };
+                admitted[0] = true;
+                qs.delayedOrCreate().add(msg, due);
+                charge(qs, msg);
+                return qs;
+            }));
             
-            return LAZY_EVICTION ?
-                    lq.writeGet(grabber) :
-                    lq.readGet(grabber);
+            return admitted[0];
         });
-        
-        if (empty[0]) {
-            tryDelete(queue);
-        }
-        
-        return v;
     }
     
     /**
-     * {@inheritDoc}<p>
+     * {@inheritDoc}
      * 
      * @implNote
-     * The only thing this method does is to mark the message as completed by
-     * calling {@code AbstractMessage.complete()}.
+     * Uses {@link #push(String, String, Duration)}.
      */
     @Override
-    public final void complete(Message message) {
-        if (!(requireNonNull(message) instanceof AbstractMessage)) {
-            throw new IllegalArgumentException(
-                    "Where the hell did you get this thing from?");
+    public final void push(String queue, String message, Instant at) {
+        push(queue, message, Duration.between(Instant.now(), at));
+    }
+    
+    private void push0(M message) {
+        push0(message, null);
+    }
+    
+    /**
+     * Push specified message, unless the specified deduplication key has been
+     * seen before. A message that is not pushed, for whatever reason, is
+     * released.
+     * 
+     * @param message   message to push
+     * @param dedupKey  deduplication key (may be {@code null})
+     * 
+     * @return {@code false} if the message was a duplicate, otherwise {@code true}
+     */
+    private boolean push0(M message, String dedupKey) {
+        boolean pushed = false;
+        
+        try {
+            requireBudget(message);
+            requireJournaled(message);
+            pushed = push1(message, dedupKey);
+        }
+        finally {
+            if (!pushed) {
+                message.release();
+            }
         }
         
-        AbstractMessage impl = (AbstractMessage) message;
+        if (pushed && journal != null) {
+            journal.sync();
+        }
+        
+        return pushed;
+    }
+    
+    /**
+     * Push a batch of messages to one queue, until the queue is full. Messages
+     * that are not pushed are released.
+     * 
+     * @param queue  queue [name]
+     * @param batch  messages to push, in order
+     * 
+     * @return number of messages pushed
+     */
+    private int push0(String queue, List<M> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
         
-        impl.complete();
+        final int[] pushed = {0};
         
-        if (!LAZY_EVICTION) {
-            // Must write-access. Read lock can not be upgraded to a write lock.
-            c.map().write(m -> {
-                Lockable<Queue<M>> lq = m.get(impl.queue());
+        try {
+            c.map().write(map -> map.compute(queue, (key, old) -> {
+                final QueueState<M> qs = old != null ? old : newQueue(key);
                 
-                if (lq != null && lq.writeGet(q -> q.remove(impl) && q.isEmpty())) {
-                    tryDelete(impl.queue());
+                queue(qs, old == null, q -> {
+                    while (pushed[0] < batch.size() &&
+                            withinBudget(batch.get(pushed[0])) &&
+                            add(qs, q, batch.get(pushed[0]))) {
+                        ++pushed[0];
+                    }
+                    
+                    return null;
+                });
+                
+                return pushed[0] == 0 ? old : qs;
+            }));
+            
+            // ..the rest did not fit, push one at a time following the policy
+            while (pushed[0] < batch.size()) {
+                final M m = batch.get(pushed[0]);
+                
+                try {
+                    requireBudget(m);
+                    push1(m, null);
                 }
+                catch (IllegalStateException e) {
+                    break;
+                }
+                
+                ++pushed[0];
+            }
+        }
+        finally {
+            for (int i = pushed[0]; i < batch.size(); ++i) {
+                batch.get(i).release();
+            }
+        }
+        
+        if (pushed[0] > 0 && journal != null) {
+            journal.sync();
+        }
+        
+        return pushed[0];
+    }
+    
+    /**
+     * Same as {@link #push0(AbstractMessage, String)}, except the message is
+     * not released if not pushed.
+     */
+    private boolean push1(M message, String dedupKey) {
+        boolean[] dup = {false};
+        
+        offer(message.queue(), () -> {
+            boolean[] called = {false},
+                      full   = {false};
+            
+            c.map().write(map -> {
+                map.compute(message.queue(), (key, old) -> {
+                    if (called[0]) {
+                        throw new AssertionError("Remapping function called twice.");
+                    }
+                    
+                    called[0] = true;
+                    
+                    final QueueState<M> qs = old != null ? old : newQueue(key);
+                    
+                    if (dedupKey != null &&
+                            !qs.dedup(c.dedupWindow(), c.dedupKeys()).add(dedupKey)) {
+                        // ..a new queue can not have seen the key, so old != null
+                        dup[0] = true;
+                        return old;
+                    }
+                    
+                    final boolean added;
+                    
+                    try {
+                        added = queue(qs, old == null, q -> add(qs, q, message));
+                    }
+                    catch (RuntimeException e) {
+                        // ..or a retry would be dropped as a duplicate
+                        forget(qs, dedupKey);
+                        throw e;
+                    }
+                    
+                    if (!added) {
+                        // ..a new queue can not be full, so old != null
+                        forget(qs, dedupKey);
+                        full[0] = true;
+                        return old;
+                    }
+                    
+                    return qs;
+                });
             });
+            
+            return !full[0];
+        });
+        
+        return !dup[0];
+    }
+    
+    /**
+     * Remove a deduplication key of a message that was not pushed.
+     * 
+     * @param qs        queue state
+     * @param dedupKey  deduplication key (may be {@code null})
+     */
+    private void forget(QueueState<M> qs, String dedupKey) {
+        if (dedupKey != null) {
+            qs.dedup(c.dedupWindow(), c.dedupKeys()).remove(dedupKey);
         }
     }
     
-    private void tryDelete(String queue) {
-        // computeIfPresent() will remove the entry if the queue is empty.
-        c.map().writeGet(m -> m.computeIfPresent(queue, (key, old) ->
-                old.readGet(q -> q.isEmpty() ? null : old)));
+    /**
+     * Access the queue of specified queue state.
+     * 
+     * @param qs     queue state
+     * @param fresh  {@code true} if the queue state is not yet visible to
+     *               other threads, in which case locking is bypassed
+     * @param task   task to perform
+     * 
+     * @return task return value
+     */
+    private <V> V queue(QueueState<M> qs, boolean fresh, Function<Queue<M>, V> task) {
+        return fresh ?
+                qs.messages().unsafeGet(task) :
+                qs.messages().writeGet(task);
+    }
+    
+    /**
+     * Add specified message to specified queue, if there is room.<p>
+     * 
+     * Must be called with write-access of the queue.
+     * 
+     * @return {@code true} if added, {@code false} if the queue was full
+     */
+    private boolean add(QueueState<M> qs, Queue<M> q, M message) {
+        if (!admit(qs, q)) {
+            return false;
+        }
+        
+        message.id(qs.nextId());
+        
+        // Journal first, a lock-free queue publish the message on add
+        if (journal != null) {
+            try {
+                journal.pushed(message, message.group());
+            }
+            catch (RuntimeException e) {
+                // ..give the room back, the message never entered the queue
+                uncount(qs);
+                throw e;
+            }
+        }
+        
+        final boolean spilled;
+        
+        try {
+            spilled = spill(qs, message);
+        }
+        catch (UncheckedIOException e) {
+            uncount(qs);
+            
+            if (journal != null) {
+                journal.completed(qs.name(), message.id());
+            }
+            
+            throw e;
+        }
+        
+        if (!spilled) {
+            q.add(message);
+            charge(qs, message);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Append the message to the spilled tail of the queue, if the queue has a
+     * tail on disk or if the memory threshold would be crossed.<p>
+     * 
+     * Must be called with write-access of the queue.
+     * 
+     * @return {@code true} if spilled, {@code false} if the message should be
+     *         kept in memory
+     * 
+     * @throws UncheckedIOException
+     *             if the message could not be appended to a tail that is not
+     *             empty; keeping it in memory would put it ahead of the tail
+     */
+    private boolean spill(QueueState<M> qs, M message) {
+        if (c.spillDir() == null) {
+            return false;
+        }
+        
+        SpilledTail tail = qs.spilled();
+        
+        if ((tail == null || tail.isEmpty()) &&
+                bytes.sum() + message.bytes() <= c.spillThreshold()) {
+            return false;
+        }
+        
+        if (tail == null) {
+            tail = qs.spilledOrCreate(() -> new SpilledTail(c.spillDir(), c.spillSegment()));
+        }
+        
+        try {
+            spilled.add(tail.append(message));
+        }
+        catch (IOException e) {
+            if (tail.isEmpty()) {
+                // ..better in memory than lost, nothing is behind it
+                return false;
+            }
+            
+            throw new UncheckedIOException(e);
+        }
+        
+        message.release();
+        return true;
+    }
+    
+    /**
+     * Read back the next messages of the spilled tail.<p>
+     * 
+     * Must be called with write-access of the queue.
+     */
+    private void readBack(QueueState<M> qs, Queue<M> q, SpilledTail tail) {
+        spilled.add(-tail.read(c.readAhead(), (id, priority, group, content) -> {
+            final M msg = newMessage(qs.name(), content);
+            msg.id(id);
+            msg.priority(priority);
+            msg.group(group);
+            q.add(msg);
+            charge(qs, msg);
+        }));
+    }
+    
+    /**
+     * Remove the message last returned by specified iterator.<p>
+     * 
+     * Must be called with write-access of the queue.
+     * 
+     * @param qs   queue state
+     * @param it   iterator of the queue
+     * @param msg  message last returned by the iterator
+     */
+    private void evict(QueueState<M> qs, Iterator<M> it, M msg) {
+        it.remove();
+        qs.delivered().remove(msg.id());
+        refund(qs, msg);
+    }
+    
+    /**
+     * Account for the content of a message entering specified queue.
+     * 
+     * @param qs   queue state
+     * @param msg  message
+     */
+    private void charge(QueueState<M> qs, AbstractMessage msg) {
+        final int n = msg.bytes();
+        qs.bytes().add(n);
+        bytes.add(n);
+    }
+    
+    /**
+     * Account for the content of a message leaving specified queue, and
+     * release content stored off-heap.
+     * 
+     * @param qs   queue state
+     * @param msg  message
+     */
+    private void refund(QueueState<M> qs, AbstractMessage msg) {
+        final int n = msg.bytes();
+        qs.bytes().add(-n);
+        bytes.add(-n);
+        msg.release();
+    }
+    
+    /**
+     * Create a new message, with the content stored off-heap if so
+     * configured.
+     * 
+     * @param queue    queue [name]
+     * @param message  message content
+     * 
+     * @return a new message
+     */
+    private M newMessage(String queue, String message) {
+        return slabs == null ?
+                c.messageFactory().apply(queue, message) :
+                c.offHeapFactory().apply(queue, slabs.store(message.getBytes(UTF_8)));
+    }
+    
+    /**
+     * Create a new message, with the content stored off-heap if so
+     * configured.
+     * 
+     * @param queue    queue [name]
+     * @param message  message content, UTF-8 encoded
+     * 
+     * @return a new message
+     */
+    private M newMessage(String queue, byte[] message) {
+        if (slabs != null) {
+            return c.offHeapFactory().apply(queue, slabs.store(message));
+        }
+        
+        return c.payloadFactory() != null ?
+                c.payloadFactory().apply(queue, message) :
+                c.messageFactory().apply(queue, new String(message, UTF_8));
+    }
+    
+    /**
+     * Fail fast if the specified message does not fit within the memory
+     * budget.
+     * 
+     * @param msg  message about to be pushed
+     * 
+     * @throws IllegalStateException if the memory budget is exceeded
+     */
+    private void requireBudget(AbstractMessage msg) {
+        if (!withinBudget(msg)) {
+            throw new IllegalStateException("Memory budget exceeded");
+        }
+    }
+    
+    /**
+     * Fail fast if the specified message can not be journaled.
+     * 
+     * @param msg  message about to be pushed
+     * 
+     * @throws IllegalArgumentException if the message can not be journaled
+     * 
+     * @see Journal#check(Message, String)
+     */
+    private void requireJournaled(M msg) {
+        if (journal != null) {
+            journal.check(msg, msg.group());
+        }
+    }
+    
+    /**
+     * Returns {@code true} if the specified message fits within the memory
+     * budget, otherwise {@code false}.
+     * 
+     * @param msg  message about to be pushed
+     * 
+     * @return {@code true} if the message fits within the memory budget
+     */
+    private boolean withinBudget(AbstractMessage msg) {
+        return c.memoryBudget() == Long.MAX_VALUE ||
+               bytes.sum() + msg.bytes() <= c.memoryBudget();
+    }
+    
+    /**
+     * Count one more message in the specified queue, if there is room. With
+     * overflow policy {@code DROP_OLDEST}, room is made if need be.<p>
+     * 
+     * Must be called with write-access of the queue.
+     * 
+     * @return {@code true} if the message was counted, {@code false} if the
+     *         queue was full
+     */
+    private boolean admit(QueueState<M> qs, Queue<M> q) {
+        final LongAdder size = qs.size();
+        
+        if (size == null) {
+            return true;
+        }
+        
+        if (size.sum() >= c.capacity() &&
+                !(c.overflow() == Overflow.DROP_OLDEST && dropOldest(qs, q))) {
+            return false;
+        }
+        
+        size.increment();
+        return true;
+    }
+    
+    /**
+     * Drop the message closest to the head of the queue that is not leased.
+     * Completed messages on the way are evicted, leased messages are left
+     * alone; their content may still be read by the consumer.<p>
+     * 
+     * Must be called with write-access of the queue.
+     * 
+     * @return {@code true} if a message was dropped, otherwise {@code false}
+     */
+    private boolean dropOldest(QueueState<M> qs, Queue<M> q) {
+        final long now = System.nanoTime();
+        
+        for (Iterator<M> it = q.iterator(); it.hasNext();) {
+            final M msg = it.next();
+            
+            switch (msg.tryDiscard(now)) {
+                case ACTIVE:
+                    // Skip, in flight..
+                    break;
+                case COMPLETED:
+                    evict(qs, it, msg);
+                    break;
+                case SUCCEEDED:
+                    evict(qs, it, msg);
+                    completed(qs, msg);
+                    dropped.increment();
+                    return true;
+                default:
+                    throw new UnsupportedOperationException();
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Run specified push attempt, and if the queue is full, apply the overflow
+     * policy.
+     * 
+     * @param queue  queue [name]
+     * @param push   push attempt, returns {@code false} if the queue was full
+     * 
+     * @throws IllegalStateException if the queue is full and remain so
+     */
+    private void offer(String queue, BooleanSupplier push) {
+        if (push.getAsBoolean()) {
+            return;
+        }
+        
+        if (c.overflow() != Overflow.BLOCK) {
+            throw new IllegalStateException("Queue full: " + queue);
+        }
+        
+        final long deadline = AbstractMessage.deadline(
+                System.nanoTime(), AbstractMessage.nanos(c.blockTimeout()));
+        
+        for (int attempt = 0; !push.getAsBoolean(); ++attempt) {
+            if (System.nanoTime() >= deadline) {
+                throw new IllegalStateException("Queue full: " + queue);
+            }
+            
+            // Back off exponentially, from 1 µs up to 1 ms.
+            LockSupport.parkNanos(1_000L << Math.min(attempt, 10));
+        }
+    }
+    
+    /**
+     * Account for a message that has been completed by the queue service
+     * itself, while holding access to the queue.
+     * 
+     * @param qs   queue state
+     * @param msg  message that has been completed
+     */
+    private void completed(QueueState<M> qs, M msg) {
+        uncount(qs);
+        
+        if (journal != null) {
+            journal.completed(qs.name(), msg.id());
+        }
+    }
+    
+    /**
+     * Uncount a message that has been completed, if the queue is bounded.
+     * 
+     * @param qs  queue state
+     */
+    private static void uncount(QueueState<?> qs) {
+        if (qs.size() != null) {
+            qs.size().decrement();
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * The registered queue is retrieved from an array. The queue is then
+     * write-accessed while holding a map-read access.
+     */
+    @Override
+    public final void push(int queue, String message) {
+        final QueueState<M> qs = registered(queue);
+        final M msg = newMessage(qs.name(), message);
+        
+        boolean pushed = false;
+        
+        try {
+            requireBudget(msg);
+            requireJournaled(msg);
+            
+            offer(qs.name(), () -> c.map().readGet(m ->
+                    qs.messages().writeGet(q -> add(qs, q, msg))));
+            
+            pushed = true;
+        }
+        finally {
+            if (!pushed) {
+                msg.release();
+            }
+        }
+        
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * In the first step of this implementation, the map is read-accessed to get
+     * hold of the queue. If the queue exist, it is read-accessed to iterate
+     * through messages starting at the head. Each message is attempted to be
+     * marked as grabbed by calling {@code AbstractMessage.tryGrab()}. First
+     * such call that succeeds brake the iteration.<p>
+     * 
+     * In the second step, if the implementation has a strong reason to believe
+     * the queue is empty, then an attempt to remove the queue from the map will
+     * be performed. This entails one write-access of the map and if the queue
+     * is still present, it will be confirmed empty by using a read-access.
+     */
+    @Override
+    public final Message poll(String queue) {
+        return poll(queue, timeout);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Same as {@link #poll(String)}. The lease deadline is stored in the
+     * message itself.
+     */
+    @Override
+    public final Message poll(String queue, Duration lease) {
+        if (lease.isNegative()) {
+            throw new IllegalArgumentException("Negative: " + lease);
+        }
+        
+        return poll(queue, AbstractMessage.nanos(lease));
+    }
+    
+    private Message poll(String queue, long lease) {
+        final Scan<M> scan = new Scan<>();
+        
+        final Message v = c.map().readGet(m -> {
+            QueueState<M> qs = m.get(queue);
+
+            if (qs == null) {
+                // ..don't try a delete, no need!
+                scan.empty = false;
+                return null;
+            }
+            
+            return grab(qs, scan, lease);
+        });
+        
+        if (scan.dead != null) {
+            deadLetter(scan.dead);
+        }
+        
+        if (scan.empty) {
+            tryDelete(queue);
+        }
+        
+        return v;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Same as {@link #poll(String)}, except the queue is retrieved from an
+     * array and will never be deleted.
+     */
+    @Override
+    public final Message poll(int queue) {
+        final QueueState<M> qs = registered(queue);
+        final Scan<M> scan = new Scan<>();
+        
+        final Message v = c.map().readGet(m -> grab(qs, scan, timeout));
+        
+        if (scan.dead != null) {
+            deadLetter(scan.dead);
+        }
+        
+        return v;
+    }
+    
+    /**
+     * Grab the first available message of specified queue.<p>
+     * 
+     * Must be called while holding a map-read access.
+     * 
+     * @param qs     queue to grab from
+     * @param scan   collector of side results
+     * @param lease  lease length in nanoseconds
+     * 
+     * @return a message, or {@code null} if none was available
+     */
+    private Message grab(QueueState<M> qs, Scan<M> scan, long lease) {
+        final DelayedMessages<M> delayed = qs.delayed();
+        
+        if (delayed != null && delayed.isDue(System.nanoTime())) {
+            qs.messages().write(q -> delayed.promote(System.nanoTime(), q::add));
+        }
+        
+        final SpilledTail tail = qs.spilled();
+        
+        if (tail != null && !tail.isEmpty() && qs.bytes().sum() < c.readAhead()) {
+            qs.messages().write(q -> readBack(qs, q, tail));
+        }
+        
+        // Next we need to grab the message. We write-access the queue if lazy
+        // eviction is turned on because then, if we see a completed message
+        // we remove also it. If lazy eviction is turned off, then is the job
+        // of complete() to remove the queue eagerly and in this method call,
+        // we ignore completed messages and may therefore resort to a
+        // read-access of the queue.
+        
+        Function<Queue<M>, Message> grabber = q -> {
+            Iterator<M> it = q.iterator();
+            
+            M msg = null;
+            
+            // Groups with an active message, lazily created.
+            Set<String> blocked = null;
+            
+            iteration: while (it.hasNext()) {
+                scan.empty = false;
+                
+                final M impl = it.next();
+                
+                final String group = impl.group();
+                
+                if (group != null && blocked != null && blocked.contains(group)) {
+                    // Not before the active one is done..
+                    continue;
+                }
+                
+                switch (impl.tryGrab(lease)) {
+                    case COMPLETED:
+                        if (LAZY_EVICTION) {
+                            evict(qs, it, impl);
+                        }
+                        // Try next message..
+                        break;
+                    case ACTIVE:
+                        if (group != null) {
+                            if (blocked == null) {
+                                blocked = new HashSet<>();
+                            }
+                            
+                            blocked.add(group);
+                        }
+                        // Try next message..
+                        break;
+                    case SUCCEEDED:
+                        if (impl.deliveries() > c.maxDeliveries()) {
+                            if (impl.complete()) {
+                                completed(qs, impl);
+                            }
+                            
+                            // Copy before the eviction release the content
+                            scan.dead(deadLetterCopy(impl));
+                            
+                            if (LAZY_EVICTION) {
+                                evict(qs, it, impl);
+                            }
+                            // Try next message..
+                            break;
+                        }
+                        
+                        if (impl.deliveries() > 1) {
+                            redeliveries.increment();
+                        }
+                        
+                        if (journal != null) {
+                            journal.leased(impl);
+                        }
+                        
+                        qs.delivered().put(impl.id(), impl);
+                        msg = impl;
+                        break iteration;
+                    default:
+                        throw new UnsupportedOperationException();
+                }
+            }
+            
+            return msg;
+        };
+        
+        return LAZY_EVICTION ?
+                qs.messages().writeGet(grabber) :
+                qs.messages().readGet(grabber);
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * @implNote
+     * The only thing this method does is to mark the message as completed by
+     * calling {@code AbstractMessage.complete()}.
+     */
+    @Override
+    public final void complete(Message message) {
+        if (!(requireNonNull(message) instanceof AbstractMessage)) {
+            throw new IllegalArgumentException(
+                    "Where the hell did you get this thing from?");
+        }
+        
+        AbstractMessage impl = (AbstractMessage) message;
+        
+        if (impl.complete()) {
+            if (journal != null) {
+                journal.completed(impl.queue(), impl.id());
+            }
+            
+            if (bounded) {
+                c.map().read(m -> {
+                    QueueState<M> qs = m.get(impl.queue());
+                    
+                    if (qs != null) {
+                        uncount(qs);
+                    }
+                });
+            }
+        }
+        
+        if (!LAZY_EVICTION) {
+            // Must write-access. Read lock can not be upgraded to a write lock.
+            c.map().write(m -> {
+                QueueState<M> qs = m.get(impl.queue());
+                
+                if (qs == null) {
+                    return;
+                }
+                
+                qs.delivered().remove(impl.id());
+                
+                if (qs.messages().writeGet(q -> {
+                        if (!q.remove(impl)) {
+                            return false;
+                        }
+                        
+                        refund(qs, impl);
+                        return q.isEmpty();
+                    }))
+                {
+                    tryDelete(impl.queue());
+                }
+            });
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * The map is read-accessed to get hold of the queue, which is then
+     * write-accessed to update the lease deadline stored in the message. No
+     * new objects are created.
+     */
+    @Override
+    public final boolean extend(Message message, Duration lease) {
+        return lease(message, lease);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Same as {@link #extend(Message, Duration)}, only the lease is shortened
+     * to the backoff. The message remain where it is in the queue and will be
+     * redelivered by the first poll that walk past it after the backoff.
+     */
+    @Override
+    public final void nack(Message message, Duration backoff) {
+        lease(message, backoff);
+    }
+    
+    private boolean lease(Message message, Duration lease) {
+        if (!(requireNonNull(message) instanceof AbstractMessage)) {
+            throw new IllegalArgumentException(
+                    "Where the hell did you get this thing from?");
+        }
+        
+        if (lease.isNegative()) {
+            throw new IllegalArgumentException("Negative: " + lease);
+        }
+        
+        final AbstractMessage impl = (AbstractMessage) message;
+        final long nanos = AbstractMessage.nanos(lease);
+        
+        return c.map().readGet(m -> {
+            QueueState<M> qs = m.get(impl.queue());
+            
+            return qs != null && qs.messages().writeGet(q -> {
+                if (!impl.extend(nanos)) {
+                    return false;
+                }
+                
+                if (journal != null) {
+                    journal.leased(impl);
+                }
+                
+                return true;
+            });
+        });
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * The message is looked up in an index of delivered messages using a
+     * map-read access. If found, the message is completed just like {@link
+     * #complete(Message)} would do.
+     */
+    @Override
+    public final void complete(String queue, long id) {
+        final M msg = c.map().readGet(m -> {
+            QueueState<M> qs = m.get(queue);
+            return qs == null ? null : qs.delivered().get(id);
+        });
+        
+        if (msg != null) {
+            complete(msg);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * The range is applied at once, under write-access of the queue. Either
+     * each id is looked up in the index of delivered messages or the index is
+     * walked, whichever is shorter, so the cost is bounded by the number of
+     * messages delivered and not by the range length.
+     */
+    @Override
+    public final void complete(String queue, long fromId, long toId) {
+        if (!LAZY_EVICTION) {
+            QueueService.super.complete(queue, fromId, toId);
+            return;
+        }
+        
+        if (fromId >= toId) {
+            return;
+        }
+        
+        // ..a range too long to count does not fit the index anyway
+        final long n = toId - fromId > 0 ? toId - fromId : Long.MAX_VALUE;
+        
+        ack(queue, n, LongStream.range(fromId, toId),
+                id -> id >= fromId && id < toId);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Same as {@link #complete(String, long, long)}, the cost is bounded by
+     * the number of set bits or the number of messages delivered, whichever is
+     * smaller.
+     */
+    @Override
+    public final void complete(String queue, long baseId, BitSet offsets) {
+        if (!LAZY_EVICTION) {
+            QueueService.super.complete(queue, baseId, offsets);
+            return;
+        }
+        
+        ack(queue, offsets.cardinality(), offsets.stream().mapToLong(i -> baseId + i),
+                id -> id - baseId >= 0 && id - baseId < offsets.length() &&
+                      offsets.get((int) (id - baseId)));
+    }
+    
+    /**
+     * Complete the delivered messages acknowledged in bulk.<p>
+     * 
+     * Only messages delivered when the acknowledgement is made are completed;
+     * acknowledged ids that are unknown or not yet delivered are ignored.
+     * 
+     * @param queue  queue of the messages
+     * @param count  number of acknowledged ids
+     * @param ids    the acknowledged ids
+     * @param acked  {@code true} for an acknowledged id
+     */
+    private void ack(String queue, long count, LongStream ids, LongPredicate acked) {
+        c.map().read(m -> {
+            QueueState<M> qs = m.get(queue);
+            
+            if (qs == null) {
+                return;
+            }
+            
+            qs.messages().write(q -> {
+                final Map<Long, M> delivered = qs.delivered();
+                
+                if (count <= delivered.size()) {
+                    ids.forEach(id -> {
+                        final M msg = delivered.get(id);
+                        
+                        if (msg != null && msg.complete()) {
+                            completed(qs, msg);
+                        }
+                    });
+                }
+                else {
+                    for (M msg : delivered.values()) {
+                        if (acked.test(msg.id()) && msg.complete()) {
+                            completed(qs, msg);
+                        }
+                    }
+                }
+            });
+        });
+    }
+    
+    /**
+     * Create a copy of specified message, addressed to its dead-letter queue.
+     * 
+     * @param msg  message that has been delivered too many times
+     * 
+     * @return a copy of the message
+     */
+    private M deadLetterCopy(M msg) {
+        final String dlq = c.deadLetterQueue().apply(msg.queue());
+        
+        final byte[] bytes = msg.payload();
+        
+        final M copy = bytes != null ?
+                newMessage(dlq, bytes) :
+                newMessage(dlq, msg.get());
+        
+        copy.priority(msg.priority());
+        return copy;
+    }
+    
+    /**
+     * Push each specified copy to its dead-letter queue.<p>
+     * 
+     * Must not be called while holding any access. A message that does not fit
+     * in a full dead-letter queue is dropped, the poll that found it should
+     * not fail.
+     * 
+     * @param dead  copies of messages that has been delivered too many times
+     * 
+     * @see #deadLetterCopy(AbstractMessage)
+     */
+    private void deadLetter(List<M> dead) {
+        for (M copy : dead) {
+            try {
+                push0(copy);
+                deadLettered.increment();
+            }
+            catch (IllegalStateException e) {
+                dropped.increment();
+            }
+        }
+    }
+    
+    private void tryDelete(String queue) {
+        // computeIfPresent() will remove the entry if the queue is empty.
+        c.map().writeGet(m -> m.computeIfPresent(queue, (key, old) ->
+                !old.isPinned() && !old.hasDedupKeys() && !old.hasDelayed() && !old.hasSpilled() &&
+                        old.messages().readGet(Queue::isEmpty) ? null : old));
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Registration is serialized. The queue is created if need be and pinned
+     * using a map-write access, then appended to a copy-on-write array of
+     * registered queues.
+     */
+    @Override
+    public final synchronized int register(String queue) {
+        final Integer id = ids.get(requireNonNull(queue));
+        
+        if (id != null) {
+            return id;
+        }
+        
+        final QueueState<M> qs = c.map().writeGet(map -> map.compute(queue, (key, old) -> {
+            QueueState<M> v = old != null ? old : newQueue(key);
+            v.pin();
+            return v;
+        }));
+        
+        final QueueState<M>[] arr = Arrays.copyOf(registered, registered.length + 1);
+        arr[arr.length - 1] = qs;
+        registered = arr;
+        
+        ids.put(queue, arr.length - 1);
+        return arr.length - 1;
+    }
+    
+    private QueueState<M> registered(int id) {
+        final QueueState<M>[] arr = registered;
+        
+        if (id < 0 || id >= arr.length) {
+            throw new IllegalArgumentException("Unknown queue id: " + id);
+        }
+        
+        return arr[id];
+    }
+    
+    /**
+     * Returns how many times a message has been redelivered.
+     * 
+     * @return how many times a message has been redelivered
+     */
+    public final long redeliveries() {
+        return redeliveries.sum();
+    }
+    
+    /**
+     * Returns how many messages has been moved to a dead-letter queue.
+     * 
+     * @return how many messages has been moved to a dead-letter queue
+     * 
+     * @see Configuration#deadLetter(int, Function)
+     */
+    public final long deadLettered() {
+        return deadLettered.sum();
+    }
+    
+    /**
+     * Returns the content size, in bytes, of all messages held by this queue
+     * service.
+     * 
+     * @return the content size, in bytes, of all messages
+     * 
+     * @see AbstractMessage#bytes()
+     */
+    public final long bytes() {
+        return bytes.sum();
+    }
+    
+    /**
+     * Returns the content size, in bytes, of all messages held by specified
+     * queue.
+     * 
+     * @param queue  queue [name] (must not be {@code null})
+     * 
+     * @return the content size, in bytes, of all messages of the queue
+     * 
+     * @see AbstractMessage#bytes()
+     */
+    public final long bytes(String queue) {
+        requireNonNull(queue);
+        
+        return c.map().readGet(m -> {
+            QueueState<M> qs = m.get(queue);
+            return qs == null ? 0L : qs.bytes().sum();
+        });
+    }
+    
+    /**
+     * Returns the content size, in bytes, of all messages spilled to disk and
+     * not yet read back. Spilled messages are not included in {@link
+     * #bytes()}.
+     * 
+     * @return the content size, in bytes, of all messages spilled to disk
+     * 
+     * @see Configuration#spill(java.nio.file.Path, long, int, int)
+     */
+    public final long spilled() {
+        return spilled.sum();
+    }
+    
+    /**
+     * Returns the number of off-heap slabs, or mapped segments, currently in
+     * use, or 0 if content is stored on the heap.
+     * 
+     * @return the number of off-heap slabs currently in use
+     * 
+     * @see Configuration#slabs(int, int)
+     * @see Configuration#mapped(java.nio.file.Path, int)
+     */
+    public final long slabs() {
+        return slabs == null ? 0 : slabs.slabs();
+    }
+    
+    /**
+     * Returns how many messages has been dropped from a full queue.
+     * 
+     * @return how many messages has been dropped from a full queue
+     * 
+     * @see Overflow#DROP_OLDEST
+     */
+    public final long dropped() {
+        return dropped.sum();
+    }
+    
+    
+    
+    /**
+     * Restore recovered messages, bypassing capacity and journal. A message
+     * that is not yet due is restored as delayed, for the time that remains.
+     * 
+     * @param recovery  recovered messages
+     */
+    private void restore(Recovery recovery) {
+        final long nanos  = System.nanoTime(),
+                   millis = System.currentTimeMillis();
+        
+        try (LiveMessages.Contents contents = recovery.contents()) {
+            c.map().write(map -> recovery.queues().forEach((name, log) -> {
+                final QueueState<M> qs = new QueueState<>(name, c.queueFactory().get(), log.nextId, bounded);
+            
+                incarnations.accumulateAndGet((log.nextId >>> 32) + 1, Math::max);
+            
+                qs.messages().write(q -> log.messages.forEach((id, e) -> {
+                    final M msg = newMessage(name, contents.read(e));
+                    msg.id(id);
+                    msg.priority(e.priority);
+                    msg.group(e.group);
+                    msg.deliveries(e.deliveries);
+                
+                    if (qs.size() != null) {
+                        qs.size().increment();
+                    }
+                
+                    if (e.due > millis) {
+                        qs.delayedOrCreate().add(msg, nanos +
+                                Math.min(MILLISECONDS.toNanos(e.due - millis), MAX_DELAY));
+                    }
+                    else {
+                        q.add(msg);
+                    }
+                
+                    charge(qs, msg);
+                }));
+                
+                map.put(name, qs);
+            }));
+        }
+    }
+    
+    private QueueState<M> newQueue(String name) {
+        return new QueueState<>(name, c.queueFactory().get(),
+                incarnations.getAndIncrement() << 32, bounded);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <M> QueueState<M>[] newArray(int length) {
+        return (QueueState<M>[]) new QueueState<?>[length];
+    }
+    
+    /**
+     * Side results of a poll iteration.
+     */
+    private static final class Scan<M> {
+        /** Cleared if a message is observed. */
+        boolean empty = true;
+        
+        /** Messages to dead-letter, lazily created. */
+        List<M> dead;
+        
+        void dead(M msg) {
+            if (dead == null) {
+                dead = new ArrayList<>(1);
+            }
+            
+            dead.add(msg);
+        }
     }
 }
\ No newline at end of file
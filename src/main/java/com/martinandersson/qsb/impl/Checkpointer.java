@@ -0,0 +1,172 @@
+package com.martinandersson.qsb.impl;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Periodically write a snapshot of the pending messages described by a {@link
+ * WriteAheadLog}, so that {@link Recovery} need only replay the log tail after
+ * the snapshot.<p>
+ * 
+ * The checkpointer keep its own state of the live messages and follow the
+ * log as it is written; each checkpoint apply the records written since the
+ * last one and then write a new snapshot. The state locate the content of
+ * each message in the log or in the last snapshot, rather than holding a copy
+ * of it; the content is copied from file to file when a snapshot is
+ * written. Older snapshots are deleted. Both the
+ * reading and the writing happens on a background thread, a queue service
+ * writing to the log is never blocked by a checkpoint.<p>
+ * 
+ * Like any journal reader, the checkpointer only see completed records. A
+ * snapshot therefore never include a message whose push record is still being
+ * written.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Checkpointer implements AutoCloseable
+{
+    private final Path dir;
+    
+    private final int segmentSize;
+    
+    private final long liveFrom;
+    
+    /** Guarded by {@code this}. */
+    private final LiveMessages state;
+    
+    private final long interval;
+    
+    private final Thread thread;
+    
+    private final LongAdder checkpoints = new LongAdder(),
+                            failures    = new LongAdder();
+    
+    private volatile Throwable failure;
+    
+    private volatile boolean closed;
+    
+    
+    
+    /**
+     * Constructs a {@code Checkpointer}.<p>
+     * 
+     * The current state of the log, including the latest snapshot and all
+     * segments written by previous incarnations of the log, is loaded and a
+     * first snapshot written before this constructor returns.
+     * 
+     * @param log       log to follow
+     * @param interval  time between checkpoints
+     * 
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code interval} is not positive
+     * @throws UncheckedIOException on I/O error
+     */
+    public Checkpointer(WriteAheadLog log, Duration interval) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Interval must be positive: " + interval);
+        }
+        
+        this.dir = log.dir();
+        this.segmentSize = log.segmentSize();
+        this.liveFrom = log.start();
+        this.interval = AbstractMessage.nanos(interval);
+        
+        state = LiveMessages.load(dir, segmentSize);
+        checkpoint();
+        
+        thread = new Thread(this::run, "wal-checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    
+    
+    /**
+     * Write a snapshot of all records completed so far.
+     * 
+     * @return the log position of the snapshot
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    public synchronized long checkpoint() {
+        catchUp();
+        state.save();
+        checkpoints.increment();
+        return state.position();
+    }
+    
+    /**
+     * Returns the number of snapshots written.
+     * 
+     * @return the number of snapshots written
+     */
+    public long checkpoints() {
+        return checkpoints.sum();
+    }
+    
+    /**
+     * Returns the number of background checkpoints that failed. A failed
+     * checkpoint is retried after the next interval.
+     * 
+     * @return the number of failed background checkpoints
+     */
+    public long failures() {
+        return failures.sum();
+    }
+    
+    /**
+     * Returns the exception of the last failed background checkpoint, or {@code
+     * null} if none has failed.
+     * 
+     * @return the exception of the last failed checkpoint, or {@code null}
+     */
+    public Throwable failure() {
+        return failure;
+    }
+    
+    /**
+     * Stop taking checkpoints. A checkpoint in progress is allowed to
+     * complete.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    
+    
+    private synchronized void catchUp() {
+        state.position(LogReader.read(dir, segmentSize, state.position(), liveFrom, state));
+    }
+    
+    private void run() {
+        while (!closed) {
+            LockSupport.parkNanos(interval);
+            
+            if (closed) {
+                break;
+            }
+            
+            try {
+                checkpoint();
+            }
+            catch (Throwable e) {
+                // ..the thread must survive whatever went wrong, or no checkpoint
+                // is ever attempted again
+                failure = e;
+                failures.increment();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,525 @@
+package com.martinandersson.qsb.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the size of a {@link WriteAheadLog} bounded by compacting old
+ * segments in the background.<p>
+ * 
+ * Most records soon describe messages that has been completed. The compactor
+ * follow the log to learn which messages are still live, and rewrite each old
+ * segment that would shrink to half its size or less, keeping only the push
+ * and lease records of live messages. The rewritten segment replace the
+ * original atomically; a segment left with no live messages is deleted. A
+ * segment that is not rewritten may still hold the push of a completed
+ * message, so the complete records of the segments after it are kept.<p>
+ * 
+ * If a {@link Checkpointer} has written a snapshot, segments before the
+ * segment of the snapshot are not needed for {@link Recovery} and are deleted
+ * whole. Segments from the snapshot and on are left untouched, because a
+ * complete record after the snapshot may refer to a message pushed before
+ * it.<p>
+ * 
+ * Only segments before the segment currently written, and that has been read
+ * in full by the compactor, are compacted. Records keep their log order, but
+ * not their offset within the segment, so a position within a compacted
+ * segment is meaningless.<p>
+ * 
+ * The I/O of the compactor, bytes read and bytes written, is throttled to a
+ * maximum rate so that it does not starve the foreground appends.<p>
+ * 
+ * Recover the log and create the {@code Checkpointer}, if any, before the
+ * compactor; a reader that start from the beginning of the log must not race
+ * with a segment being deleted.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Compactor implements AutoCloseable
+{
+    private final WriteAheadLog log;
+    
+    private final Path dir;
+    
+    private final int segmentSize;
+    
+    private final long interval;
+    
+    /** Nanoseconds of I/O budget per byte. */
+    private final double nanosPerByte;
+    
+    /** Live message ids by queue. Guarded by {@code this}. */
+    private final Map<String, Live> live = new HashMap<>();
+    
+    /** Log position up to which records has been read. Guarded by {@code this}. */
+    private long position;
+    
+    /** Time when the I/O budget is available again. Guarded by {@code this}. */
+    private long budget;
+    
+    /**
+     * Set once a compaction has left a segment with the push of a completed
+     * message. Guarded by {@code this}.
+     */
+    private boolean dirty;
+    
+    private final LongAdder reclaimed = new LongAdder(),
+                            rewritten = new LongAdder(),
+                            deleted   = new LongAdder(),
+                            failures  = new LongAdder();
+    
+    private final Thread thread;
+    
+    private volatile Throwable failure;
+    
+    private volatile boolean closed;
+    
+    
+    
+    /**
+     * Constructs a {@code Compactor}.
+     * 
+     * @param log             log to compact
+     * @param interval        time between compactions
+     * @param bytesPerSecond  maximum rate of compaction I/O
+     * 
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException
+     *             if {@code interval} or {@code bytesPerSecond} is not positive
+     */
+    public Compactor(WriteAheadLog log, Duration interval, long bytesPerSecond) {
+        if (interval.isNegative() || interval.isZero() || bytesPerSecond <= 0) {
+            throw new IllegalArgumentException(
+                    "interval=" + interval + ", bytesPerSecond=" + bytesPerSecond);
+        }
+        
+        this.log = log;
+        this.dir = log.dir();
+        this.segmentSize = log.segmentSize();
+        this.interval = AbstractMessage.nanos(interval);
+        this.nanosPerByte = 1e9 / bytesPerSecond;
+        
+        thread = new Thread(this::run, "wal-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    
+    
+    /**
+     * Compact all segments that can be compacted.
+     * 
+     * @return number of bytes reclaimed
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    public synchronized long compact() {
+        position = LogReader.read(dir, segmentSize, position, log.start(),
+                new Follower(), this::throttle);
+        
+        final long snapshot = LiveMessages.latestPosition(dir);
+        
+        final long horizon = Math.min(
+                Math.min(log.position(), position),
+                snapshot < 0 ? Long.MAX_VALUE : snapshot) / segmentSize;
+        
+        final long[] numbers;
+        
+        try (Stream<Path> files = Files.list(dir)) {
+            numbers = files.mapToLong(WriteAheadLog::segmentNumber)
+                    .filter(n -> n >= 0 && n < horizon)
+                    .sorted()
+                    .toArray();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        long sum = 0;
+        dirty = false;
+        
+        for (long n : numbers) {
+            if (closed) {
+                break;
+            }
+            
+            sum += snapshot < 0 ? rewrite(n) : delete(n);
+        }
+        
+        reclaimed.add(sum);
+        return sum;
+    }
+    
+    /**
+     * Returns the total number of bytes reclaimed.
+     * 
+     * @return the total number of bytes reclaimed
+     */
+    public long reclaimed() {
+        return reclaimed.sum();
+    }
+    
+    /**
+     * Returns the number of segments rewritten.
+     * 
+     * @return the number of segments rewritten
+     */
+    public long rewritten() {
+        return rewritten.sum();
+    }
+    
+    /**
+     * Returns the number of segments deleted.
+     * 
+     * @return the number of segments deleted
+     */
+    public long deleted() {
+        return deleted.sum();
+    }
+    
+    /**
+     * Returns the number of background compactions that failed. A failed
+     * compaction is retried after the next interval.
+     * 
+     * @return the number of failed background compactions
+     */
+    public long failures() {
+        return failures.sum();
+    }
+    
+    /**
+     * Returns the exception of the last failed background compaction, or {@code
+     * null} if none has failed.
+     * 
+     * @return the exception of the last failed compaction, or {@code null}
+     */
+    public Throwable failure() {
+        return failure;
+    }
+    
+    /**
+     * Stop compacting. A segment being rewritten is allowed to complete.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    
+    
+    /**
+     * Rewrite a segment with only the records of live messages, or delete the
+     * segment if no message is live.<p>
+     * 
+     * Once a segment that keeps the push of a completed message has been
+     * passed, the complete records of later segments are kept, or the message
+     * would be recovered again.
+     * 
+     * @return number of bytes reclaimed
+     */
+    private long rewrite(long number) {
+        final Path file = WriteAheadLog.file(dir, number);
+        final ByteBuffer src = LogReader.map(dir, number, segmentSize);
+        final int size = src.capacity();
+        
+        throttle(size);
+        
+        final ByteBuffer dst = ByteBuffer.allocate(size);
+        final boolean[] dead = {false};
+        
+        LogReader.records(src, (type, queue, id, offset, length) -> {
+            final Live ids = live.get(queue);
+            
+            final boolean keep = type == WriteAheadLog.COMPLETE ?
+                    dirty : ids != null && ids.contains(id);
+            
+            if (keep) {
+                final ByteBuffer record = src.duplicate();
+                record.limit(offset + length).position(offset);
+                dst.put(record);
+            }
+            else if (type == WriteAheadLog.PUSH || type == WriteAheadLog.DELAYED) {
+                dead[0] = true;
+            }
+        });
+        
+        if (dst.position() == 0) {
+            return delete(number);
+        }
+        
+        if (dst.position() > size / 2) {
+            dirty |= dead[0];
+            return 0;
+        }
+        
+        dst.flip();
+        throttle(dst.remaining());
+        
+        final Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                while (dst.hasRemaining()) {
+                    ch.write(dst);
+                }
+                
+                ch.force(true);
+            }
+            
+            Files.move(tmp, file, ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        log.unmap(number);
+        rewritten.increment();
+        return size - dst.limit();
+    }
+    
+    /**
+     * Delete a segment.
+     * 
+     * @return number of bytes reclaimed
+     */
+    private long delete(long number) {
+        final Path file = WriteAheadLog.file(dir, number);
+        
+        try {
+            final long size = Files.size(file);
+            Files.delete(file);
+            log.unmap(number);
+            deleted.increment();
+            return size;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Wait until the I/O budget allow the specified number of bytes.
+     */
+    private void throttle(int bytes) {
+        final long now = System.nanoTime();
+        
+        // ..no saving up budget while idle
+        if (budget - now < 0) {
+            budget = now;
+        }
+        
+        final long wait = budget - now;
+        budget += (long) (bytes * nanosPerByte);
+        
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+    
+    private void run() {
+        while (!closed) {
+            LockSupport.parkNanos(interval);
+            
+            if (closed) {
+                break;
+            }
+            
+            try {
+                compact();
+            }
+            catch (Throwable e) {
+                // ..the thread must survive whatever went wrong, or no compaction
+                // is ever attempted again
+                failure = e;
+                failures.increment();
+            }
+        }
+    }
+    
+    /**
+     * Track the ids of live messages. The content of a push is not read.
+     */
+    private final class Follower implements LogReader.Visitor {
+        @Override
+        public void pushed(String queue, long id, int priority, String group,
+                ByteBuffer content, long location, long due)
+        {
+            live.computeIfAbsent(queue, k -> new Live()).add(id);
+        }
+        
+        @Override
+        public void leased(String queue, long id, int deliveries) {
+            // Empty
+        }
+        
+        @Override
+        public void completed(String queue, long id) {
+            final Live ids = live.get(queue);
+            
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                live.remove(queue);
+            }
+        }
+    }
+    
+    /**
+     * The live message ids of one queue.<p>
+     * 
+     * Ids are assigned in increasing order and mostly completed in the same
+     * order, so most records of an old segment refer to ids below a low
+     * watermark, under which no id is live. Those are rejected without a
+     * lookup. The ids at or above the watermark are kept in an open-addressed
+     * table of primitive longs, using linear probing.
+     */
+    private static final class Live {
+        /** Not a message id. */
+        private static final long FREE = Long.MIN_VALUE;
+        
+        /** Max ids stepped over per removal, the watermark may lag behind. */
+        private static final int STEPS = 64;
+        
+        private long[] table = newTable(16);
+        
+        private int size;
+        
+        /** No live id is below this id. */
+        private long low = Long.MAX_VALUE;
+        
+        /** One more than the highest id added. */
+        private long high = Long.MIN_VALUE;
+        
+        void add(long id) {
+            if (size * 2 >= table.length) {
+                grow();
+            }
+            
+            if (insert(table, id)) {
+                ++size;
+                low  = Math.min(low, id);
+                high = Math.max(high, id + 1);
+            }
+        }
+        
+        boolean contains(long id) {
+            return id >= low && id < high && find(id) >= 0;
+        }
+        
+        boolean remove(long id) {
+            if (id < low || id >= high) {
+                return false;
+            }
+            
+            int i = find(id);
+            
+            if (i < 0) {
+                return false;
+            }
+            
+            // Shift back the entries of the probe sequence that follow
+            final int mask = table.length - 1;
+            
+            for (int j = (i + 1) & mask; table[j] != FREE; j = (j + 1) & mask) {
+                final int home = slot(table[j], mask);
+                
+                // ..move the entry unless its home lies cyclically in (i, j]
+                if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            
+            table[i] = FREE;
+            --size;
+            
+            if (size == 0) {
+                low = high;
+            }
+            else {
+                for (int n = 0; n < STEPS && low < high && find(low) < 0; ++n) {
+                    ++low;
+                }
+            }
+            
+            return true;
+        }
+        
+        boolean isEmpty() {
+            return size == 0;
+        }
+        
+        private int find(long id) {
+            final int mask = table.length - 1;
+            
+            for (int i = slot(id, mask); table[i] != FREE; i = (i + 1) & mask) {
+                if (table[i] == id) {
+                    return i;
+                }
+            }
+            
+            return -1;
+        }
+        
+        private void grow() {
+            final long[] bigger = newTable(table.length * 2);
+            
+            for (long id : table) {
+                if (id != FREE) {
+                    insert(bigger, id);
+                }
+            }
+            
+            table = bigger;
+        }
+        
+        private static boolean insert(long[] table, long id) {
+            final int mask = table.length - 1;
+            int i = slot(id, mask);
+            
+            while (table[i] != FREE) {
+                if (table[i] == id) {
+                    return false;
+                }
+                
+                i = (i + 1) & mask;
+            }
+            
+            table[i] = id;
+            return true;
+        }
+        
+        private static int slot(long id, int mask) {
+            // ..spread the sequential ids, and the incarnation in the high bits
+            final long h = id * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+        
+        private static long[] newTable(int length) {
+            final long[] table = new long[length];
+            Arrays.fill(table, FREE);
+            return table;
+        }
+    }
+}
\ No newline at end of file
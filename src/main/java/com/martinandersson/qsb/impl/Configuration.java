@@ -1,10 +1,13 @@
 package com.martinandersson.qsb.impl;
 
 import com.martinandersson.qsb.api.QueueService;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Map;
+import static java.util.Objects.requireNonNull;
 import java.util.Queue;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 /**
@@ -39,12 +42,46 @@ public class Configuration<M>
     
     private final BiFunction<String, String, M> messageFactory;
     
+    private BiFunction<String, byte[], M> payloadFactory;
+    
+    private BiFunction<String, Payload, M> offHeapFactory;
+    
     private Duration timeout;
     
-    private Lockable<Map<String, Lockable<Queue<M>>>> map;
+    private Lockable<Map<String, QueueState<M>>> map;
     
     private Supplier<Lockable<Queue<M>>> queueFactory;
     
+    private Duration dedupWindow = Duration.ofMinutes(5);
+    
+    private int dedupKeys = 10_000;
+    
+    private int maxDeliveries = Integer.MAX_VALUE;
+    
+    private Function<String, String> deadLetterQueue;
+    
+    private int capacity = Integer.MAX_VALUE;
+    
+    private Overflow overflow = Overflow.REJECT;
+    
+    private Duration blockTimeout = Duration.ZERO;
+    
+    private long memoryBudget = Long.MAX_VALUE;
+    
+    private int slabSize, slabPool;
+    
+    private Path mappedDir;
+    
+    private Path spillDir;
+    
+    private long spillThreshold;
+    
+    private int spillSegment, readAhead;
+    
+    private Journal journal;
+    
+    private Recovery restore;
+    
     
     
     /**
@@ -78,7 +115,7 @@ public class Configuration<M>
      * 
      * @see AbstractQS
      */
-    public Configuration<M> map(Lockable<Map<String, Lockable<Queue<M>>>> map) {
+    public Configuration<M> map(Lockable<Map<String, QueueState<M>>> map) {
         requireNotBuilt();
         this.map = map;
         return this;
@@ -98,6 +135,295 @@ public class Configuration<M>
         return this;
     }
     
+    /**
+     * Set factory of messages with {@code byte[]} content. If not set, content
+     * pushed as bytes is decoded and passed to the message factory.
+     * 
+     * @param factory  message factory
+     * 
+     * @return this, for chaining
+     * 
+     * @see QueueService#push(String, byte[])
+     */
+    public Configuration<M> payload(BiFunction<String, byte[], M> factory) {
+        requireNotBuilt();
+        this.payloadFactory = factory;
+        return this;
+    }
+    
+    /**
+     * Set factory of messages with content stored off-heap. Must be set for
+     * {@linkplain #slabs(int, int) slabs} or {@linkplain #mapped(Path, int)
+     * mapped segments} to be used.
+     * 
+     * @param factory  message factory
+     * 
+     * @return this, for chaining
+     */
+    public Configuration<M> offHeap(BiFunction<String, Payload, M> factory) {
+        requireNotBuilt();
+        this.offHeapFactory = factory;
+        return this;
+    }
+    
+    /**
+     * Set how long, and how many, deduplication keys are remembered per queue.
+     * The defaults are 5 minutes and 10 000 keys.
+     * 
+     * @param window   for how long a key is remembered
+     * @param maxKeys  max number of keys remembered per queue
+     * 
+     * @return this, for chaining
+     * 
+     * @throws IllegalArgumentException
+     *             if {@code window} is negative or {@code maxKeys} is less than 1
+     * 
+     * @see QueueService#pushIdempotent(String, String, String)
+     */
+    public Configuration<M> deduplication(Duration window, int maxKeys) {
+        requireNotBuilt();
+        
+        if (window.isNegative() || maxKeys < 1) {
+            throw new IllegalArgumentException("Window: " + window + ". Keys: " + maxKeys);
+        }
+        
+        this.dedupWindow = window;
+        this.dedupKeys   = maxKeys;
+        return this;
+    }
+    
+    /**
+     * Move messages that has been delivered {@code maxDeliveries} times, and
+     * time out yet again, to a dead-letter queue.<p>
+     * 
+     * The dead-letter queue of a queue is given by the specified function, for
+     * example {@code q -> q + ".dlq"}. The message is pushed to the dead-letter
+     * queue as a new message. Default is to redeliver messages forever.
+     * 
+     * @param maxDeliveries  max number of deliveries
+     * @param queue          function that map a queue to its dead-letter queue
+     * 
+     * @return this, for chaining
+     * 
+     * @throws IllegalArgumentException if {@code maxDeliveries} is less than 1
+     * @throws NullPointerException if {@code queue} is {@code null}
+     */
+    public Configuration<M> deadLetter(int maxDeliveries, Function<String, String> queue) {
+        requireNotBuilt();
+        
+        if (maxDeliveries < 1) {
+            throw new IllegalArgumentException("Max deliveries: " + maxDeliveries);
+        }
+        
+        this.maxDeliveries   = maxDeliveries;
+        this.deadLetterQueue = requireNonNull(queue);
+        return this;
+    }
+    
+    /**
+     * Bound the number of messages per queue. Default is unbounded queues.<p>
+     * 
+     * A message count from the time it is pushed until the time it is
+     * completed, or dropped. Delayed messages count too. The bound is soft;
+     * concurrent pushes to a lock-free queue may overshoot it slightly.
+     * 
+     * @param capacity  max number of messages per queue
+     * @param overflow  what to do when a queue is full
+     * @param timeout   for how long a push may block (only used by {@code
+     *                  Overflow.BLOCK})
+     * 
+     * @return this, for chaining
+     * 
+     * @throws IllegalArgumentException
+     *             if {@code capacity} is less than 1 or {@code timeout} is negative
+     * @throws NullPointerException if {@code overflow} is {@code null}
+     */
+    public Configuration<M> capacity(int capacity, Overflow overflow, Duration timeout) {
+        requireNotBuilt();
+        
+        if (capacity < 1 || timeout.isNegative()) {
+            throw new IllegalArgumentException("Capacity: " + capacity + ". Timeout: " + timeout);
+        }
+        
+        this.capacity     = capacity;
+        this.overflow     = requireNonNull(overflow);
+        this.blockTimeout = timeout;
+        return this;
+    }
+    
+    /**
+     * Set a global memory budget, in bytes of message content. A push fail
+     * fast with an {@code IllegalStateException} if the budget would be
+     * exceeded. Default is no budget.
+     * 
+     * @param bytes  memory budget
+     * 
+     * @return this, for chaining
+     * 
+     * @throws IllegalArgumentException if {@code bytes} is negative
+     * 
+     * @see AbstractQS#bytes()
+     */
+    public Configuration<M> memoryBudget(long bytes) {
+        requireNotBuilt();
+        
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Negative: " + bytes);
+        }
+        
+        this.memoryBudget = bytes;
+        return this;
+    }
+    
+    /**
+     * Spill the tail of a queue to disk once the content size of all messages
+     * held in memory would cross the specified threshold. Default is to keep
+     * all messages in memory.<p>
+     * 
+     * The head of each queue stay in memory. Once a queue has spilled, all
+     * messages pushed to it are appended to sequential segment files in the
+     * specified directory, until the spilled tail has been read back. A poll
+     * that find less than {@code readAhead} bytes of content in memory read
+     * back the next {@code readAhead} bytes from disk.<p>
+     * 
+     * Spilled messages keep their order, but are not subject to priorities
+     * until read back. Spill files are deleted as they are read back, they
+     * are not a persistence mechanism (see {@link #journal(Journal)}). If a
+     * message can not be written to disk, it is kept in memory when the
+     * spilled tail is empty. Otherwise the push fail with an {@code
+     * UncheckedIOException}, the message would be delivered ahead of the tail.
+     * 
+     * @param dir          directory of spill files
+     * @param threshold    memory threshold, in bytes of message content
+     * @param segmentSize  size of each spill file, in bytes
+     * @param readAhead    content size to read back at a time, in bytes
+     * 
+     * @return this, for chaining
+     * 
+     * @throws NullPointerException if {@code dir} is {@code null}
+     * @throws IllegalArgumentException
+     *             if {@code threshold} is negative, or {@code segmentSize} or
+     *             {@code readAhead} is not positive
+     * 
+     * @see AbstractQS#spilled()
+     */
+    public Configuration<M> spill(Path dir, long threshold, int segmentSize, int readAhead) {
+        requireNotBuilt();
+        
+        if (threshold < 0 || segmentSize <= 0 || readAhead <= 0) {
+            throw new IllegalArgumentException("threshold=" + threshold +
+                    ", segmentSize=" + segmentSize + ", readAhead=" + readAhead);
+        }
+        
+        this.spillDir       = requireNonNull(dir);
+        this.spillThreshold = threshold;
+        this.spillSegment   = segmentSize;
+        this.readAhead      = readAhead;
+        return this;
+    }
+    
+    /**
+     * Store message content off-heap, in direct {@code ByteBuffer} slabs of
+     * the specified size. Default is to store content on the heap.<p>
+     * 
+     * A slab is recycled once all messages in it has been evicted. Up to
+     * {@code pool} recycled slabs are kept for reuse.<p>
+     * 
+     * Replaces segments set by {@link #mapped(Path, int)}.
+     * 
+     * @param size  slab size, in bytes
+     * @param pool  max number of recycled slabs to keep
+     * 
+     * @return this, for chaining
+     * 
+     * @throws IllegalArgumentException
+     *             if {@code size} is not positive or {@code pool} is negative
+     */
+    public Configuration<M> slabs(int size, int pool) {
+        requireNotBuilt();
+        
+        if (size <= 0 || pool < 0) {
+            throw new IllegalArgumentException("size=" + size + ", pool=" + pool);
+        }
+        
+        this.slabSize  = size;
+        this.slabPool  = pool;
+        this.mappedDir = null;
+        return this;
+    }
+    
+    /**
+     * Store message content in memory-mapped segment files of the specified
+     * size, in the specified directory. Default is to store content on the
+     * heap.<p>
+     * 
+     * The buffer of a message is a read-only slice of the mapped segment; a
+     * poll does not copy the content. Each segment count its payloads, and the
+     * file is deleted when the last payload has been released, which happens
+     * when a completed message is evicted. Segments are never reused, and a
+     * segment is only unmapped once no consumer hold a view of it.<p>
+     * 
+     * Replaces slabs set by {@link #slabs(int, int)}.
+     * 
+     * @param dir          directory of segment files
+     * @param segmentSize  segment size, in bytes
+     * 
+     * @return this, for chaining
+     * 
+     * @throws NullPointerException if {@code dir} is {@code null}
+     * @throws IllegalArgumentException if {@code segmentSize} is not positive
+     */
+    public Configuration<M> mapped(Path dir, int segmentSize) {
+        requireNotBuilt();
+        
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Not positive: " + segmentSize);
+        }
+        
+        this.mappedDir = requireNonNull(dir);
+        this.slabSize  = segmentSize;
+        this.slabPool  = 0;
+        return this;
+    }
+    
+    /**
+     * Set a journal that receive all events that change the state of a
+     * message. Default is no journal.
+     * 
+     * @param journal  journal
+     * 
+     * @return this, for chaining
+     * 
+     * @see WriteAheadLog
+     */
+    public Configuration<M> journal(Journal journal) {
+        requireNotBuilt();
+        this.journal = journal;
+        return this;
+    }
+    
+    /**
+     * Restore recovered messages into the queue service when constructed.
+     * Default is to start empty.<p>
+     * 
+     * Restored messages keep their id, priority, group and delivery count, but
+     * they are not journaled again; they are already in the log they were
+     * recovered from. Capacity limits do not apply to restored messages.
+     * 
+     * @param recovery  recovered messages
+     * 
+     * @return this, for chaining
+     * 
+     * @throws NullPointerException if {@code recovery} is {@code null}
+     * 
+     * @see Recovery#load(java.nio.file.Path, int)
+     */
+    public Configuration<M> restore(Recovery recovery) {
+        requireNotBuilt();
+        this.restore = requireNonNull(recovery);
+        return this;
+    }
+    
     
     
     private void requireNotBuilt() {
@@ -131,7 +457,7 @@ public class Configuration<M>
         }
         
         /** @see AbstractQS  */
-        Lockable<Map<String, Lockable<Queue<M>>>> map() {
+        Lockable<Map<String, QueueState<M>>> map() {
             return map;
         }
         
@@ -139,9 +465,104 @@ public class Configuration<M>
             return messageFactory;
         }
         
+        /** @see #payload(BiFunction)  */
+        BiFunction<String, byte[], M> payloadFactory() {
+            return payloadFactory;
+        }
+        
+        /** @see #offHeap(BiFunction)  */
+        BiFunction<String, Payload, M> offHeapFactory() {
+            return offHeapFactory;
+        }
+        
         /** @see AbstractQS  */
         Supplier<Lockable<Queue<M>>> queueFactory() {
             return queueFactory;
         }
+        
+        /** @see QueueService#pushIdempotent(String, String, String)  */
+        Duration dedupWindow() {
+            return dedupWindow;
+        }
+        
+        /** @see QueueService#pushIdempotent(String, String, String)  */
+        int dedupKeys() {
+            return dedupKeys;
+        }
+        
+        /** @see #deadLetter(int, Function)  */
+        int maxDeliveries() {
+            return maxDeliveries;
+        }
+        
+        /** @see #deadLetter(int, Function)  */
+        Function<String, String> deadLetterQueue() {
+            return deadLetterQueue;
+        }
+        
+        /** @see #capacity(int, Overflow, Duration)  */
+        int capacity() {
+            return capacity;
+        }
+        
+        /** @see #capacity(int, Overflow, Duration)  */
+        Overflow overflow() {
+            return overflow;
+        }
+        
+        /** @see #capacity(int, Overflow, Duration)  */
+        Duration blockTimeout() {
+            return blockTimeout;
+        }
+        
+        /** @see #memoryBudget(long)  */
+        long memoryBudget() {
+            return memoryBudget;
+        }
+        
+        /** @see #slabs(int, int)  */
+        int slabSize() {
+            return slabSize;
+        }
+        
+        /** @see #slabs(int, int)  */
+        int slabPool() {
+            return slabPool;
+        }
+        
+        /** @see #mapped(Path, int)  */
+        Path mappedDir() {
+            return mappedDir;
+        }
+        
+        /** @see #spill(Path, long, int, int)  */
+        Path spillDir() {
+            return spillDir;
+        }
+        
+        /** @see #spill(Path, long, int, int)  */
+        long spillThreshold() {
+            return spillThreshold;
+        }
+        
+        /** @see #spill(Path, long, int, int)  */
+        int spillSegment() {
+            return spillSegment;
+        }
+        
+        /** @see #spill(Path, long, int, int)  */
+        int readAhead() {
+            return readAhead;
+        }
+        
+        /** @see #journal(Journal)  */
+        Journal journal() {
+            return journal;
+        }
+        
+        /** @see #restore(Recovery)  */
+        Recovery restore() {
+            return restore;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package com.martinandersson.qsb.impl;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of deduplication keys recently pushed to one queue.<p>
+ * 
+ * Keys are evicted when they are older than the configured window, or when the
+ * cache holds more than the configured number of keys, whichever comes first.
+ * Since all keys live equally long, insertion order is also expiration order
+ * and eviction only ever looks at the eldest keys.<p>
+ * 
+ * All methods are thread-safe.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class DedupCache
+{
+    private final long window;
+    
+    private final int maxKeys;
+    
+    /** Key to expiration time in {@code System.nanoTime()}. */
+    private final LinkedHashMap<String, Long> keys = new LinkedHashMap<>();
+    
+    
+    
+    DedupCache(Duration window, int maxKeys) {
+        this.window  = window.toNanos();
+        this.maxKeys = maxKeys;
+    }
+    
+    
+    
+    /**
+     * Remember specified {@code key}, unless it is already remembered.
+     * 
+     * @param key  deduplication key
+     * 
+     * @return {@code true} if the key was not seen within the window, otherwise
+     * {@code false}
+     */
+    synchronized boolean add(String key) {
+        final long now = System.nanoTime();
+        
+        evictExpired(now);
+        
+        if (keys.containsKey(key)) {
+            return false;
+        }
+        
+        keys.put(key, now + window);
+        
+        if (keys.size() > maxKeys) {
+            Iterator<String> it = keys.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Forget specified {@code key}.
+     * 
+     * @param key  deduplication key
+     */
+    synchronized void remove(String key) {
+        keys.remove(key);
+    }
+    
+    /**
+     * Returns {@code true} if no key is remembered, otherwise {@code false}.
+     * 
+     * @return {@code true} if no key is remembered, otherwise {@code false}
+     */
+    synchronized boolean isEmpty() {
+        evictExpired(System.nanoTime());
+        return keys.isEmpty();
+    }
+    
+    private void evictExpired(long now) {
+        Iterator<Map.Entry<String, Long>> it = keys.entrySet().iterator();
+        
+        while (it.hasNext() && it.next().getValue() - now <= 0) {
+            it.remove();
+        }
+    }
+}
\ No newline at end of file
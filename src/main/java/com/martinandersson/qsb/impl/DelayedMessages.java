@@ -0,0 +1,99 @@
+package com.martinandersson.qsb.impl;
+
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Messages of one queue that are not yet due for delivery, ordered by due
+ * time.<p>
+ * 
+ * Delayed messages are kept out of the queue so that the poll iteration does
+ * not have to walk past them. Instead, they are promoted to the queue once
+ * due.<p>
+ * 
+ * All methods are thread-safe. {@link #isDue(long)} does not lock and is meant
+ * to be used as a cheap guard in front of {@link #promote(long, Consumer)}.
+ * 
+ * @param <M>  concrete message implementation type
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class DelayedMessages<M>
+{
+    private static final class Entry<M> implements Comparable<Entry<M>> {
+        final M message;
+        final long due;
+        
+        Entry(M message, long due) {
+            this.message = message;
+            this.due = due;
+        }
+        
+        @Override
+        public int compareTo(Entry<M> other) {
+            return Long.compare(due - other.due, 0);
+        }
+    }
+    
+    
+    
+    private final PriorityQueue<Entry<M>> entries = new PriorityQueue<>();
+    
+    /**
+     * Due time of the head, {@code Long.MAX_VALUE} if empty.
+     */
+    private volatile long next = Long.MAX_VALUE;
+    
+    
+    
+    /**
+     * Add specified message.
+     * 
+     * @param message  message
+     * @param due      due time, in {@code System.nanoTime()}
+     */
+    synchronized void add(M message, long due) {
+        entries.add(new Entry<>(message, due));
+        next = entries.peek().due;
+    }
+    
+    /**
+     * Returns {@code true} if at least one message is due, otherwise {@code
+     * false}.
+     * 
+     * @param now  current {@code System.nanoTime()}
+     * 
+     * @return {@code true} if at least one message is due
+     */
+    boolean isDue(long now) {
+        final long n = next;
+        return n != Long.MAX_VALUE && n - now <= 0;
+    }
+    
+    /**
+     * Returns {@code true} if there are no delayed messages, otherwise {@code
+     * false}.
+     * 
+     * @return {@code true} if there are no delayed messages
+     */
+    boolean isEmpty() {
+        return next == Long.MAX_VALUE;
+    }
+    
+    /**
+     * Remove all due messages and hand them over to the specified {@code
+     * sink}, in due order.
+     * 
+     * @param now   current {@code System.nanoTime()}
+     * @param sink  receiver of due messages
+     */
+    synchronized void promote(long now, Consumer<M> sink) {
+        Entry<M> e;
+        
+        while ((e = entries.peek()) != null && e.due - now <= 0) {
+            sink.accept(entries.poll().message);
+        }
+        
+        next = e == null ? Long.MAX_VALUE : e.due;
+    }
+}
\ No newline at end of file
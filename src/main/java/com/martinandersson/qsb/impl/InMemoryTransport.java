@@ -0,0 +1,62 @@
+package com.martinandersson.qsb.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ReplicationTransport} to a {@link Standby} in the same JVM.<p>
+ * 
+ * Batches are applied in order by a thread of the transport, so the replicator
+ * never wait for the standby other than by its window of batches in flight.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class InMemoryTransport implements ReplicationTransport, AutoCloseable
+{
+    private final Standby standby;
+    
+    private final ExecutorService applier = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "replication-applier");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    
+    
+    /**
+     * Constructs an {@code InMemoryTransport}.
+     * 
+     * @param standby  standby to apply batches to
+     */
+    public InMemoryTransport(Standby standby) {
+        this.standby = standby;
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<?> send(ByteBuffer batch) {
+        return CompletableFuture.runAsync(() -> standby.apply(batch), applier);
+    }
+    
+    /**
+     * Apply the batches already sent, then stop the applier thread.
+     */
+    @Override
+    public void close() {
+        applier.shutdown();
+        
+        try {
+            applier.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
\ No newline at end of file
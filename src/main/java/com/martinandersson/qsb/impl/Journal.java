@@ -0,0 +1,91 @@
+package com.martinandersson.qsb.impl;
+
+import com.martinandersson.qsb.api.Message;
+import java.time.Instant;
+
+/**
+ * Receives the events of {@link AbstractQS} that change the state of a
+ * message, for example to make the queue service durable.<p>
+ * 
+ * Events are reported while holding whatever access the queue service hold at
+ * the time, so an implementation should be quick and must not call back into
+ * the queue service. Events of different queues may be reported concurrently.
+ * Waiting for the events to become durable is a separate step, see {@link
+ * #sync()}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see Configuration#journal(Journal)
+ * @see WriteAheadLog
+ * @see Replicator
+ */
+public interface Journal
+{
+    /**
+     * A message has entered its queue and been assigned an id.
+     * 
+     * @param message  message
+     * @param group    message group (may be {@code null})
+     */
+    void pushed(Message message, String group);
+    
+    /**
+     * A message has been pushed with a delay and been assigned an id. The
+     * message enter its queue once due, which is not reported.
+     * 
+     * @implSpec
+     * The default implementation report the message as {@linkplain
+     * #pushed(Message, String) pushed}, without the due time.
+     * 
+     * @param message  message
+     * @param group    message group (may be {@code null})
+     * @param due      when the message is due
+     */
+    default void delayed(Message message, String group, Instant due) {
+        pushed(message, group);
+    }
+    
+    /**
+     * Verify that a message can be journaled, before it enters its queue.<p>
+     * 
+     * Called by a pushing thread, without holding any access.
+     * 
+     * @implSpec
+     * The default implementation does nothing.
+     * 
+     * @param message  message about to be pushed
+     * @param group    message group (may be {@code null})
+     * 
+     * @throws IllegalArgumentException if the message can not be journaled
+     */
+    default void check(Message message, String group) {
+        // Empty
+    }
+    
+    /**
+     * A message has been delivered, or its lease has been changed.
+     * 
+     * @param message  message
+     */
+    void leased(Message message);
+    
+    /**
+     * A message has been completed.
+     * 
+     * @param queue  queue [name]
+     * @param id     message id
+     */
+    void completed(String queue, long id);
+    
+    /**
+     * Wait until all events reported by the calling thread are durable.<p>
+     * 
+     * Called by a pushing thread after the push, without holding any access.
+     * 
+     * @implSpec
+     * The default implementation does nothing.
+     */
+    default void sync() {
+        // Empty
+    }
+}
\ No newline at end of file
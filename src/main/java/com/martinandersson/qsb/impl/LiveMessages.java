@@ -0,0 +1,559 @@
+package com.martinandersson.qsb.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The live state of a queue service as described by its {@link WriteAheadLog};
+ * pending messages in push order, their delivery counts, and the next message
+ * id of each queue.<p>
+ * 
+ * The state is built by applying log records, and may be saved to and loaded
+ * from a snapshot file. Applying a record is idempotent, so the log may be
+ * replayed from any position at or before the position of the snapshot.<p>
+ * 
+ * A state that follow a log on disk does not hold the content of its
+ * messages, only where the content is; in a segment of the log, or in the
+ * snapshot last saved or loaded. The content is read back when a snapshot is
+ * saved and when the state is {@linkplain #contents() restored}. A state
+ * without a log, such as the one of a {@link Standby}, keep a copy of the
+ * content of each message.<p>
+ * 
+ * Snapshot layout, written using a {@code DataOutputStream}:
+ * 
+ * <pre>
+ *   int   magic, int version, long log position, int number of queues
+ *   per queue:
+ *     UTF name, long next id, int number of messages
+ *     per message:
+ *       long id, byte priority, boolean grouped [, UTF group],
+ *       int deliveries, long due time (epoch milliseconds, 0 if not delayed),
+ *       int content length, content
+ * </pre>
+ * 
+ * Not thread-safe.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class LiveMessages implements LogReader.Visitor
+{
+    private static final int MAGIC = 0x51534253, // "QSBS"
+                             VERSION = 2;
+    
+    private static final String PREFIX = "snapshot-",
+                                SUFFIX = ".snap";
+    
+    static final class Entry {
+        /** {@code null} if the content is located. */
+        final byte[] content;
+        final int length;
+        /**
+         * Log position of the content if not negative, otherwise the
+         * complement of the offset of the content in the snapshot.
+         */
+        long location;
+        final int priority;
+        final String group;
+        final long due;
+        int deliveries;
+        
+        Entry(byte[] content, int length, long location, int priority, String group, long due, int deliveries) {
+            this.content    = content;
+            this.length     = length;
+            this.location   = location;
+            this.priority   = priority;
+            this.group      = group;
+            this.due        = due;
+            this.deliveries = deliveries;
+        }
+    }
+    
+    static final class Log {
+        long nextId;
+        final Map<Long, Entry> messages = new LinkedHashMap<>();
+    }
+    
+    private final Map<String, Log> queues = new HashMap<>();
+    
+    /** Directory of the log, or {@code null} if the state has no log. */
+    private final Path dir;
+    
+    private final int segmentSize;
+    
+    /** Snapshot last saved or loaded, or {@code null}. */
+    private Path snapshot;
+    
+    /** Log position up to which records has been applied. */
+    private long position;
+    
+    /** Records applied since constructed or loaded. */
+    private long applied;
+    
+    
+    
+    /**
+     * Constructs an empty {@code LiveMessages} that keep a copy of the content
+     * of each message.
+     */
+    LiveMessages() {
+        this(null, 0);
+    }
+    
+    /**
+     * Constructs an empty {@code LiveMessages} that follow the log in the
+     * specified directory.
+     * 
+     * @param dir          directory of the log and snapshots
+     * @param segmentSize  size of each segment file, in bytes
+     */
+    LiveMessages(Path dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+    
+    
+    
+    /**
+     * Returns queue name to queue log.
+     * 
+     * @return queue name to queue log
+     */
+    Map<String, Log> queues() {
+        return queues;
+    }
+    
+    long position() {
+        return position;
+    }
+    
+    void position(long position) {
+        this.position = position;
+    }
+    
+    long applied() {
+        return applied;
+    }
+    
+    /**
+     * Returns the number of pending messages.
+     * 
+     * @return the number of pending messages
+     */
+    long messages() {
+        return queues.values().stream().mapToLong(q -> q.messages.size()).sum();
+    }
+    
+    @Override
+    public void pushed(String queue, long id, int priority, String group,
+            ByteBuffer content, long location, long due)
+    {
+        final Log q = queues.computeIfAbsent(queue, k -> new Log());
+        
+        q.nextId = Math.max(q.nextId, id + 1);
+        
+        if (!q.messages.containsKey(id)) {
+            final int length = content.remaining();
+            final byte[] copy;
+            
+            if (dir == null || location < 0) {
+                copy = new byte[content.remaining()];
+                content.get(copy);
+            }
+            else {
+                copy = null;
+            }
+            
+            q.messages.put(id, new Entry(copy, length, location, priority, group, due, 0));
+        }
+        
+        ++applied;
+    }
+    
+    @Override
+    public void leased(String queue, long id, int deliveries) {
+        final Log q = queues.get(queue);
+        final Entry e = q == null ? null : q.messages.get(id);
+        
+        if (e != null) {
+            e.deliveries = Math.max(e.deliveries, deliveries);
+        }
+        
+        ++applied;
+    }
+    
+    @Override
+    public void completed(String queue, long id) {
+        final Log q = queues.get(queue);
+        
+        if (q != null) {
+            q.messages.remove(id);
+        }
+        
+        ++applied;
+    }
+    
+    
+    
+    /**
+     * Returns a reader of the content of the messages.
+     * 
+     * @return a reader of the content of the messages
+     */
+    Contents contents() {
+        return new Contents();
+    }
+    
+    /**
+     * Write a snapshot to the directory of the log and delete older
+     * snapshots. The messages are then located in the new snapshot.<p>
+     * 
+     * The snapshot is first written to a temporary file which is forced and
+     * then atomically renamed. Older snapshots are deleted only once the
+     * rename has been forced too, so that a crash never leaves the directory
+     * without a complete snapshot.
+     * 
+     * @return the snapshot file
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    Path save() {
+        final Path file = dir.resolve(String.format(PREFIX + "%016d" + SUFFIX, position)),
+                   tmp  = dir.resolve(file.getFileName() + ".tmp");
+        
+        // Offset of the content of each message, in iteration order
+        final long[] offsets = new long[(int) messages()];
+        
+        try {
+            try (Contents contents = contents();
+                 FileChannel ch = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                final CountingOutput count = new CountingOutput(
+                        new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16));
+                
+                final DataOutputStream out = new DataOutputStream(count);
+                
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(position);
+                out.writeInt(queues.size());
+                
+                int i = 0;
+                
+                for (Map.Entry<String, Log> q : queues.entrySet()) {
+                    out.writeUTF(q.getKey());
+                    out.writeLong(q.getValue().nextId);
+                    out.writeInt(q.getValue().messages.size());
+                    
+                    for (Map.Entry<Long, Entry> m : q.getValue().messages.entrySet()) {
+                        final Entry e = m.getValue();
+                        
+                        out.writeLong(m.getKey());
+                        out.writeByte(e.priority);
+                        out.writeBoolean(e.group != null);
+                        
+                        if (e.group != null) {
+                            out.writeUTF(e.group);
+                        }
+                        
+                        out.writeInt(e.deliveries);
+                        out.writeLong(e.due);
+                        out.writeInt(e.length);
+                        
+                        offsets[i++] = count.count;
+                        
+                        out.write(contents.read(e));
+                    }
+                }
+                
+                out.flush();
+                ch.force(true);
+            }
+            
+            Files.move(tmp, file, ATOMIC_MOVE);
+            forceDirectory(dir);
+            
+            for (Path old : snapshots(dir)) {
+                if (!old.equals(file)) {
+                    Files.delete(old);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        int i = 0;
+        
+        for (Log q : queues.values()) {
+            for (Entry e : q.messages.values()) {
+                e.location = ~offsets[i++];
+            }
+        }
+        
+        snapshot = file;
+        return file;
+    }
+    
+    /**
+     * Load the latest snapshot of the specified directory, or return an empty
+     * state if there is no snapshot. The content of the messages is located,
+     * not read.
+     * 
+     * @param dir          directory of the log and snapshots
+     * @param segmentSize  size of each segment file, in bytes
+     * 
+     * @return the latest state
+     * 
+     * @throws UncheckedIOException on I/O error
+     * @throws IllegalStateException if the snapshot is not a snapshot
+     */
+    static LiveMessages load(Path dir, int segmentSize) {
+        final LiveMessages state = new LiveMessages(dir, segmentSize);
+        
+        final Path latest = snapshots(dir).stream()
+                .max(Path::compareTo).orElse(null);
+        
+        if (latest == null) {
+            return state;
+        }
+        
+        try (CountingInput count = new CountingInput(
+                     new BufferedInputStream(Files.newInputStream(latest), 1 << 16));
+             DataInputStream in = new DataInputStream(count)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalStateException("Not a snapshot: " + latest);
+            }
+            
+            state.position = in.readLong();
+            
+            for (int i = in.readInt(); i > 0; --i) {
+                final Log q = new Log();
+                state.queues.put(in.readUTF(), q);
+                q.nextId = in.readLong();
+                
+                for (int j = in.readInt(); j > 0; --j) {
+                    final long id = in.readLong();
+                    final int priority = in.readByte();
+                    final String group = in.readBoolean() ? in.readUTF() : null;
+                    final int deliveries = in.readInt();
+                    final long due = in.readLong();
+                    final int length = in.readInt();
+                    final long offset = count.count;
+                    
+                    if (in.skipBytes(length) != length) {
+                        throw new EOFException("Truncated snapshot: " + latest);
+                    }
+                    
+                    q.messages.put(id, new Entry(null, length, ~offset, priority, group, due, deliveries));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        state.snapshot = latest;
+        return state;
+    }
+    
+    /**
+     * Returns the log position of the latest snapshot in the specified
+     * directory, or -1 if there is no snapshot.
+     * 
+     * @param dir  directory
+     * 
+     * @return the log position of the latest snapshot, or -1
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    static long latestPosition(Path dir) {
+        return snapshots(dir).stream()
+                .map(p -> p.getFileName().toString())
+                .mapToLong(n -> Long.parseLong(n.substring(PREFIX.length(), n.length() - SUFFIX.length())))
+                .max().orElse(-1);
+    }
+    
+    private static List<Path> snapshots(Path dir) {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> {
+                        final String name = p.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .collect(Collectors.toList());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Reads the content of messages, from the log or the snapshot.
+     */
+    final class Contents implements AutoCloseable {
+        /** Mapped segments of the log, by segment number. */
+        private final Map<Long, ByteBuffer> segments = new HashMap<>();
+        
+        /** Lazily opened. */
+        private FileChannel file;
+        
+        /**
+         * Returns the content of a message.
+         * 
+         * @param e  message
+         * 
+         * @return the content
+         * 
+         * @throws UncheckedIOException on I/O error
+         */
+        byte[] read(Entry e) {
+            if (e.content != null) {
+                return e.content;
+            }
+            
+            final byte[] bytes = new byte[e.length];
+            
+            try {
+                if (e.location >= 0) {
+                    final ByteBuffer b = segments.computeIfAbsent(e.location / segmentSize,
+                            n -> LogReader.map(dir, n, segmentSize)).duplicate();
+                    
+                    b.position((int) (e.location % segmentSize));
+                    b.get(bytes);
+                }
+                else {
+                    if (file == null) {
+                        file = FileChannel.open(snapshot, READ);
+                    }
+                    
+                    final ByteBuffer b = ByteBuffer.wrap(bytes);
+                    final long offset = ~e.location;
+                    
+                    while (b.hasRemaining()) {
+                        if (file.read(b, offset + b.position()) < 0) {
+                            throw new EOFException("Truncated snapshot: " + snapshot);
+                        }
+                    }
+                }
+            }
+            catch (IOException x) {
+                throw new UncheckedIOException(x);
+            }
+            
+            return bytes;
+        }
+        
+        /**
+         * Close the snapshot, if opened.
+         * 
+         * @throws UncheckedIOException on I/O error
+         */
+        @Override
+        public void close() {
+            if (file == null) {
+                return;
+            }
+            
+            try {
+                file.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    /**
+     * Force the entries of a directory, so that a rename in it is durable.
+     * Does nothing on a platform that can not open a directory.
+     */
+    private static void forceDirectory(Path dir) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir, READ)) {
+            ch.force(true);
+        }
+        catch (AccessDeniedException e) {
+            // ..Windows
+        }
+    }
+    
+    private static final class CountingOutput extends FilterOutputStream {
+        long count;
+        
+        CountingOutput(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+    
+    private static final class CountingInput extends FilterInputStream {
+        long count;
+        
+        CountingInput(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            
+            if (b >= 0) {
+                ++count;
+            }
+            
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            
+            if (n > 0) {
+                count += n;
+            }
+            
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
\ No newline at end of file
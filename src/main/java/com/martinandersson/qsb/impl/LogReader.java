@@ -0,0 +1,260 @@
+package com.martinandersson.qsb.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Reads the records of a {@link WriteAheadLog}.<p>
+ * 
+ * A log may be read while it is being written. Segments at and after the
+ * position where the live log started are read with care; the reader stop at
+ * the first record that is still being written, so that no record is skipped.
+ * Older segments were written by a previous incarnation of the log and are
+ * read offline; a record that was never completed is considered lost and the
+ * reader move on to the next record, or the next segment if the length of the
+ * record is unknown. The records after an unknown length were never forced,
+ * see {@link WriteAheadLog}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class LogReader
+{
+    /**
+     * Receives the records of a log.
+     */
+    interface Visitor {
+        /**
+         * A message was pushed.<p>
+         * 
+         * The content is a view of the record, valid only during the call.
+         * The location is the log position of the content, or -1 if the
+         * record was not read from a log. The due time is in epoch
+         * milliseconds, or 0 if the message was not delayed.
+         */
+        void pushed(String queue, long id, int priority, String group,
+                ByteBuffer content, long location, long due);
+        
+        void leased(String queue, long id, int deliveries);
+        
+        void completed(String queue, long id);
+    }
+    
+    /**
+     * Receives the location of each record in a segment.
+     */
+    interface Records {
+        void record(byte type, String queue, long id, int offset, int length);
+    }
+    
+    private LogReader() {
+        // Empty
+    }
+    
+    /**
+     * Read all records from the specified position.
+     * 
+     * @param dir          directory of segment files
+     * @param segmentSize  size of each segment file, in bytes
+     * @param from         log position to start at
+     * @param liveFrom     log position where the live log started, or {@code
+     *                     Long.MAX_VALUE} if the log is no longer written
+     * @param visitor      receiver of records
+     * 
+     * @return the log position after the last record read
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    static long read(Path dir, int segmentSize, long from, long liveFrom, Visitor visitor) {
+        return read(dir, segmentSize, from, liveFrom, visitor, bytes -> {});
+    }
+    
+    /**
+     * Read all records from the specified position, and report the number of
+     * bytes of each segment before it is read.
+     * 
+     * @param dir          directory of segment files
+     * @param segmentSize  size of each segment file, in bytes
+     * @param from         log position to start at
+     * @param liveFrom     log position where the live log started, or {@code
+     *                     Long.MAX_VALUE} if the log is no longer written
+     * @param visitor      receiver of records
+     * @param segment      receiver of the number of bytes about to be read
+     * 
+     * @return the log position after the last record read
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    static long read(Path dir, int segmentSize, long from, long liveFrom,
+            Visitor visitor, IntConsumer segment)
+    {
+        final long[] numbers;
+        
+        try (Stream<Path> files = Files.list(dir)) {
+            numbers = files.mapToLong(WriteAheadLog::segmentNumber)
+                    .filter(n -> n >= from / segmentSize)
+                    .sorted()
+                    .toArray();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        long pos = from;
+        
+        for (long n : numbers) {
+            final long start = n * segmentSize,
+                       next  = start + segmentSize;
+            
+            final boolean live = start >= liveFrom;
+            
+            final ByteBuffer b = map(dir, n, segmentSize);
+            final long at = Math.max(pos, start);
+            
+            segment.accept((int) Math.max(0, b.capacity() - (at - start)));
+            
+            final long end = readSegment(b, at, segmentSize, live, visitor);
+            
+            if (live && end < next) {
+                return end;
+            }
+            
+            pos = next;
+        }
+        
+        return pos;
+    }
+    
+    /**
+     * Read the records of one segment.
+     * 
+     * @return the log position after the last record read, which is the start
+     *         of the next segment if the whole segment was read
+     */
+    private static long readSegment(ByteBuffer b, long pos, int segmentSize,
+            boolean live, Visitor visitor)
+    {
+        final long base = pos - pos % segmentSize;
+        int offset = (int) (pos - base);
+        
+        while (b.capacity() - offset >= WriteAheadLog.HEADER) {
+            final int length = b.getInt(offset);
+            
+            if (length == 0) {
+                // End of log or a record claimed but not yet written
+                return base + offset;
+            }
+            
+            if (length < WriteAheadLog.HEADER || length > b.capacity() - offset) {
+                // ..torn, give up the rest of the segment
+                break;
+            }
+            
+            final byte type = b.get(offset + 4);
+            
+            if (type == WriteAheadLog.PENDING) {
+                if (live) {
+                    return base + offset;
+                }
+            }
+            else if (type != WriteAheadLog.PADDING) {
+                b.position(offset + 5);
+                record(b, type, base, visitor);
+            }
+            
+            offset += length;
+        }
+        
+        return base + segmentSize;
+    }
+    
+    /**
+     * Scan all completed records of a segment that is no longer written.
+     * Padding and records that were never completed are skipped.
+     * 
+     * @param b        mapped segment
+     * @param records  receiver of record locations
+     */
+    static void records(ByteBuffer b, Records records) {
+        int offset = 0;
+        
+        while (b.capacity() - offset >= WriteAheadLog.HEADER) {
+            final int length = b.getInt(offset);
+            
+            if (length < WriteAheadLog.HEADER || length > b.capacity() - offset) {
+                // ..end of segment, or torn
+                return;
+            }
+            
+            final byte type = b.get(offset + 4);
+            
+            if (type != WriteAheadLog.PENDING && type != WriteAheadLog.PADDING) {
+                b.position(offset + 5);
+                records.record(type, string(b, b.getShort()), b.getLong(), offset, length);
+            }
+            
+            offset += length;
+        }
+    }
+    
+    /**
+     * Read the rest of a record, positioned after the type field, and report
+     * it to the visitor.
+     * 
+     * @param base  log position of the start of {@code b}, or -1 if {@code b}
+     *              is not a segment of a log
+     */
+    static void record(ByteBuffer b, byte type, long base, Visitor visitor) {
+        final String queue = string(b, b.getShort());
+        final long id = b.getLong();
+        
+        switch (type) {
+            case WriteAheadLog.PUSH:
+            case WriteAheadLog.DELAYED:
+                final int priority = b.get();
+                final short g = b.getShort();
+                final String group = g < 0 ? null : string(b, g);
+                final int start = b.position() + 4,
+                          end   = start + b.getInt(),
+                          limit = b.limit();
+                
+                final long due = type == WriteAheadLog.DELAYED ? b.getLong(end) : 0;
+                
+                b.limit(end);
+                visitor.pushed(queue, id, priority, group, b, base < 0 ? -1 : base + start, due);
+                b.limit(limit).position(type == WriteAheadLog.DELAYED ? end + 8 : end);
+                break;
+            case WriteAheadLog.LEASE:
+                visitor.leased(queue, id, b.getInt());
+                break;
+            case WriteAheadLog.COMPLETE:
+                visitor.completed(queue, id);
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type: " + type);
+        }
+    }
+    
+    private static String string(ByteBuffer b, int length) {
+        final byte[] bytes = new byte[length];
+        b.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+    
+    static ByteBuffer map(Path dir, long number, int segmentSize) {
+        try (FileChannel ch = FileChannel.open(WriteAheadLog.file(dir, number), READ)) {
+            return ch.map(READ_ONLY, 0, Math.min(ch.size(), segmentSize));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
\ No newline at end of file
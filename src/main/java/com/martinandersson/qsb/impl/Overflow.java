@@ -0,0 +1,32 @@
+package com.martinandersson.qsb.impl;
+
+/**
+ * What to do when a message is pushed to a bounded queue that is full.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see Configuration#capacity(int, Overflow, java.time.Duration)
+ */
+public enum Overflow
+{
+    /**
+     * The push fail with an {@code IllegalStateException}.
+     */
+    REJECT,
+    
+    /**
+     * The push block until there is room in the queue. If the configured
+     * timeout pass first, then the push fail with an {@code
+     * IllegalStateException}.
+     */
+    BLOCK,
+    
+    /**
+     * The message closest to the head of the queue - for a FIFO queue, the
+     * oldest - that is not leased is dropped to make room for the pushed
+     * message. A message that has been delivered and is still being processed
+     * is not dropped; if all messages are, the push fail with an {@code
+     * IllegalStateException}. Delayed messages are never dropped.
+     */
+    DROP_OLDEST
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package com.martinandersson.qsb.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Message content stored outside of the message object, for example
+ * off-heap.<p>
+ * 
+ * A payload is released by {@link AbstractQS} when the message is evicted from
+ * its queue, after which the payload must not be accessed. Consumers must
+ * therefore not read the content of a message after having completed it.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see SlabStore
+ */
+public interface Payload
+{
+    /**
+     * Returns the payload length, in bytes.
+     * 
+     * @return the payload length, in bytes
+     */
+    int length();
+    
+    /**
+     * Returns a read-only view of the payload.
+     * 
+     * @return a read-only view of the payload
+     */
+    ByteBuffer buffer();
+    
+    /**
+     * Release the storage of this payload.
+     */
+    void release();
+}
\ No newline at end of file
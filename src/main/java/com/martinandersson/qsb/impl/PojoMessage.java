@@ -3,8 +3,6 @@ package com.martinandersson.qsb.impl;
 import static com.martinandersson.qsb.impl.GrabResponse.ACTIVE;
 import static com.martinandersson.qsb.impl.GrabResponse.COMPLETED;
 import static com.martinandersson.qsb.impl.GrabResponse.SUCCEEDED;
-import java.time.Instant;
-import static java.util.Objects.requireNonNull;
 
 /**
  * A non thread-safe message implementation.
@@ -13,9 +11,17 @@ import static java.util.Objects.requireNonNull;
  */
 public final class PojoMessage extends AbstractMessage
 {
-    private Instant expires;
+    private static final long NEW  = Long.MIN_VALUE,
+                              DONE = Long.MAX_VALUE;
     
-    private boolean completed;
+    /**
+     * Lease deadline in terms of {@code System.nanoTime()}, or {@code NEW} if
+     * the message has never been grabbed, or {@code DONE} if it has been
+     * completed.
+     */
+    private long deadline = NEW;
+    
+    private int deliveries;
     
     
     /**
@@ -30,43 +36,121 @@ public final class PojoMessage extends AbstractMessage
         super(queue, content);
     }
     
+    /**
+     * Constructs a {@code PojoMessage}.
+     * 
+     * @param queue    queue
+     * @param content  UTF-8 encoded content (not copied)
+     * 
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public PojoMessage(String queue, byte[] content) {
+        super(queue, content);
+    }
+    
+    /**
+     * Constructs a {@code PojoMessage}.
+     * 
+     * @param queue    queue
+     * @param content  content stored off-heap
+     * 
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public PojoMessage(String queue, Payload content) {
+        super(queue, content);
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int deliveries() {
+        return deliveries;
+    }
     
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void deliveries(int deliveries) {
+        this.deliveries = deliveries;
+    }
     
     /**
      * {@inheritDoc}
      */
     @Override
-    protected void complete() {
-        if (expires == null) {
+    protected boolean complete() {
+        if (deadline == NEW) {
             throw new IllegalStateException("Please grab the message first lol.");
         }
         
-        completed = true;
+        return discard();
     }
     
     /**
      * {@inheritDoc}
      */
     @Override
-    protected GrabResponse tryGrab(Instant then, Instant expires) {
-        if (this.expires == null) {
-            this.expires = requireNonNull(expires);
+    protected boolean discard() {
+        final boolean transition = deadline != DONE;
+        deadline = DONE;
+        return transition;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected GrabResponse tryDiscard(long now) {
+        if (deadline == DONE) {
+            return COMPLETED;
+        }
+        
+        if (deadline != NEW && now < deadline) {
+            return ACTIVE;
+        }
+        
+        deadline = DONE;
+        return SUCCEEDED;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected GrabResponse tryGrab(long now, long deadline) {
+        if (this.deadline == NEW) {
+            this.deadline = deadline;
+            ++deliveries;
             return SUCCEEDED;
         }
         
-        if (completed) {
+        if (this.deadline == DONE) {
             return COMPLETED;
         }
         
-        if (hasExpired(then)) {
-            this.expires = requireNonNull(expires);
+        if (now >= this.deadline) {
+            this.deadline = deadline;
+            ++deliveries;
             return SUCCEEDED;
         }
         
         return ACTIVE;
     }
     
-    private boolean hasExpired(Instant then) {
-        return then.equals(expires) || then.isAfter(expires);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean extend(long now, long deadline) {
+        if (this.deadline == NEW || this.deadline == DONE || now >= this.deadline) {
+            return false;
+        }
+        
+        this.deadline = deadline;
+        return true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,247 @@
+package com.martinandersson.qsb.impl;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * A queue made of one FIFO lane per priority level.<p>
+ * 
+ * Elements are ordered by priority, highest first, and FIFO within each
+ * priority. A bitmask keep track of non-empty lanes so that the highest
+ * non-empty lane is found in constant time. Contrary to {@code PriorityQueue},
+ * both {@code offer()} and {@code poll()} are therefore O(1).<p>
+ * 
+ * The lanes are created using a specified factory. This class is thread-safe if
+ * the lanes are thread-safe. The bitmask is only a hint, all lanes flagged in
+ * the bitmask are checked for real and a lane that is found empty has its flag
+ * cleared (and then re-checked, should an element have been added
+ * concurrently).<p>
+ * 
+ * The iterator walk through the lanes starting with the highest priority and
+ * support {@code remove()} if the lanes do.
+ * 
+ * @param <E>  element type
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class PriorityLanes<E> extends AbstractQueue<E>
+{
+    /**
+     * Number of priority levels, 0 (lowest) to {@code LEVELS - 1} (highest).
+     */
+    public static final int LEVELS = 8;
+    
+    private static final AtomicIntegerFieldUpdater<PriorityLanes> MASK
+            = AtomicIntegerFieldUpdater.newUpdater(PriorityLanes.class, "mask");
+    
+    
+    
+    private final ToIntFunction<? super E> priority;
+    
+    private final Queue<E>[] lanes;
+    
+    /** Bit n is set if lane n may be non-empty. */
+    private volatile int mask;
+    
+    
+    
+    /**
+     * Constructs a {@code PriorityLanes}.
+     * 
+     * @param priority  function that return the priority of an element
+     * @param lane      factory of lanes
+     */
+    public PriorityLanes(ToIntFunction<? super E> priority, Supplier<? extends Queue<E>> lane) {
+        this.priority = priority;
+        
+        @SuppressWarnings("unchecked")
+        Queue<E>[] arr = new Queue[LEVELS];
+        
+        for (int i = 0; i < arr.length; ++i) {
+            arr[i] = lane.get();
+        }
+        
+        this.lanes = arr;
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException
+     *             if the priority of {@code e} is not within {@code [0, LEVELS)}
+     */
+    @Override
+    public boolean offer(E e) {
+        final int p = priority.applyAsInt(e);
+        
+        if (p < 0 || p >= LEVELS) {
+            throw new IllegalArgumentException("Priority out of range: " + p);
+        }
+        
+        if (!lanes[p].offer(e)) {
+            return false;
+        }
+        
+        flag(p);
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public E poll() {
+        for (int m = mask; m != 0; m = mask) {
+            final int p = highest(m);
+            final E e = lanes[p].poll();
+            
+            if (e != null) {
+                return e;
+            }
+            
+            unflagIfEmpty(p);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public E peek() {
+        for (int m = mask; m != 0; m = mask) {
+            final int p = highest(m);
+            final E e = lanes[p].peek();
+            
+            if (e != null) {
+                return e;
+            }
+            
+            unflagIfEmpty(p);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        for (Queue<E> l : lanes) {
+            if (!l.isEmpty()) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        
+        for (Queue<E> l : lanes) {
+            size += l.size();
+        }
+        
+        return size;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            /** Lane of {@code it}. */
+            int lane = LEVELS;
+            
+            Iterator<E> it;
+            
+            /** Lane of the last returned element, for {@code remove()}. */
+            int last = -1;
+            
+            Iterator<E> lastIt;
+            
+            @Override
+            public boolean hasNext() {
+                while (it == null || !it.hasNext()) {
+                    int m = mask & ((1 << lane) - 1);
+                    
+                    if (m == 0) {
+                        return false;
+                    }
+                    
+                    lane = highest(m);
+                    it = lanes[lane].iterator();
+                }
+                
+                return true;
+            }
+            
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                
+                last = lane;
+                lastIt = it;
+                return it.next();
+            }
+            
+            @Override
+            public void remove() {
+                if (lastIt == null) {
+                    throw new IllegalStateException();
+                }
+                
+                lastIt.remove();
+                lastIt = null;
+                unflagIfEmpty(last);
+            }
+        };
+    }
+    
+    
+    
+    private static int highest(int mask) {
+        return 31 - Integer.numberOfLeadingZeros(mask);
+    }
+    
+    private void flag(int p) {
+        final int bit = 1 << p;
+        
+        // Only pay for a CAS if the bit is not already set.
+        int m;
+        while (((m = mask) & bit) == 0 && !MASK.compareAndSet(this, m, m | bit));
+    }
+    
+    private void unflagIfEmpty(int p) {
+        if (!lanes[p].isEmpty()) {
+            return;
+        }
+        
+        final int bit = 1 << p;
+        
+        int m;
+        while (((m = mask) & bit) != 0 && !MASK.compareAndSet(this, m, m & ~bit));
+        
+        // Element added after the isEmpty() check but before we cleared the bit?
+        if (!lanes[p].isEmpty()) {
+            flag(p);
+        }
+    }
+}
\ No newline at end of file
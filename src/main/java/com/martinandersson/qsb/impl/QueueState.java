@@ -0,0 +1,261 @@
+package com.martinandersson.qsb.impl;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A queue of messages together with the state {@link AbstractQS} keep per
+ * queue.<p>
+ * 
+ * This type is only public because it is the value type of the map provided
+ * through {@link Configuration#map(Lockable)}. Instances are created and
+ * managed by {@code AbstractQS}.
+ * 
+ * @param <M>  concrete message implementation type
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class QueueState<M>
+{
+    private final String name;
+    
+    private final Lockable<Queue<M>> messages;
+    
+    /**
+     * Next message id.
+     */
+    private final AtomicLong sequence;
+    
+    /**
+     * Delivered messages by id.<p>
+     * 
+     * A message is added when grabbed and removed when evicted from the queue.
+     * The index is thread-safe on its own, no matter the locking strategy.
+     */
+    private final Map<Long, M> delivered = new ConcurrentHashMap<>();
+    
+    /**
+     * A pinned queue has been {@linkplain AbstractQS#register(String)
+     * registered} and is never removed from the map.<p>
+     * 
+     * Guarded by write-access of the map.
+     */
+    private boolean pinned;
+    
+    /**
+     * Lazily created when the first deduplication key is pushed.<p>
+     * 
+     * Guarded by write-access of the map.
+     */
+    private DedupCache dedup;
+    
+    /**
+     * Lazily created when the first delayed message is pushed.<p>
+     * 
+     * Written with write-access of the map.
+     */
+    private volatile DelayedMessages<M> delayed;
+    
+    /**
+     * Lazily created when the queue first spill to disk.<p>
+     * 
+     * Written while holding the monitor of this object.
+     */
+    private volatile SpilledTail spilled;
+    
+    /**
+     * Number of messages pushed but not yet completed, or {@code null} if the
+     * queue is unbounded.
+     */
+    private final LongAdder size;
+    
+    /**
+     * Content size of all messages held by the queue.
+     */
+    private final LongAdder bytes = new LongAdder();
+    
+    
+    
+    QueueState(String name, Lockable<Queue<M>> messages, long firstId, boolean bounded) {
+        this.name     = name;
+        this.messages = messages;
+        this.sequence = new AtomicLong(firstId);
+        this.size     = bounded ? new LongAdder() : null;
+    }
+    
+    
+    
+    /**
+     * Returns the queue name.<p>
+     * 
+     * For a registered queue, this is the canonical instance used by all
+     * messages pushed through the id-based API.
+     * 
+     * @return the queue name
+     */
+    String name() {
+        return name;
+    }
+    
+    /**
+     * Returns the lockable queue of messages.
+     * 
+     * @return the lockable queue of messages
+     */
+    Lockable<Queue<M>> messages() {
+        return messages;
+    }
+    
+    /**
+     * Returns the next message id of this queue.
+     * 
+     * @return the next message id of this queue
+     */
+    long nextId() {
+        return sequence.getAndIncrement();
+    }
+    
+    /**
+     * Returns delivered messages indexed by id.
+     * 
+     * @return delivered messages indexed by id
+     */
+    Map<Long, M> delivered() {
+        return delivered;
+    }
+    
+    /**
+     * Returns the deduplication cache, creating it if need be.<p>
+     * 
+     * Must be called with write-access of the map.
+     * 
+     * @param window   deduplication window
+     * @param maxKeys  max number of keys
+     * 
+     * @return the deduplication cache
+     */
+    DedupCache dedup(Duration window, int maxKeys) {
+        if (dedup == null) {
+            dedup = new DedupCache(window, maxKeys);
+        }
+        
+        return dedup;
+    }
+    
+    /**
+     * Returns {@code true} if this queue remember deduplication keys that are
+     * still within the window, otherwise {@code false}.<p>
+     * 
+     * Must be called with write-access of the map.
+     * 
+     * @return {@code true} if this queue remember deduplication keys
+     */
+    boolean hasDedupKeys() {
+        return dedup != null && !dedup.isEmpty();
+    }
+    
+    /**
+     * Returns delayed messages, or {@code null} if no message has ever been
+     * delayed.
+     * 
+     * @return delayed messages (may be {@code null})
+     */
+    DelayedMessages<M> delayed() {
+        return delayed;
+    }
+    
+    /**
+     * Returns delayed messages, creating the structure if need be.<p>
+     * 
+     * Must be called with write-access of the map.
+     * 
+     * @return delayed messages
+     */
+    DelayedMessages<M> delayedOrCreate() {
+        if (delayed == null) {
+            delayed = new DelayedMessages<>();
+        }
+        
+        return delayed;
+    }
+    
+    /**
+     * Returns {@code true} if this queue has delayed messages, otherwise
+     * {@code false}.
+     * 
+     * @return {@code true} if this queue has delayed messages
+     */
+    boolean hasDelayed() {
+        final DelayedMessages<M> d = delayed;
+        return d != null && !d.isEmpty();
+    }
+    
+    /**
+     * Returns the spilled tail, or {@code null} if the queue has never
+     * spilled.
+     * 
+     * @return the spilled tail (may be {@code null})
+     */
+    SpilledTail spilled() {
+        return spilled;
+    }
+    
+    /**
+     * Returns the spilled tail, creating it if need be.
+     * 
+     * @param factory  spilled tail factory
+     * 
+     * @return the spilled tail
+     */
+    synchronized SpilledTail spilledOrCreate(Supplier<SpilledTail> factory) {
+        if (spilled == null) {
+            spilled = factory.get();
+        }
+        
+        return spilled;
+    }
+    
+    /**
+     * Returns {@code true} if this queue has messages on disk, otherwise
+     * {@code false}.
+     * 
+     * @return {@code true} if this queue has messages on disk
+     */
+    boolean hasSpilled() {
+        final SpilledTail s = spilled;
+        return s != null && !s.isEmpty();
+    }
+    
+    /**
+     * Returns the number of messages pushed but not yet completed, or {@code
+     * null} if the queue is unbounded.
+     * 
+     * @return the number of messages pushed but not yet completed (may be
+     *         {@code null})
+     */
+    LongAdder size() {
+        return size;
+    }
+    
+    /**
+     * Returns the content size of all messages held by the queue.
+     * 
+     * @return the content size of all messages held by the queue
+     */
+    LongAdder bytes() {
+        return bytes;
+    }
+    
+    void pin() {
+        pinned = true;
+    }
+    
+    boolean isPinned() {
+        return pinned;
+    }
+}
\ No newline at end of file
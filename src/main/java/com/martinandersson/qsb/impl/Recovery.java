@@ -0,0 +1,111 @@
+package com.martinandersson.qsb.impl;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * The pending messages of a queue service, recovered from the directory of a
+ * {@link WriteAheadLog}.<p>
+ * 
+ * Recovery load the latest snapshot written by a {@link Checkpointer}, if any,
+ * and then replay only the tail of the log that follows the snapshot. Without a
+ * snapshot, the whole log is replayed. The recovered messages are restored into
+ * a new queue service using {@link Configuration#restore(Recovery)}.<p>
+ * 
+ * The log must not be written while recovered. The recovered messages refer
+ * to their content in the snapshot and the log, which is read when restored;
+ * the log must not be compacted or checkpointed until then. Leases are not
+ * recovered; a message that was delivered but not completed is pending again,
+ * with its delivery count intact.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Recovery
+{
+    private final LiveMessages state;
+    
+    private final long snapshot;
+    
+    
+    
+    Recovery(LiveMessages state, long snapshot) {
+        this.state = state;
+        this.snapshot = snapshot;
+    }
+    
+    
+    
+    /**
+     * Recover the messages of the log in the specified directory.<p>
+     * 
+     * An empty recovery is returned if the directory does not exist.
+     * 
+     * @param dir          directory of segment files
+     * @param segmentSize  size of each segment file, in bytes
+     * 
+     * @return the recovered messages
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    public static Recovery load(Path dir, int segmentSize) {
+        if (!Files.isDirectory(dir)) {
+            return new Recovery(new LiveMessages(dir, segmentSize), 0);
+        }
+        
+        final LiveMessages state = LiveMessages.load(dir, segmentSize);
+        final long snapshot = state.position();
+        
+        state.position(LogReader.read(dir, segmentSize, snapshot, Long.MAX_VALUE, state));
+        return new Recovery(state, snapshot);
+    }
+    
+    
+    
+    /**
+     * Returns the log position of the snapshot recovery started from, or 0 if
+     * there was no snapshot.
+     * 
+     * @return the log position of the snapshot
+     */
+    public long snapshot() {
+        return snapshot;
+    }
+    
+    /**
+     * Returns the number of log records replayed after the snapshot.
+     * 
+     * @return the number of log records replayed after the snapshot
+     */
+    public long replayed() {
+        return state.applied();
+    }
+    
+    /**
+     * Returns the number of recovered messages.
+     * 
+     * @return the number of recovered messages
+     */
+    public long messages() {
+        return state.messages();
+    }
+    
+    /**
+     * Returns queue name to recovered queue.
+     * 
+     * @return queue name to recovered queue
+     */
+    Map<String, LiveMessages.Log> queues() {
+        return state.queues();
+    }
+    
+    /**
+     * Returns a reader of the content of the recovered messages.
+     * 
+     * @return a reader of the content of the recovered messages
+     */
+    LiveMessages.Contents contents() {
+        return state.contents();
+    }
+}
\ No newline at end of file
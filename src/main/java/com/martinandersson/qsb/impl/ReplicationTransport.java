@@ -0,0 +1,30 @@
+package com.martinandersson.qsb.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Carries batches of events from a {@link Replicator} to a {@link Standby}.<p>
+ * 
+ * A batch is sent without waiting for earlier batches to be applied; a
+ * transport must deliver the batches to {@link Standby#apply(ByteBuffer)} in
+ * the order they were sent. Sending is called by one thread at a time.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see InMemoryTransport
+ */
+public interface ReplicationTransport
+{
+    /**
+     * Send a batch of events.<p>
+     * 
+     * The transport owns the buffer once this method has been called.
+     * 
+     * @param batch  batch of events
+     * 
+     * @return a future completed once the standby has applied the batch, or
+     *         failed if the batch could not be applied
+     */
+    CompletableFuture<?> send(ByteBuffer batch);
+}
\ No newline at end of file
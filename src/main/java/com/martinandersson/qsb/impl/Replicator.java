@@ -0,0 +1,492 @@
+package com.martinandersson.qsb.impl;
+
+import com.martinandersson.qsb.api.Message;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link Journal} that stream the events of a queue service to a {@link
+ * Standby}, over a {@link ReplicationTransport}.<p>
+ * 
+ * Reporting an event encode the event and add it to a lock-free queue; that is
+ * all the work done on the hot path of the queue service. A background shipper
+ * thread drains the queue into batches of up to a configured size and send
+ * them without waiting for the standby to apply earlier batches, up to a
+ * window of batches in flight. Events of one queue are reported while holding
+ * access to the queue, so they are shipped in the order they happened.<p>
+ * 
+ * The replication lag is the number of events reported but not yet applied by
+ * the standby. A push {@linkplain #sync() wait} while the lag exceeds a
+ * configured bound. The bound applies to pushes only: lease and complete
+ * events are reported while holding access to a queue, where a journal must
+ * not wait, so polls and completions are never held back and the lag may
+ * exceed the bound by the events they report meanwhile. Pushes wait until
+ * that excess has been applied as well. If the transport fails a batch,
+ * replication stops for good; events are no longer shipped and nothing waits
+ * on the lag.<p>
+ * 
+ * Batch layout, all integers big-endian:
+ * 
+ * <pre>
+ *   long  sequence number of the first event
+ *   int   number of events
+ *   the events, each laid out as a record of the {@link WriteAheadLog}
+ * </pre>
+ * 
+ * The shipper thread must be stopped by {@linkplain #close() closing} the
+ * replicator.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Replicator implements Journal, AutoCloseable
+{
+    /** Sequence number and count of events. */
+    static final int BATCH_HEADER = 8 + 4;
+    
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+    
+    private final ReplicationTransport transport;
+    
+    private final int batchBytes;
+    
+    private final int window;
+    
+    private final long maxLag;
+    
+    /** Encoded events not yet shipped. */
+    private final ConcurrentLinkedQueue<byte[]> events = new ConcurrentLinkedQueue<>();
+    
+    private final LongAdder recorded = new LongAdder(),
+                            batches  = new LongAdder();
+    
+    /** Events applied by the standby. */
+    private final AtomicLong acknowledged = new AtomicLong();
+    
+    /** Sequence number of the next event shipped. Written by the shipper only. */
+    private volatile long shipped;
+    
+    /** Limits the number of batches in flight. */
+    private final Semaphore inFlight;
+    
+    /**
+     * Last sequence number and send time of each batch in flight.<p>
+     * 
+     * Guarded by itself.
+     */
+    private final ArrayDeque<long[]> sent = new ArrayDeque<>();
+    
+    /** Set when the shipper is about to park. */
+    private volatile boolean idle;
+    
+    private volatile boolean closed;
+    
+    /** Time of close and for how long to wait on the batches in flight. */
+    private volatile long closedAt, closeTimeout;
+    
+    private volatile Throwable failure;
+    
+    private final Thread shipper;
+    
+    
+    
+    /**
+     * Constructs a {@code Replicator} that send batches of up to 64 KiB, with
+     * up to 16 batches in flight and a max lag of 100 000 events.
+     * 
+     * @param transport  transport to the standby
+     * 
+     * @see #Replicator(ReplicationTransport, int, int, long)
+     */
+    public Replicator(ReplicationTransport transport) {
+        this(transport, 64 * 1024, 16, 100_000);
+    }
+    
+    /**
+     * Constructs a {@code Replicator}.<p>
+     * 
+     * An event larger than the batch size is sent in a batch of its own.
+     * 
+     * @param transport   transport to the standby
+     * @param batchBytes  max size of a batch, in bytes
+     * @param window      max number of batches in flight
+     * @param maxLag      max number of events not yet applied by the standby,
+     *                    before a push wait; polls and completions do not
+     *                    wait
+     * 
+     * @throws NullPointerException if {@code transport} is {@code null}
+     * @throws IllegalArgumentException if any number is not positive
+     */
+    public Replicator(ReplicationTransport transport, int batchBytes, int window, long maxLag) {
+        if (batchBytes <= BATCH_HEADER || window <= 0 || maxLag <= 0) {
+            throw new IllegalArgumentException(
+                    "Batch bytes: " + batchBytes + ", window: " + window + ", max lag: " + maxLag);
+        }
+        
+        this.transport  = requireNonNull(transport);
+        this.batchBytes = batchBytes;
+        this.window     = window;
+        this.maxLag     = maxLag;
+        this.inFlight   = new Semaphore(window);
+        
+        shipper = new Thread(this::ship, "replicator");
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException
+     *             if the queue name or group is longer than 32767 UTF-8 bytes
+     */
+    @Override
+    public void check(Message message, String group) {
+        WriteAheadLog.checkNames(message.queue().getBytes(UTF_8),
+                group == null ? null : group.getBytes(UTF_8));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void pushed(Message message, String group) {
+        push(message, group, WriteAheadLog.PUSH, 0);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delayed(Message message, String group, Instant due) {
+        push(message, group, WriteAheadLog.DELAYED, due.toEpochMilli());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void leased(Message message) {
+        final byte[] queue = message.queue().getBytes(UTF_8);
+        final ByteBuffer b = event(WriteAheadLog.LEASE, WriteAheadLog.leaseLength(queue));
+        WriteAheadLog.putLease(b, queue, message);
+        record(b);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void completed(String queue, long id) {
+        final byte[] q = queue.getBytes(UTF_8);
+        final ByteBuffer b = event(WriteAheadLog.COMPLETE, WriteAheadLog.HEADER + q.length);
+        WriteAheadLog.putHeader(b, q, id);
+        record(b);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * Wait while the lag exceeds the max lag, unless replication has failed or
+     * the replicator has been closed.
+     */
+    @Override
+    public void sync() {
+        while (lag() > maxLag && failure == null && !closed) {
+            LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+    
+    /**
+     * Returns the number of events reported.
+     * 
+     * @return the number of events reported
+     */
+    public long events() {
+        return recorded.sum();
+    }
+    
+    /**
+     * Returns the number of batches sent.
+     * 
+     * @return the number of batches sent
+     */
+    public long batches() {
+        return batches.sum();
+    }
+    
+    /**
+     * Returns the number of events applied by the standby.
+     * 
+     * @return the number of events applied by the standby
+     */
+    public long acknowledged() {
+        return acknowledged.get();
+    }
+    
+    /**
+     * Returns the number of events reported but not yet applied by the
+     * standby.
+     * 
+     * @return the replication lag, in events
+     */
+    public long lag() {
+        return Math.max(0, recorded.sum() - acknowledged.get());
+    }
+    
+    /**
+     * Returns the time since the oldest batch in flight was sent, or zero if
+     * no batch is in flight.
+     * 
+     * @return the replication lag, in time
+     */
+    public Duration lagTime() {
+        final long then;
+        
+        synchronized (sent) {
+            final long[] oldest = sent.peek();
+            
+            if (oldest == null) {
+                return Duration.ZERO;
+            }
+            
+            then = oldest[1];
+        }
+        
+        return Duration.ofNanos(System.nanoTime() - then);
+    }
+    
+    /**
+     * Returns the exception that stopped replication, or {@code null} if
+     * replication has not failed.
+     * 
+     * @return the exception that stopped replication, or {@code null}
+     */
+    public Throwable failure() {
+        return failure;
+    }
+    
+    /**
+     * Same as {@link #close(Duration)}, with a timeout of 10 seconds.
+     */
+    @Override
+    public void close() {
+        close(CLOSE_TIMEOUT);
+    }
+    
+    /**
+     * Ship the events already reported, wait for the batches in flight to be
+     * applied and stop the shipper thread.<p>
+     * 
+     * Events reported after this point are not shipped. If the batches are not
+     * applied within the timeout, replication {@linkplain #failure() fails}
+     * with a {@code TimeoutException} and the events not yet shipped are
+     * dropped.
+     * 
+     * @param timeout  max time to wait on the transport
+     * 
+     * @throws NullPointerException if {@code timeout} is {@code null}
+     */
+    public void close(Duration timeout) {
+        closeTimeout = AbstractMessage.nanos(timeout);
+        closedAt = System.nanoTime();
+        closed = true;
+        LockSupport.unpark(shipper);
+        
+        try {
+            shipper.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    
+    
+    /**
+     * Allocate an event and write the length and type fields of its record.
+     */
+    private static ByteBuffer event(byte type, int length) {
+        return ByteBuffer.allocate(length).putInt(length).put(type);
+    }
+    
+    /**
+     * Record a push event, or a delayed event with the specified due time.
+     */
+    private void push(Message message, String group, byte type, long due) {
+        final byte[] queue = message.queue().getBytes(UTF_8),
+                     grp   = group == null ? null : group.getBytes(UTF_8);
+        
+        final ByteBuffer content = message.buffer();
+        
+        final ByteBuffer b = event(type, WriteAheadLog.pushLength(queue, grp, content, type));
+        WriteAheadLog.putPush(b, queue, grp, message, content, type, due);
+        record(b);
+    }
+    
+    private void record(ByteBuffer event) {
+        recorded.increment();
+        
+        if (failure != null || closed) {
+            // ..the standby is lost, keep counting the lag only
+            return;
+        }
+        
+        events.offer(event.array());
+        
+        if (idle) {
+            idle = false;
+            LockSupport.unpark(shipper);
+        }
+    }
+    
+    /**
+     * Drain events into batches and send them, until closed or failed.
+     */
+    private void ship() {
+        try {
+            while (failure == null) {
+                if (events.isEmpty()) {
+                    if (closed) {
+                        break;
+                    }
+                    
+                    idle = true;
+                    
+                    // Recheck after idle is set, or a reporter may miss it
+                    if (events.isEmpty() && !closed) {
+                        LockSupport.park(this);
+                    }
+                    
+                    idle = false;
+                    continue;
+                }
+                
+                // Wait for the window before draining, so that the batch take
+                // all events reported meanwhile
+                if (!acquire(1)) {
+                    break;
+                }
+                
+                byte[] e = events.poll();
+                
+                final ByteBuffer b = ByteBuffer.allocate(
+                        Math.max(batchBytes, BATCH_HEADER + e.length));
+                
+                b.putLong(shipped).putInt(0);
+                
+                int n = 0;
+                
+                for (;;) {
+                    b.put(e);
+                    ++n;
+                    
+                    e = events.peek();
+                    
+                    if (e == null || e.length > b.remaining()) {
+                        break;
+                    }
+                    
+                    // ..single consumer, so this is the event peeked
+                    events.poll();
+                }
+                
+                b.putInt(8, n).flip();
+                send(b, shipped + n);
+            }
+        }
+        catch (Throwable e) {
+            // ..an Error too, or a push would wait on the lag for ever
+            failure = e;
+        }
+        finally {
+            if (failure != null) {
+                events.clear();
+            }
+            
+            // Wait for the batches in flight
+            acquire(window);
+        }
+    }
+    
+    /**
+     * Acquire permits of the window. Once closed, the wait is bounded by the
+     * close timeout; if it runs out, replication fails.
+     * 
+     * @return {@code true} if the permits were acquired
+     */
+    private boolean acquire(int permits) {
+        for (;;) {
+            try {
+                if (inFlight.tryAcquire(permits, 10, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            catch (InterruptedException e) {
+                // ..only close() may stop the shipper
+            }
+            
+            if (closed && System.nanoTime() - closedAt > closeTimeout) {
+                if (failure == null) {
+                    failure = new TimeoutException(
+                            "Batches in flight not applied within the close timeout.");
+                }
+                
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Send a batch, holding a permit of the window.
+     */
+    private void send(ByteBuffer batch, long end) {
+        shipped = end;
+        batches.increment();
+        
+        synchronized (sent) {
+            sent.add(new long[]{end, System.nanoTime()});
+        }
+        
+        final CompletableFuture<?> applied;
+        
+        try {
+            applied = transport.send(batch);
+        }
+        catch (Throwable e) {
+            inFlight.release();
+            throw e;
+        }
+        
+        applied.whenComplete((ignored, e) -> {
+            if (e != null) {
+                failure = e;
+            }
+            else {
+                acknowledged.accumulateAndGet(end, Math::max);
+            }
+            
+            synchronized (sent) {
+                while (!sent.isEmpty() && sent.peek()[0] <= end) {
+                    sent.poll();
+                }
+            }
+            
+            inFlight.release();
+        });
+    }
+}
\ No newline at end of file
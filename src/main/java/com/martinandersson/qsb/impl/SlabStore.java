@@ -0,0 +1,265 @@
+package com.martinandersson.qsb.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Off-heap storage of message payloads.<p>
+ * 
+ * Payloads are copied into direct {@code ByteBuffer} slabs using a bump
+ * pointer. The only heap object per payload is a small handle. Each slab count
+ * its live payloads and once a slab is full and all of its payloads has been
+ * released, the slab is recycled. A limited number of recycled slabs are kept
+ * in a pool, the rest are left to the garbage collector.<p>
+ * 
+ * A payload larger than the slab size get a slab of its own.<p>
+ * 
+ * Slabs may also be {@linkplain #mapped(Path, int) memory-mapped segment
+ * files}. A mapped slab is never recycled. Its file is deleted once all of its
+ * payloads has been released, but the mapping itself is only dropped when the
+ * last view of it has been garbage collected. A consumer that hold on to a
+ * view after having completed the message therefore never see the bytes of
+ * another message, nor touch unmapped memory.<p>
+ * 
+ * Allocation is lock-free unless the current slab is full, in which case one
+ * thread installs the next slab while holding the monitor of this store.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class SlabStore
+{
+    private final int slabSize, poolSize;
+    
+    private final IntFunction<ByteBuffer> allocator;
+    
+    /** Receives the buffer of a dead slab that is not pooled. */
+    private final Consumer<ByteBuffer> retire;
+    
+    /** Guarded by {@code this}. */
+    private final Deque<Slab> pool = new ArrayDeque<>();
+    
+    private volatile Slab current;
+    
+    private final LongAdder slabs = new LongAdder();
+    
+    
+    
+    /**
+     * Constructs a {@code SlabStore}.
+     * 
+     * @param slabSize  size of each slab, in bytes
+     * @param poolSize  max number of recycled slabs to keep
+     */
+    SlabStore(int slabSize, int poolSize) {
+        this(slabSize, poolSize, ByteBuffer::allocateDirect, b -> {});
+    }
+    
+    private SlabStore(int slabSize, int poolSize,
+            IntFunction<ByteBuffer> allocator, Consumer<ByteBuffer> retire)
+    {
+        this.slabSize  = slabSize;
+        this.poolSize  = poolSize;
+        this.allocator = allocator;
+        this.retire    = retire;
+        this.current   = new Slab(slabSize);
+    }
+    
+    /**
+     * Constructs a {@code SlabStore} of memory-mapped segment files.
+     * 
+     * @param dir          directory of segment files
+     * @param segmentSize  size of each segment, in bytes
+     * 
+     * @return a store of mapped slabs
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    static SlabStore mapped(Path dir, int segmentSize) {
+        final Map<ByteBuffer, Path> files = Collections.synchronizedMap(new IdentityHashMap<>());
+        
+        final IntFunction<ByteBuffer> map = capacity -> {
+            try {
+                final Path file = Files.createTempFile(dir, "payload-", ".seg");
+                
+                try (FileChannel ch = FileChannel.open(file, READ, WRITE)) {
+                    final ByteBuffer b = ch.map(READ_WRITE, 0, capacity);
+                    files.put(b, file);
+                    return b;
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        
+        // ..called on eviction, a file that can not be deleted is left behind
+        return new SlabStore(segmentSize, 0, map, b -> files.remove(b).toFile().delete());
+    }
+    
+    
+    
+    /**
+     * Copy specified bytes into a slab.
+     * 
+     * @param bytes  bytes to copy
+     * 
+     * @return a handle of the stored payload
+     */
+    Payload store(byte[] bytes) {
+        if (bytes.length > slabSize) {
+            Slab s = new Slab(bytes.length);
+            Payload p = s.tryAllocate(bytes);
+            s.unref();
+            return p;
+        }
+        
+        for (;;) {
+            final Slab s = current;
+            final Payload p = s.tryAllocate(bytes);
+            
+            if (p != null) {
+                return p;
+            }
+            
+            synchronized (this) {
+                if (current == s) {
+                    current = nextSlab();
+                    // Drop the store's own reference; the slab is recycled
+                    // when the last payload in it is released.
+                    s.unref();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of slabs currently allocated, pooled ones excluded.
+     * 
+     * @return the number of slabs currently allocated
+     */
+    long slabs() {
+        return slabs.sum();
+    }
+    
+    private Slab nextSlab() {
+        final Slab s = pool.poll();
+        return s != null ? s.reset() : new Slab(slabSize);
+    }
+    
+    private void recycle(Slab s) {
+        slabs.decrement();
+        
+        if (s.buf.capacity() == slabSize) {
+            synchronized (this) {
+                if (pool.size() < poolSize) {
+                    pool.push(s);
+                    return;
+                }
+            }
+        }
+        
+        retire.accept(s.buf);
+    }
+    
+    
+    
+    private final class Slab {
+        final ByteBuffer buf;
+        
+        /** Next free offset. May overshoot the capacity when full. */
+        final AtomicInteger pos = new AtomicInteger();
+        
+        /**
+         * Live payloads, plus one for the store as long as the slab is
+         * current. Zero means dead.
+         */
+        final AtomicInteger refs = new AtomicInteger(1);
+        
+        Slab(int capacity) {
+            buf = allocator.apply(capacity);
+            slabs.increment();
+        }
+        
+        Slab reset() {
+            pos.set(0);
+            refs.set(1);
+            slabs.increment();
+            return this;
+        }
+        
+        Payload tryAllocate(byte[] bytes) {
+            int r;
+            
+            do {
+                if ((r = refs.get()) == 0) {
+                    return null;
+                }
+            }
+            while (!refs.compareAndSet(r, r + 1));
+            
+            final int offset = pos.getAndAdd(bytes.length);
+            
+            if (offset + bytes.length > buf.capacity() || offset < 0) {
+                unref();
+                return null;
+            }
+            
+            ByteBuffer view = buf.duplicate();
+            view.position(offset);
+            view.put(bytes);
+            
+            return new Slice(this, offset, bytes.length);
+        }
+        
+        void unref() {
+            if (refs.decrementAndGet() == 0) {
+                recycle(this);
+            }
+        }
+    }
+    
+    private static final class Slice implements Payload {
+        private final Slab slab;
+        
+        private final int offset, length;
+        
+        Slice(Slab slab, int offset, int length) {
+            this.slab   = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        @Override
+        public int length() {
+            return length;
+        }
+        
+        @Override
+        public ByteBuffer buffer() {
+            ByteBuffer view = slab.buf.duplicate();
+            view.limit(offset + length).position(offset);
+            return view.slice().asReadOnlyBuffer();
+        }
+        
+        @Override
+        public void release() {
+            slab.unref();
+        }
+    }
+}
\ No newline at end of file
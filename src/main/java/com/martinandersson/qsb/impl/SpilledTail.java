@@ -0,0 +1,344 @@
+package com.martinandersson.qsb.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The tail of a queue, spilled to sequential segment files on disk.<p>
+ * 
+ * Messages are appended to the last segment through a write buffer, and read
+ * back from the first segment in batches, so that disk access is sequential
+ * both ways. What is read but not yet consumed stays in a read buffer for the
+ * next read back; each byte is read from disk once. A segment is deleted as
+ * soon as it has been read in full. When the last message has been read back,
+ * all files are gone.<p>
+ * 
+ * A failed write leaves the tail as it was before the write; bytes not written
+ * stay in the write buffer and a record written in part is written over by the
+ * next one.<p>
+ * 
+ * Record layout:
+ * 
+ * <pre>
+ *   int   length of the record, this field included
+ *   long  message id
+ *   byte  priority
+ *   short length of the group (-1 if none) followed by the UTF-8 group
+ *   int   length of the content followed by the UTF-8 content
+ * </pre>
+ * 
+ * All methods are synchronized; a spilled tail is used by pushing and polling
+ * threads alike and the queue access of some implementations is lock-free.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class SpilledTail
+{
+    /**
+     * Receives messages read back.
+     */
+    interface Reader {
+        void read(long id, int priority, String group, byte[] content);
+    }
+    
+    private static final int BUFFER = 64 * 1024;
+    
+    private static final class Segment {
+        final Path file;
+        final FileChannel channel;
+        long written, read;
+        
+        Segment(Path file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+    
+    private final Path dir;
+    
+    private final int segmentSize;
+    
+    /** Oldest first, the last one is written to. */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+    
+    /**
+     * Bytes of the first segment read but not yet consumed, starting at the
+     * read position of the segment. Lazily created, and dropped when the tail
+     * is empty.
+     */
+    private ByteBuffer ahead;
+    
+    /** Number of messages not yet read back. */
+    private int messages;
+    
+    /** Content size of messages not yet read back. */
+    private long bytes;
+    
+    
+    
+    SpilledTail(Path dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+    
+    
+    
+    /**
+     * Returns {@code true} if there are no spilled messages, otherwise {@code
+     * false}.
+     * 
+     * @return {@code true} if there are no spilled messages
+     */
+    synchronized boolean isEmpty() {
+        return messages == 0;
+    }
+    
+    /**
+     * Returns the content size of messages not yet read back.
+     * 
+     * @return the content size of messages not yet read back
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+    
+    /**
+     * Append a message.
+     * 
+     * @param msg  message to append
+     * 
+     * @return content size of the message
+     * 
+     * @throws IOException on I/O error, in which case the message was not
+     *         appended
+     */
+    synchronized int append(AbstractMessage msg) throws IOException {
+        final byte[] payload = msg.payload(),
+                     content = payload != null ? payload : msg.get().getBytes(UTF_8),
+                     group   = msg.group() == null ? null : msg.group().getBytes(UTF_8);
+        
+        final int length = 4 + 8 + 1 + 2 + (group == null ? 0 : group.length) + 4 + content.length;
+        
+        Segment last = segments.peekLast();
+        final long end = last == null ? 0 : last.written + buffer.position();
+        
+        if (last == null || (end > 0 && end + length > segmentSize)) {
+            flush();
+            last = newSegment();
+        }
+        
+        final ByteBuffer b = length <= buffer.remaining() ? buffer :
+                             length <= buffer.capacity() ? flushed() :
+                             ByteBuffer.allocate(length);
+        
+        b.putInt(length).putLong(msg.id()).put((byte) msg.priority());
+        
+        if (group == null) {
+            b.putShort((short) -1);
+        }
+        else {
+            b.putShort((short) group.length).put(group);
+        }
+        
+        b.putInt(content.length).put(content);
+        
+        if (b != buffer) {
+            flush();
+            b.flip();
+            
+            final long at = last.written;
+            
+            try {
+                write(last, b);
+            }
+            catch (IOException e) {
+                // ..forget what was written of the record
+                last.written = at;
+                throw e;
+            }
+        }
+        
+        ++messages;
+        bytes += content.length;
+        return content.length;
+    }
+    
+    /**
+     * Read back messages in the order they were appended, until at least
+     * {@code max} bytes of content has been read or there are no more
+     * messages.
+     * 
+     * @param max     content size to read
+     * @param reader  receiver of messages
+     * 
+     * @return content size of messages read
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    synchronized long read(long max, Reader reader) {
+        long n = 0;
+        
+        try {
+            flush();
+            
+            while (n < max && messages > 0) {
+                final Segment s = segments.peekFirst();
+                
+                if (s.read == s.written) {
+                    delete(segments.removeFirst());
+                    continue;
+                }
+                
+                if (!hasRecord(ahead)) {
+                    fill(s, (int) Math.min(Integer.MAX_VALUE, Math.max(max - n, BUFFER)));
+                    continue;
+                }
+                
+                final ByteBuffer b = ahead;
+                
+                while (n < max && hasRecord(b)) {
+                    final int length = b.getInt();
+                    final long id = b.getLong();
+                    final int priority = b.get();
+                    final short g = b.getShort();
+                    final String group;
+                    
+                    if (g < 0) {
+                        group = null;
+                    }
+                    else {
+                        final byte[] name = new byte[g];
+                        b.get(name);
+                        group = new String(name, UTF_8);
+                    }
+                    
+                    final byte[] content = new byte[b.getInt()];
+                    b.get(content);
+                    
+                    s.read += length;
+                    n += content.length;
+                    bytes -= content.length;
+                    --messages;
+                    
+                    reader.read(id, priority, group, content);
+                }
+            }
+            
+            if (messages == 0) {
+                while (!segments.isEmpty()) {
+                    delete(segments.removeFirst());
+                }
+                
+                ahead = null;
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        return n;
+    }
+    
+    
+    
+    private Segment newSegment() throws IOException {
+        final Path file = Files.createTempFile(dir, "spill-", ".seg");
+        final Segment s = new Segment(file, FileChannel.open(file, READ, WRITE));
+        segments.addLast(s);
+        return s;
+    }
+    
+    private ByteBuffer flushed() throws IOException {
+        flush();
+        return buffer;
+    }
+    
+    private void flush() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            
+            try {
+                write(segments.getLast(), buffer);
+            }
+            finally {
+                // ..keep what was not written, for the next flush
+                buffer.compact();
+            }
+        }
+    }
+    
+    private static void write(Segment s, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            s.written += s.channel.write(b, s.written);
+        }
+    }
+    
+    /**
+     * Read at least {@code want} more bytes of the first segment into the read
+     * buffer, or the rest of the segment, or the rest of the record that the
+     * buffer begin with, whichever is larger.
+     */
+    private void fill(Segment s, int want) throws IOException {
+        final int kept = ahead == null ? 0 : ahead.remaining();
+        final long from = s.read + kept;
+        
+        int more = want;
+        
+        if (kept >= 4) {
+            // ..a record larger than what we asked for
+            more = Math.max(more, ahead.getInt(ahead.position()) - kept);
+        }
+        
+        more = (int) Math.min(more, s.written - from);
+        
+        if (more == 0) {
+            // ..a record cut short
+            throw new EOFException(s.file.toString());
+        }
+        
+        ByteBuffer b = ahead;
+        
+        if (b == null || b.capacity() < kept + more) {
+            b = ByteBuffer.allocate(Math.max(kept + more, BUFFER));
+            
+            if (kept > 0) {
+                b.put(ahead);
+            }
+        }
+        else {
+            b.compact();
+        }
+        
+        b.limit(kept + more);
+        
+        while (b.hasRemaining()) {
+            if (s.channel.read(b, from + b.position() - kept) < 0) {
+                throw new EOFException(s.file.toString());
+            }
+        }
+        
+        b.flip();
+        ahead = b;
+    }
+    
+    private static boolean hasRecord(ByteBuffer b) {
+        return b != null && b.remaining() >= 4 && b.getInt(b.position()) <= b.remaining();
+    }
+    
+    private static void delete(Segment s) throws IOException {
+        s.channel.close();
+        Files.delete(s.file);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,109 @@
+package com.martinandersson.qsb.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The follower of a {@link Replicator}; a hot standby for the queue service
+ * the replicator is the journal of.<p>
+ * 
+ * The standby applies the events of the primary, in order, to its own copy of
+ * the pending messages. On failover, the standby is {@linkplain #promote()
+ * promoted} and the new primary created using {@link
+ * Configuration#restore(Recovery)}. As with recovery from a log, leases are
+ * not replicated; a message that was delivered but not completed is pending
+ * again on the new primary, with its delivery count intact.<p>
+ * 
+ * Each event has a sequence number, starting at 0. A batch that does not
+ * follow on the last one applied is rejected, except that events already
+ * applied are skipped, so a batch may be sent again. The replicator must be
+ * the journal of the primary from the start; the standby starts empty.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Standby
+{
+    /** Guarded by {@code this}. */
+    private final LiveMessages state = new LiveMessages();
+    
+    /** Sequence number of the next event. Guarded by {@code this}. */
+    private long next;
+    
+    /** Guarded by {@code this}. */
+    private boolean promoted;
+    
+    
+    
+    /**
+     * Apply a batch of events.
+     * 
+     * @param batch  batch of events, as encoded by {@link Replicator}
+     * 
+     * @throws IllegalStateException
+     *             if events are missing before the batch, or the standby has
+     *             been promoted
+     */
+    public synchronized void apply(ByteBuffer batch) {
+        if (promoted) {
+            throw new IllegalStateException("Promoted.");
+        }
+        
+        final long first = batch.getLong();
+        final int count = batch.getInt();
+        
+        if (first > next) {
+            throw new IllegalStateException(
+                    "Missing events " + next + " to " + (first - 1) + ".");
+        }
+        
+        for (long seq = first; seq < first + count; ++seq) {
+            final int start  = batch.position(),
+                      length = batch.getInt();
+            
+            final byte type = batch.get();
+            
+            if (seq == next) {
+                LogReader.record(batch, type, -1, state);
+                ++next;
+            }
+            
+            batch.position(start + length);
+        }
+    }
+    
+    /**
+     * Returns the number of events applied.
+     * 
+     * @return the number of events applied
+     */
+    public synchronized long applied() {
+        return next;
+    }
+    
+    /**
+     * Returns the number of pending messages.
+     * 
+     * @return the number of pending messages
+     */
+    public synchronized long messages() {
+        return state.messages();
+    }
+    
+    /**
+     * Stop applying events and return the replicated messages, to be restored
+     * into a new primary.<p>
+     * 
+     * Batches that arrive after this point are rejected.
+     * 
+     * @return the replicated messages
+     * 
+     * @throws IllegalStateException if already promoted
+     */
+    public synchronized Recovery promote() {
+        if (promoted) {
+            throw new IllegalStateException("Already promoted.");
+        }
+        
+        promoted = true;
+        return new Recovery(state, 0);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package com.martinandersson.qsb.impl;
+
+/**
+ * When a {@link WriteAheadLog} force its records to the storage device, and
+ * whether a push wait for it.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see Journal#sync()
+ */
+public enum SyncPolicy
+{
+    /**
+     * Records are never forced. A push survive a crash of the JVM, but not
+     * necessarily a crash of the operating system.
+     */
+    NONE,
+    
+    /**
+     * Each push force the log before it returns. Throughput is capped at the
+     * rate of forces the device can sustain.
+     */
+    PER_MESSAGE,
+    
+    /**
+     * Pushes wait for a group commit. Concurrent pushes are collected until
+     * the group window pass or the group byte threshold is reached, the log is
+     * forced once and all waiting pushes return together.
+     */
+    GROUPED,
+    
+    /**
+     * The log is forced periodically in the background. A push does not wait,
+     * and a crash of the operating system may lose the pushes of one period.
+     */
+    PERIODIC
+}
\ No newline at end of file
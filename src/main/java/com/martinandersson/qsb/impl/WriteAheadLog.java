@@ -0,0 +1,866 @@
+package com.martinandersson.qsb.impl;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.impl.shm.Memory;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * A {@link Journal} that append events to a write-ahead log made of fixed-size
+ * memory-mapped segment files.<p>
+ * 
+ * The log is one logical sequence of bytes, split into segments. Each writer
+ * claims the range of its record by a compare-and-set of the log position and
+ * then writes the record into the mapped segment without further
+ * coordination. A record that does not fit in what remains of a segment is
+ * written at the start of the next segment, and the remainder is marked as
+ * padding. The position of a record is unique and increasing, so it doubles as
+ * a log sequence number.<p>
+ * 
+ * The segment of a record is mapped before the record is claimed, so that a
+ * claimed record is always written. The length field of a record is written
+ * as soon as the record has been claimed, and the type last. A record of type
+ * 0 is therefore still being written, and a length of 0 marks the end of the
+ * log. What remains of a segment after the last record is padding if it is
+ * too small to hold a record header. A force wait for the length of every
+ * record claimed before it, so a forced record is never hidden behind a length
+ * of 0. Records are aligned to 4 bytes, so that the length field is written
+ * and read atomically. The log is read by {@link LogReader}.<p>
+ * 
+ * Old segments may be rewritten by a {@link Compactor}. A compacted segment
+ * is shorter than the segment size and contains no padding.<p>
+ * 
+ * Record layout, all integers big-endian:
+ * 
+ * <pre>
+ *   int    length of the record, header included
+ *   byte   type; 0 = pending, 1 = push, 2 = lease, 3 = complete, 4 = padding,
+ *          5 = delayed
+ *   short  length of the queue name, followed by the UTF-8 queue name
+ *   long   message id
+ *
+ *   push:     byte priority,
+ *             short length of the group (-1 if none) followed by the group,
+ *             int length of the content followed by the UTF-8 content
+ *   delayed:  as push, followed by long due time in epoch milliseconds
+ *   lease:    int deliveries
+ *   complete: (nothing more)
+ * </pre>
+ * 
+ * When the mapped segments are forced to the storage device is decided by the
+ * {@link SyncPolicy}. A grouped or periodic policy use a background flusher
+ * thread which must be stopped by {@linkplain #close() closing} the log.<p>
+ * 
+ * A group commit works with tickets. A thread that wants its records to be
+ * durable takes a ticket once its records has been written, and wait until a
+ * force that started after the ticket was taken has completed. The flusher
+ * start a force when the group window has passed since the first waiting
+ * ticket, or when the unforced part of the log has reached the byte
+ * threshold, whichever comes first. Each thread remember the position of the
+ * last record it wrote, so that a force cover the records of all waiting
+ * threads even if a slow writer lag behind.<p>
+ * 
+ * If the flusher fails to force the log, it stops and the log is {@linkplain
+ * #failure() failed}. Threads waiting for a group commit are released with an
+ * exception, and so are later pushes and syncs.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class WriteAheadLog implements Journal, AutoCloseable
+{
+    static final byte PENDING  = 0,
+                      PUSH     = 1,
+                      LEASE    = 2,
+                      COMPLETE = 3,
+                      PADDING  = 4,
+                      DELAYED  = 5;
+    
+    /** Length, type, queue length and id. */
+    static final int HEADER = 4 + 1 + 2 + 8;
+    
+    static final String SUFFIX = ".wal";
+    
+    /** Whether an {@code int} in memory must be swapped to be big-endian. */
+    private static final boolean SWAP = ByteOrder.nativeOrder() != ByteOrder.BIG_ENDIAN;
+    
+    private final Path dir;
+    
+    private final int segmentSize;
+    
+    private final Map<Long, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+    
+    private final AtomicLong position;
+    
+    /** Log position where this log started. */
+    private final long start;
+    
+    private final SyncPolicy policy;
+    
+    /** Group window or period, in nanoseconds. */
+    private final long window;
+    
+    private final long groupBytes;
+    
+    /**
+     * Log position up to which segments has been forced, except for records
+     * still being written at the time. The length of every record before this
+     * position was written before the force.
+     */
+    private volatile long forced;
+    
+    /** Highest segment number forgotten by {@link #unmap(long)}, or -1. */
+    private volatile long unmapped = -1;
+    
+    /** Position of the last record written by the current thread, or -1. */
+    private final ThreadLocal<long[]> last = ThreadLocal.withInitial(() -> new long[]{-1});
+    
+    private final Object forceLock = new Object();
+    
+    private final LongAdder forces = new LongAdder();
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /** Signaled when a ticket is taken, or when closed. */
+    private final Condition pending = lock.newCondition();
+    
+    /** Signaled when a force has completed. */
+    private final Condition done = lock.newCondition();
+    
+    /**
+     * Last ticket taken and last ticket covered by a completed force.<p>
+     * 
+     * Guarded by {@code lock}.
+     */
+    private long taken, synced;
+    
+    /**
+     * Lowest record position of all threads waiting for the next group
+     * commit.<p>
+     * 
+     * Guarded by {@code lock}.
+     */
+    private long lowest = Long.MAX_VALUE;
+    
+    private volatile boolean closed;
+    
+    /** Set once, when the flusher fails. */
+    private volatile Throwable failure;
+    
+    /** {@code null} unless the policy is grouped or periodic. */
+    private final Thread flusher;
+    
+    
+    
+    /**
+     * Constructs a {@code WriteAheadLog} that never force its records.
+     * 
+     * @param dir          directory of segment files
+     * @param segmentSize  size of each segment file, in bytes
+     * 
+     * @throws IllegalArgumentException if {@code segmentSize} is too small
+     * @throws UncheckedIOException on I/O error
+     * 
+     * @see #WriteAheadLog(Path, int, SyncPolicy, Duration, int)
+     */
+    public WriteAheadLog(Path dir, int segmentSize) {
+        this(dir, segmentSize, SyncPolicy.NONE, Duration.ZERO, 0);
+    }
+    
+    /**
+     * Constructs a {@code WriteAheadLog}.<p>
+     * 
+     * The directory is created if need be. A log already in the directory is
+     * left untouched, this log start with the segment following the last one.
+     * 
+     * @param dir          directory of segment files
+     * @param segmentSize  size of each segment file, in bytes
+     * @param policy       sync policy
+     * @param window       group window ({@code GROUPED}) or period ({@code
+     *                     PERIODIC}), ignored by other policies
+     * @param groupBytes   unforced bytes that trigger a group commit before
+     *                     the window has passed ({@code GROUPED} only)
+     * 
+     * @throws IllegalArgumentException
+     *             if {@code segmentSize} is too small, or {@code window} is
+     *             not positive for a periodic policy
+     * @throws UncheckedIOException on I/O error
+     */
+    public WriteAheadLog(Path dir, int segmentSize, SyncPolicy policy, Duration window, int groupBytes) {
+        if (segmentSize < HEADER * 2) {
+            throw new IllegalArgumentException("Segment too small: " + segmentSize);
+        }
+        
+        if (policy == SyncPolicy.PERIODIC && (window.isNegative() || window.isZero())) {
+            throw new IllegalArgumentException("Period must be positive: " + window);
+        }
+        
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.policy = policy;
+        this.window = AbstractMessage.nanos(window);
+        this.groupBytes = groupBytes;
+        
+        try {
+            Files.createDirectories(dir);
+            
+            try (Stream<Path> files = Files.list(dir)) {
+                final long next = files.mapToLong(WriteAheadLog::segmentNumber)
+                        .max().orElse(-1) + 1;
+                
+                this.start = next * segmentSize;
+                this.position = new AtomicLong(start);
+                this.forced = start;
+            }
+            
+            // Create the first segment now so that the log position survive
+            // a restart, even if nothing is written and older segments are
+            // compacted away
+            segment(start / segmentSize);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        switch (policy) {
+            case GROUPED:
+                flusher = new Thread(this::groupCommits, "wal-group-commit");
+                break;
+            case PERIODIC:
+                flusher = new Thread(this::periodicForces, "wal-periodic-force");
+                break;
+            default:
+                flusher = null;
+        }
+        
+        if (flusher != null) {
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException
+     *             if the record of the message is larger than a segment, or
+     *             the queue name or group is longer than 32767 UTF-8 bytes
+     */
+    @Override
+    public void check(Message message, String group) {
+        final byte[] queue = message.queue().getBytes(UTF_8),
+                     grp   = group == null ? null : group.getBytes(UTF_8);
+        
+        checkNames(queue, grp);
+        
+        // ..whether the push is delayed is not known here, assume the larger
+        final int length = align(pushLength(queue, grp, message.buffer(), DELAYED));
+        
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Record too large: " + length);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void pushed(Message message, String group) {
+        push(message, group, PUSH, 0);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delayed(Message message, String group, Instant due) {
+        push(message, group, DELAYED, due.toEpochMilli());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void leased(Message message) {
+        final byte[] queue = message.queue().getBytes(UTF_8);
+        final int length = align(leaseLength(queue));
+        
+        final long pos = claim(length);
+        final ByteBuffer b = view(pos, length);
+        putLease(b, queue, message);
+        commit(b, pos, LEASE);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void completed(String queue, long id) {
+        final byte[] q = queue.getBytes(UTF_8);
+        final int length = align(HEADER + q.length);
+        
+        final long pos = claim(length);
+        final ByteBuffer b = view(pos, length);
+        putHeader(b, q, id);
+        commit(b, pos, COMPLETE);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * What this method does depend on the {@link SyncPolicy}. Once the log has
+     * been closed, this method force the log.
+     * 
+     * @throws IllegalStateException if the flusher has failed
+     */
+    @Override
+    public void sync() {
+        final long mine = last.get()[0];
+        
+        if (mine == -1 || policy == SyncPolicy.NONE) {
+            return;
+        }
+        
+        checkFailure();
+        
+        if (closed) {
+            force(mine);
+            return;
+        }
+        
+        switch (policy) {
+            case PER_MESSAGE:
+                force(mine);
+                break;
+            case GROUPED:
+                awaitGroupCommit(mine);
+                break;
+            default:
+                // NONE or PERIODIC, don't wait
+        }
+    }
+    
+    /**
+     * Stop the flusher thread, if there is one, and force the records written
+     * since the last force unless the policy is {@code NONE}.
+     * 
+     * @throws UncheckedIOException if the force fails
+     */
+    @Override
+    public void close() {
+        closed = true;
+        
+        if (flusher != null) {
+            lock.lock();
+            try {
+                pending.signal();
+            }
+            finally {
+                lock.unlock();
+            }
+            
+            LockSupport.unpark(flusher);
+            
+            try {
+                flusher.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        // ..a failed flusher has nothing more to give
+        if (policy != SyncPolicy.NONE && failure == null) {
+            force(Long.MAX_VALUE);
+        }
+    }
+    
+    /**
+     * Returns the exception that stopped the flusher, or {@code null} if the
+     * flusher has not failed.
+     * 
+     * @return the exception that stopped the flusher, or {@code null}
+     */
+    public Throwable failure() {
+        return failure;
+    }
+    
+    /**
+     * Returns how many times the log has been forced.
+     * 
+     * @return how many times the log has been forced
+     */
+    public long forces() {
+        return forces.sum();
+    }
+    
+    /**
+     * Returns the log position, which is the position of the next record.
+     * 
+     * @return the log position
+     */
+    public long position() {
+        return position.get();
+    }
+    
+    /**
+     * Returns the log position where this log started. Segments before this
+     * position were written by a previous incarnation of the log.
+     * 
+     * @return the log position where this log started
+     */
+    long start() {
+        return start;
+    }
+    
+    Path dir() {
+        return dir;
+    }
+    
+    int segmentSize() {
+        return segmentSize;
+    }
+    
+    /**
+     * Forget the mapping of a segment that has been replaced or deleted.<p>
+     * 
+     * The segment must be before the segment of the log position, and all of
+     * its records must have been written.
+     * 
+     * @param number  segment number
+     */
+    void unmap(long number) {
+        unmapped = Math.max(unmapped, number);
+        segments.remove(number);
+    }
+    
+    /**
+     * Claim space for a record of the specified length.<p>
+     * 
+     * The segments written to are mapped first; once claimed, a record must be
+     * written or a force would wait for its length for ever.
+     * 
+     * @param length  record length, {@linkplain #align(int) aligned}
+     * 
+     * @return log position of the record
+     * 
+     * @throws UncheckedIOException
+     *             if a segment can not be mapped, nothing is claimed then
+     */
+    private long claim(int length) {
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Record too large: " + length);
+        }
+        
+        for (;;) {
+            final long pos = position.get(),
+                       end = (pos / segmentSize + 1) * segmentSize;
+            
+            segment(pos / segmentSize);
+            
+            if (pos + length <= end) {
+                if (position.compareAndSet(pos, pos + length)) {
+                    return pos;
+                }
+            }
+            else {
+                segment(end / segmentSize);
+                
+                if (position.compareAndSet(pos, end + length)) {
+                    pad(pos, end);
+                    return end;
+                }
+            }
+        }
+    }
+    
+    private void pad(long from, long to) {
+        // ..a remainder too small for a header is implicit padding
+        if (to - from >= HEADER) {
+            commit(view(from, (int) (to - from)), from, PADDING);
+        }
+    }
+    
+    /**
+     * Write a push record, or a delayed record with the specified due time.
+     */
+    private void push(Message message, String group, byte type, long due) {
+        checkFailure();
+        
+        final byte[] queue = message.queue().getBytes(UTF_8),
+                     grp   = group == null ? null : group.getBytes(UTF_8);
+        
+        final ByteBuffer content = message.buffer();
+        final int length = align(pushLength(queue, grp, content, type));
+        
+        final long pos = claim(length);
+        final ByteBuffer b = view(pos, length);
+        putPush(b, queue, grp, message, content, type, due);
+        commit(b, pos, type);
+    }
+    
+    /**
+     * Write the length field of a record at the specified log position, and
+     * return a view of the segment positioned after the type field.
+     */
+    private ByteBuffer view(long pos, int length) {
+        final MappedByteBuffer segment = segment(pos / segmentSize);
+        final int offset = (int) (pos % segmentSize);
+        
+        Memory.putIntOrdered(Memory.address(segment) + offset,
+                SWAP ? Integer.reverseBytes(length) : length);
+        
+        final ByteBuffer b = segment.duplicate();
+        b.position(offset + 5);
+        return b;
+    }
+    
+    /**
+     * Returns a record length rounded up to a multiple of 4.
+     */
+    private static int align(int length) {
+        return (length + 3) & ~3;
+    }
+    
+    /**
+     * Verify that a queue name and a group fit their {@code short} length
+     * fields.
+     * 
+     * @param queue  queue name, UTF-8
+     * @param group  group, UTF-8 (may be {@code null})
+     * 
+     * @throws IllegalArgumentException if either is too long
+     */
+    static void checkNames(byte[] queue, byte[] group) {
+        if (queue.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Queue name too long: " + queue.length + " bytes.");
+        }
+        
+        if (group != null && group.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Group too long: " + group.length + " bytes.");
+        }
+    }
+    
+    /**
+     * Returns the length of a push or delayed record, before alignment.
+     */
+    static int pushLength(byte[] queue, byte[] group, ByteBuffer content, byte type) {
+        return HEADER + queue.length + 1 +
+                2 + (group == null ? 0 : group.length) +
+                4 + content.remaining() +
+                (type == DELAYED ? 8 : 0);
+    }
+    
+    /**
+     * Returns the length of a lease record, before alignment.
+     */
+    static int leaseLength(byte[] queue) {
+        return HEADER + queue.length + 4;
+    }
+    
+    /**
+     * Write the fields that follow the type field of a push or delayed record.
+     * The delayed record end with the due time.<p>
+     * 
+     * This method and its siblings are the one encoding of the records;
+     * {@link Replicator} ship its events in the same layout.
+     */
+    static void putPush(ByteBuffer b, byte[] queue, byte[] group,
+            Message message, ByteBuffer content, byte type, long due)
+    {
+        putHeader(b, queue, message.id());
+        b.put((byte) message.priority());
+        
+        if (group == null) {
+            b.putShort((short) -1);
+        }
+        else {
+            b.putShort((short) group.length).put(group);
+        }
+        
+        b.putInt(content.remaining()).put(content);
+        
+        if (type == DELAYED) {
+            b.putLong(due);
+        }
+    }
+    
+    /**
+     * Write the fields that follow the type field of a lease record.
+     */
+    static void putLease(ByteBuffer b, byte[] queue, Message message) {
+        putHeader(b, queue, message.id());
+        b.putInt(message.deliveries());
+    }
+    
+    /**
+     * Write the fields that follow the type field of any record; for a
+     * complete record, these are all of them.
+     */
+    static void putHeader(ByteBuffer b, byte[] queue, long id) {
+        b.putShort((short) queue.length).put(queue).putLong(id);
+    }
+    
+    /**
+     * Write the type field of a record, which makes the record visible to
+     * readers of the log.
+     */
+    private void commit(ByteBuffer b, long pos, byte type) {
+        b.put((int) (pos % segmentSize) + 4, type);
+        last.get()[0] = pos;
+    }
+    
+    private void awaitGroupCommit(long mine) {
+        lock.lock();
+        try {
+            final long ticket = ++taken;
+            lowest = Math.min(lowest, mine);
+            pending.signal();
+            
+            while (synced < ticket) {
+                done.awaitUninterruptibly();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        
+        // ..released by a failure, not by a force
+        checkFailure();
+    }
+    
+    private void checkFailure() {
+        final Throwable f = failure;
+        
+        if (f != null) {
+            throw new IllegalStateException("Log failed.", f);
+        }
+    }
+    
+    /**
+     * Stop forcing and release all tickets.
+     */
+    private void fail(Throwable e) {
+        lock.lock();
+        try {
+            failure = e;
+            synced = taken;
+            done.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Body of the flusher thread of a grouped policy.
+     */
+    private void groupCommits() {
+        try {
+            while (!closed) {
+                final long ticket, from;
+                
+                lock.lock();
+                try {
+                    while (taken == synced && !closed) {
+                        pending.awaitUninterruptibly();
+                    }
+                    
+                    final long deadline = System.nanoTime() + window;
+                    long left;
+                    
+                    while (!closed && position.get() - forced < groupBytes &&
+                            (left = deadline - System.nanoTime()) > 0) {
+                        try {
+                            pending.awaitNanos(left);
+                        }
+                        catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    
+                    ticket = taken;
+                    from = lowest;
+                    lowest = Long.MAX_VALUE;
+                }
+                finally {
+                    lock.unlock();
+                }
+                
+                force(from);
+                release(ticket);
+            }
+            
+            // Release anyone who took a ticket before closing
+            lock.lock();
+            try {
+                final long ticket = taken;
+                force(lowest);
+                lowest = Long.MAX_VALUE;
+                synced = ticket;
+                done.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        catch (Throwable e) {
+            fail(e);
+        }
+    }
+    
+    private void release(long ticket) {
+        lock.lock();
+        try {
+            synced = ticket;
+            done.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Body of the flusher thread of a periodic policy.
+     */
+    private void periodicForces() {
+        try {
+            while (!closed) {
+                LockSupport.parkNanos(window);
+                force(Long.MAX_VALUE);
+            }
+        }
+        catch (Throwable e) {
+            fail(e);
+        }
+    }
+    
+    /**
+     * Force all segments written to since the last force, and all segments
+     * from the specified position.<p>
+     * 
+     * The force wait for the length field of every record claimed since the
+     * last force to be written. A reader that recover the log after a crash
+     * can therefore walk past a record that was never completed, to a forced
+     * record after it.
+     * 
+     * @param from  lowest record position that must be forced
+     */
+    private void force(long from) {
+        synchronized (forceLock) {
+            final long to = position.get();
+            
+            from = Math.min(from, forced);
+            
+            if (from >= to) {
+                return;
+            }
+            
+            awaitLengths(forced, to);
+            
+            for (long n = from / segmentSize; n <= (to - 1) / segmentSize; ++n) {
+                final MappedByteBuffer b = segments.get(n);
+                
+                if (b != null) {
+                    b.force();
+                }
+            }
+            
+            forced = to;
+            forces.increment();
+        }
+    }
+    
+    /**
+     * Wait until the length field of every record claimed between the
+     * specified log positions has been written.
+     */
+    private void awaitLengths(long from, long to) {
+        long pos = from;
+        
+        while (pos < to) {
+            final long n = pos / segmentSize;
+            final int offset = (int) (pos % segmentSize);
+            
+            // ..an unmapped segment was read in full by the compactor
+            final MappedByteBuffer b = n <= unmapped ? segments.get(n) : segment(n);
+            
+            if (b == null || segmentSize - offset < HEADER) {
+                pos = (n + 1) * segmentSize;
+                continue;
+            }
+            
+            final int raw = Memory.getIntVolatile(Memory.address(b) + offset),
+                      length = SWAP ? Integer.reverseBytes(raw) : raw;
+            
+            if (length == 0) {
+                // Claimed, the writer is about to write the length
+                Thread.yield();
+                continue;
+            }
+            
+            pos += length;
+        }
+    }
+    
+    private MappedByteBuffer segment(long number) {
+        return segments.computeIfAbsent(number, n -> {
+            try (FileChannel ch = FileChannel.open(file(n), CREATE, READ, WRITE)) {
+                return ch.map(READ_WRITE, 0, segmentSize);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+    
+    private Path file(long number) {
+        return file(dir, number);
+    }
+    
+    static Path file(Path dir, long number) {
+        return dir.resolve(String.format("%016d", number) + SUFFIX);
+    }
+    
+    /**
+     * Returns the segment number of the specified file, or -1 if the file is
+     * not a segment.
+     */
+    static long segmentNumber(Path file) {
+        final String name = file.getFileName().toString();
+        
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
\ No newline at end of file
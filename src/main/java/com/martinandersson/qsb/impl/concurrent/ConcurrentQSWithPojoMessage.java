@@ -1,10 +1,12 @@
 package com.martinandersson.qsb.impl.concurrent;
 
 import com.martinandersson.qsb.impl.AbstractQS;
+import com.martinandersson.qsb.impl.Configuration;
 import static com.martinandersson.qsb.impl.Lockable.noLock;
 import java.time.Duration;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 import static com.martinandersson.qsb.impl.Configuration.message;
 import com.martinandersson.qsb.impl.PojoMessage;
 
@@ -19,9 +21,22 @@ import com.martinandersson.qsb.impl.PojoMessage;
 public class ConcurrentQSWithPojoMessage extends AbstractQS<PojoMessage>
 {
     public ConcurrentQSWithPojoMessage(Duration timeout) {
+        this(timeout, x -> {});
+    }
+    
+    /**
+     * Constructs a {@code ConcurrentQSWithPojoMessage}.
+     * 
+     * @param timeout  message timeout
+     * @param options  configuration options
+     */
+    public ConcurrentQSWithPojoMessage(Duration timeout, Consumer<Configuration<?>> options) {
         super(message(PojoMessage::new).
+              payload(PojoMessage::new).
+              offHeap(PojoMessage::new).
               timeout(timeout).
               map(noLock(new ConcurrentHashMap<>())).
-              queue(noLock(ConcurrentLinkedQueue::new)));
+              queue(noLock(ConcurrentLinkedQueue::new)),
+              options);
     }
 }
\ No newline at end of file
@@ -3,28 +3,44 @@ package com.martinandersson.qsb.impl.concurrent.atomic;
 import com.martinandersson.qsb.api.Message;
 import com.martinandersson.qsb.impl.AbstractMessage;
 import com.martinandersson.qsb.impl.GrabResponse;
+import com.martinandersson.qsb.impl.Payload;
 import static com.martinandersson.qsb.impl.GrabResponse.ACTIVE;
 import static com.martinandersson.qsb.impl.GrabResponse.COMPLETED;
 import static com.martinandersson.qsb.impl.GrabResponse.SUCCEEDED;
-import java.time.Instant;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
- * {@link Message} with atomic timestamps.<p>
+ * {@link Message} with an atomic lease deadline.<p>
  * 
- * TODO: Describe and rename to AtomicMessage.
+ * The entire processing state of the message is one {@code long}; the
+ * deadline of the current lease in terms of {@code System.nanoTime()}, or one
+ * of two sentinel values for a message that has never been grabbed and a
+ * message that has been completed. Grabbing, re-delivering and extending the
+ * lease of a message is a compare-and-set of this value and allocates nothing.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 final class AtomicMessage extends AbstractMessage
 {
+    private static final long NEW  = Long.MIN_VALUE,
+                              DONE = Long.MAX_VALUE;
+    
+    private static final AtomicLongFieldUpdater<AtomicMessage> DEADLINE
+            = AtomicLongFieldUpdater.newUpdater(AtomicMessage.class, "deadline");
+    
+    private static final AtomicIntegerFieldUpdater<AtomicMessage> DELIVERIES
+            = AtomicIntegerFieldUpdater.newUpdater(AtomicMessage.class, "deliveries");
+    
+    
+    
     /**
-     * Any thread that succeed setting this reference, has also succeeded in
-     * grabbing the message. Current "processing state" of a grabbed/delivered
-     * message may be analyzed using the Timestamps API. A re-delivery will set
-     * this reference to a new Timestamps instance.
+     * Any thread that succeed setting this value, has also succeeded in
+     * grabbing the message (or extending the lease).
      */
-    private final AtomicReference<Timestamps> timestamps;
+    private volatile long deadline = NEW;
+    
+    private volatile int deliveries;
     
     
     
@@ -36,79 +52,131 @@ final class AtomicMessage extends AbstractMessage
      */
     public AtomicMessage(String queue, String content) {
         super(queue, content);
-        this.timestamps = new AtomicReference<>();
     }
     
+    /**
+     * Constructs an {@code AtomicMessage}.
+     * 
+     * @param queue    queue
+     * @param content  UTF-8 encoded content (not copied)
+     */
+    public AtomicMessage(String queue, byte[] content) {
+        super(queue, content);
+    }
     
-    
-    private Timestamps timestamps() {
-        return timestamps.get();
+    /**
+     * Constructs an {@code AtomicMessage}.
+     * 
+     * @param queue    queue
+     * @param content  content stored off-heap
+     */
+    public AtomicMessage(String queue, Payload content) {
+        super(queue, content);
     }
     
+    
+    
     @Override
-    public void complete() {
-        final Timestamps stamps = timestamps();
-        
-        if (stamps == null) {
+    public boolean complete() {
+        if (deadline == NEW) {
             throw new IllegalStateException("Please grab the message first lol.");
         }
         
-        if (stamps.hasCompleted()) {
-            return;
-        }
-        
         // TODO: Rethink this a bit. Current design guarantee exactly-once only
         //       during contention of grabbing the message. There's still a race
         //       between complete() and tryGrab().
-        timestamps.set(stamps.asCompleted());
+        return discard();
     }
     
     @Override
-    public GrabResponse tryGrab(Instant then, Instant expires) {
-        final Timestamps oldStamps = timestamps();
-        
-        if (oldStamps != null) {
-            if (oldStamps.hasCompleted()) {
+    public boolean discard() {
+        return DEADLINE.getAndSet(this, DONE) != DONE;
+    }
+    
+    @Override
+    public GrabResponse tryDiscard(long now) {
+        for (;;) {
+            final long old = this.deadline;
+            
+            if (old == DONE) {
                 return COMPLETED;
             }
             
-            if (oldStamps.hasExpired(then)) {
-                // TODO: This is broken. We need to compareAndSet! Or something.
-                //       Currently, this message will be continously redelivered.
-                return SUCCEEDED;
+            if (old != NEW && now < old) {
+                return ACTIVE;
             }
             
-            return ACTIVE;
+            if (DEADLINE.compareAndSet(this, old, DONE)) {
+                return SUCCEEDED;
+            }
         }
-        
+    }
+    
+    @Override
+    public int deliveries() {
+        return deliveries;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void deliveries(int deliveries) {
+        this.deliveries = deliveries;
+    }
+    
+    @Override
+    public GrabResponse tryGrab(long now, long deadline) {
         /*
         
-        We only allow to set new timestamps if "expected old stamps" remain
-        the same. If the object reference has changed since we first read it,
-        then this can only be because of one of two things:
+        We only allow to set a new deadline if the "expected old deadline"
+        remain the same. If the value has changed since we first read it, then
+        this can only be because of one of three things:
         
-          1) Someone else grabbed/re-delivered the message or,
-          2) message was marked as completed.
+          1) Someone else grabbed/re-delivered the message,
+          2) the lease was extended or,
+          3) message was marked as completed.
         
-        In both cases, this method invocation will return false and the
-        calling thread need not bother any more. He can move on with his
-        life, trying to grab another message or have a cup of coffee.
+        In all cases, we start over and re-examine the new value. Most likely,
+        the calling thread will then learn that the message is active or
+        completed and can move on with his life, trying to grab another
+        message or have a cup of coffee.
         
-        */
+        This applies to a re-delivery of an expired message as well. Only one
+        thread can win the race of replacing the expired deadline.
         
-        boolean updated = timestamps.compareAndSet(
-                    oldStamps, new Timestamps(then, expires));
+        */
         
-        if (updated) {
-            return SUCCEEDED;
+        for (;;) {
+            final long old = this.deadline;
+            
+            if (old == DONE) {
+                return COMPLETED;
+            }
+            
+            if (old != NEW && now < old) {
+                return ACTIVE;
+            }
+            
+            if (DEADLINE.compareAndSet(this, old, deadline)) {
+                DELIVERIES.incrementAndGet(this);
+                return SUCCEEDED;
+            }
+        }
+    }
+    
+    @Override
+    public boolean extend(long now, long deadline) {
+        for (;;) {
+            final long old = this.deadline;
+            
+            if (old == NEW || old == DONE || now >= old) {
+                return false;
+            }
+            
+            if (DEADLINE.compareAndSet(this, old, deadline)) {
+                return true;
+            }
         }
-        
-        // TODO: We could return COMPLETED_OR_ACTIVE, which we know client will
-        // treat the same as ACTIVE anyways, meaning he will just continue and
-        // try to grab the next message. Or we do a dangerous spin (will most
-        // likely return immediately).
-        // 
-        // TODO: Use do-while instead. But sure, keep the same spin concept.
-        return tryGrab(then, expires);
     }
 }
\ No newline at end of file
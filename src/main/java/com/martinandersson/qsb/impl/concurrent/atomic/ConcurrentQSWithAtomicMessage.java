@@ -1,10 +1,12 @@
 package com.martinandersson.qsb.impl.concurrent.atomic;
 
 import com.martinandersson.qsb.impl.AbstractQS;
+import com.martinandersson.qsb.impl.Configuration;
 import static com.martinandersson.qsb.impl.Lockable.noLock;
 import java.time.Duration;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 import static com.martinandersson.qsb.impl.Configuration.message;
 
 /**
@@ -18,9 +20,22 @@ import static com.martinandersson.qsb.impl.Configuration.message;
 public class ConcurrentQSWithAtomicMessage extends AbstractQS<AtomicMessage>
 {
     public ConcurrentQSWithAtomicMessage(Duration timeout) {
+        this(timeout, x -> {});
+    }
+    
+    /**
+     * Constructs a {@code ConcurrentQSWithAtomicMessage}.
+     * 
+     * @param timeout  message timeout
+     * @param options  configuration options
+     */
+    public ConcurrentQSWithAtomicMessage(Duration timeout, Consumer<Configuration<?>> options) {
         super(message(AtomicMessage::new).
+              payload(AtomicMessage::new).
+              offHeap(AtomicMessage::new).
               timeout(timeout).
               map(noLock(new ConcurrentHashMap<>())).
-              queue(noLock(ConcurrentLinkedQueue::new)));
+              queue(noLock(ConcurrentLinkedQueue::new)),
+              options);
     }
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package com.martinandersson.qsb.impl.handle;
+
+import com.martinandersson.qsb.api.Message;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A delivered message of a {@link HandleQueue}.<p>
+ * 
+ * This is a short-lived view created by each successful poll, holding the
+ * handle and a snapshot of the message state. The queue itself store no
+ * message objects. Two views of the same message are equal.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class Handle implements Message
+{
+    private final HandleQueue owner;
+    
+    private final long id;
+    
+    /** A {@code String} or a {@code byte[]}. */
+    private final Object content;
+    
+    private final int deliveries;
+    
+    /** Guarded by the monitor of the owner. */
+    private long deadline;
+    
+    
+    
+    Handle(HandleQueue owner, long id, Object content, int deliveries, long deadline) {
+        this.owner      = owner;
+        this.id         = id;
+        this.content    = content;
+        this.deliveries = deliveries;
+        this.deadline   = deadline;
+    }
+    
+    
+    
+    HandleQueue owner() {
+        return owner;
+    }
+    
+    long deadline() {
+        return deadline;
+    }
+    
+    void deadline(long deadline) {
+        this.deadline = deadline;
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * The id is the message handle.
+     */
+    @Override
+    public long id() {
+        return id;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int deliveries() {
+        return deliveries;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String queue() {
+        return owner.name();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String get() {
+        return content instanceof String ?
+                (String) content :
+                new String((byte[]) content, UTF_8);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer buffer() {
+        final byte[] bytes = content instanceof String ?
+                ((String) content).getBytes(UTF_8) :
+                (byte[]) content;
+        
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id) ^ owner.hashCode();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Handle)) {
+            return false;
+        }
+        
+        final Handle that = (Handle) other;
+        return this.owner == that.owner && this.id == that.id;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,230 @@
+package com.martinandersson.qsb.impl.handle;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A queue service that store messages as {@code long} handles.<p>
+ * 
+ * Each queue is a {@link HandleQueue}, which keep the state of its messages in
+ * segmented primitive arrays and is guarded by its own monitor. Queues are
+ * mapped using a {@code ConcurrentHashMap} and are never removed.<p>
+ * 
+ * This queue service is not built on {@code AbstractQS} and support the core
+ * API only: push and poll (by queue name and by registered id), leases and
+ * completion. Grouped, idempotent, delayed and prioritized push and negative
+ * acknowledgement are not supported.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class HandleQS implements QueueService
+{
+    private final long timeout;
+    
+    private final Map<String, HandleQueue> queues = new ConcurrentHashMap<>();
+    
+    /**
+     * Registered queues, indexed by id.<p>
+     * 
+     * Copy-on-write, written by {@code register()} while holding {@code this}.
+     */
+    private volatile HandleQueue[] registered = new HandleQueue[0];
+    
+    
+    
+    public HandleQS(Duration timeout) {
+        this.timeout = nanos(timeout);
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void push(String queue, String message) {
+        queue(queue).push(requireNonNull(message));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * The array is stored as is.
+     */
+    @Override
+    public void push(String queue, byte[] message) {
+        queue(queue).push(requireNonNull(message));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void push(int queue, String message) {
+        registered(queue).push(requireNonNull(message));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @implNote
+     * A successful poll creates one object; the returned message.
+     */
+    @Override
+    public Message poll(String queue) {
+        return poll(queues.get(queue), timeout);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Message poll(String queue, Duration lease) {
+        if (lease.isNegative()) {
+            throw new IllegalArgumentException("Negative: " + lease);
+        }
+        
+        return poll(queues.get(queue), nanos(lease));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Message poll(int queue) {
+        return poll(registered(queue), timeout);
+    }
+    
+    private static Message poll(HandleQueue q, long lease) {
+        if (q == null) {
+            return null;
+        }
+        
+        final long now = System.nanoTime();
+        return q.poll(now, deadline(now, lease));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException
+     *             if the message was not polled from this queue service, or
+     *             the lease is negative
+     */
+    @Override
+    public boolean extend(Message message, Duration lease) {
+        final Handle h = handle(message);
+        
+        if (lease.isNegative()) {
+            throw new IllegalArgumentException("Negative: " + lease);
+        }
+        
+        final long now = System.nanoTime();
+        
+        return h.owner().extend(h, now, deadline(now, nanos(lease)));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException
+     *             if the message was not polled from this queue service
+     */
+    @Override
+    public void complete(Message message) {
+        final Handle h = handle(message);
+        h.owner().complete(h.id(), h.id() + 1);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void complete(String queue, long id) {
+        complete(queue, id, id + 1);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void complete(String queue, long fromId, long toId) {
+        final HandleQueue q = queues.get(queue);
+        
+        if (q != null) {
+            q.complete(fromId, toId);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int register(String queue) {
+        final HandleQueue q = queue(queue);
+        final HandleQueue[] arr = registered;
+        
+        for (int i = 0; i < arr.length; ++i) {
+            if (arr[i] == q) {
+                return i;
+            }
+        }
+        
+        final HandleQueue[] copy = Arrays.copyOf(arr, arr.length + 1);
+        copy[arr.length] = q;
+        registered = copy;
+        return arr.length;
+    }
+    
+    private HandleQueue queue(String name) {
+        return queues.computeIfAbsent(name, HandleQueue::new);
+    }
+    
+    private HandleQueue registered(int id) {
+        final HandleQueue[] arr = registered;
+        
+        if (id < 0 || id >= arr.length) {
+            throw new IllegalArgumentException("Unknown queue id: " + id);
+        }
+        
+        return arr[id];
+    }
+    
+    private static Handle handle(Message message) {
+        if (!(requireNonNull(message) instanceof Handle)) {
+            throw new IllegalArgumentException(
+                    "Where the hell did you get this thing from?");
+        }
+        
+        return (Handle) message;
+    }
+    
+    private static long nanos(Duration duration) {
+        try {
+            return duration.toNanos();
+        }
+        catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+    
+    /**
+     * Returns {@code now + lease}, saturated so that the result never reach
+     * {@code Long.MAX_VALUE} (which is used as a sentinel).
+     */
+    private static long deadline(long now, long lease) {
+        final long d = now + lease;
+        
+        if (((now ^ d) & (lease ^ d)) < 0 || d == Long.MAX_VALUE) {
+            return Long.MAX_VALUE - 1;
+        }
+        
+        return d;
+    }
+}
\ No newline at end of file
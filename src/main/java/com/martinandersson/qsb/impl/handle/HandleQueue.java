@@ -0,0 +1,236 @@
+package com.martinandersson.qsb.impl.handle;
+
+import java.util.Arrays;
+
+/**
+ * A queue of message handles.<p>
+ * 
+ * A handle is the id of a message; a sequence number assigned when the message
+ * is pushed. The state of all messages is kept in segments of parallel
+ * arrays, indexed by the low bits of the handle. Per message, there is one
+ * {@code long} lease deadline, one {@code int} delivery count and one
+ * reference to the content. No object is created per message on push, and the
+ * poll scan walk primitive arrays instead of chasing pointers.<p>
+ * 
+ * The deadline use the same two sentinel values as {@code AbstractMessage}
+ * implementations; one for a message that has never been grabbed and one for
+ * a message that has been completed.<p>
+ * 
+ * The head is advanced past completed messages by the poll scan. Once the
+ * head leaves a segment behind, the segment is retired and kept as a spare for
+ * the next segment needed at the tail.<p>
+ * 
+ * All access is serialized using the monitor of the queue.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class HandleQueue
+{
+    /** Messages per segment is {@code 1 << SHIFT}. */
+    static final int SHIFT = 10,
+                     SIZE  = 1 << SHIFT,
+                     MASK  = SIZE - 1;
+    
+    private static final long NEW  = Long.MIN_VALUE,
+                              DONE = Long.MAX_VALUE;
+    
+    private final String name;
+    
+    /**
+     * Live segments, indexed by segment number (handle {@code >>> SHIFT}) modulo
+     * the length, which is a power of two.
+     */
+    private Segment[] ring = new Segment[4];
+    
+    /** Retired segment, or {@code null}. */
+    private Segment spare;
+    
+    /** First handle not known to be completed, and the next handle. */
+    private long head, tail;
+    
+    
+    
+    HandleQueue(String name) {
+        this.name = name;
+    }
+    
+    
+    
+    String name() {
+        return name;
+    }
+    
+    /**
+     * Push a message.
+     * 
+     * @param content  message content
+     * 
+     * @return message handle
+     */
+    synchronized long push(Object content) {
+        final long h = tail;
+        
+        if ((h & MASK) == 0) {
+            install(h >>> SHIFT);
+        }
+        
+        segment(h).contents[(int) h & MASK] = content;
+        tail = h + 1;
+        return h;
+    }
+    
+    /**
+     * Grab the first message that has not been grabbed or whose lease has
+     * expired.
+     * 
+     * @param now       current {@code System.nanoTime()}
+     * @param deadline  lease deadline in terms of {@code System.nanoTime()}
+     * 
+     * @return a message, or {@code null} if no message was available
+     */
+    synchronized Handle poll(long now, long deadline) {
+        advance();
+        
+        for (long h = head; h < tail;) {
+            final Segment s = segment(h);
+            final int end = (int) Math.min(SIZE, tail - (h & ~MASK));
+            
+            for (int i = (int) h & MASK; i < end; ++i) {
+                final long d = s.deadlines[i];
+                
+                if (d == NEW || (d != DONE && now >= d)) {
+                    s.deadlines[i] = deadline;
+                    return new Handle(this, (h & ~MASK) | i, s.contents[i],
+                            ++s.deliveries[i], deadline);
+                }
+            }
+            
+            h = (h & ~MASK) + SIZE;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Extend the lease of specified message.
+     * 
+     * @param msg       message
+     * @param now       current {@code System.nanoTime()}
+     * @param deadline  new lease deadline in terms of {@code System.nanoTime()}
+     * 
+     * @return {@code true} if the lease was extended, {@code false} if the
+     *         lease had expired, was not held by the message or the message
+     *         has been completed
+     */
+    synchronized boolean extend(Handle msg, long now, long deadline) {
+        final long h = msg.id();
+        
+        if (h < head || h >= tail) {
+            return false;
+        }
+        
+        final Segment s = segment(h);
+        final int i = (int) h & MASK;
+        
+        if (s.deadlines[i] != msg.deadline() || now >= s.deadlines[i]) {
+            return false;
+        }
+        
+        s.deadlines[i] = deadline;
+        msg.deadline(deadline);
+        return true;
+    }
+    
+    /**
+     * Complete all delivered messages with a handle in the specified range.
+     * Messages that has not been delivered are not affected.
+     * 
+     * @param from  first handle (inclusive)
+     * @param to    last handle (exclusive)
+     */
+    synchronized void complete(long from, long to) {
+        for (long h = Math.max(from, head), end = Math.min(to, tail); h < end; ++h) {
+            final Segment s = segment(h);
+            final int i = (int) h & MASK;
+            
+            if (s.deadlines[i] != NEW) {
+                s.deadlines[i] = DONE;
+                s.contents[i] = null;
+            }
+        }
+    }
+    
+    private Segment segment(long handle) {
+        return ring[(int) (handle >>> SHIFT) & (ring.length - 1)];
+    }
+    
+    /**
+     * Install a segment for the specified segment number, growing the ring if
+     * need be.
+     */
+    private void install(long number) {
+        final long first = head >>> SHIFT;
+        
+        if (number - first >= ring.length) {
+            final Segment[] old = ring;
+            ring = new Segment[old.length << 1];
+            
+            for (long n = first; n < number; ++n) {
+                ring[(int) n & (ring.length - 1)] = old[(int) n & (old.length - 1)];
+            }
+        }
+        
+        final Segment s;
+        
+        if (spare != null) {
+            s = spare;
+            spare = null;
+        }
+        else {
+            s = new Segment();
+        }
+        
+        ring[(int) number & (ring.length - 1)] = s;
+    }
+    
+    /**
+     * Move the head past completed messages, retiring each segment left
+     * behind.
+     */
+    private void advance() {
+        while (head < tail) {
+            final Segment s = segment(head);
+            final int i = (int) head & MASK;
+            
+            if (s.deadlines[i] != DONE) {
+                return;
+            }
+            
+            if ((++head & MASK) == 0) {
+                ring[(int) ((head - 1) >>> SHIFT) & (ring.length - 1)] = null;
+                spare = s.reset();
+            }
+        }
+    }
+    
+    
+    
+    private static final class Segment {
+        final long[] deadlines = new long[SIZE];
+        
+        final int[] deliveries = new int[SIZE];
+        
+        final Object[] contents = new Object[SIZE];
+        
+        Segment() {
+            Arrays.fill(deadlines, NEW);
+        }
+        
+        Segment reset() {
+            Arrays.fill(deadlines, NEW);
+            Arrays.fill(deliveries, 0);
+            // ..contents are cleared on completion
+            return this;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,44 @@
+package com.martinandersson.qsb.impl.priority;
+
+import com.martinandersson.qsb.impl.AbstractQS;
+import com.martinandersson.qsb.impl.Configuration;
+import static com.martinandersson.qsb.impl.Configuration.message;
+import static com.martinandersson.qsb.impl.Lockable.mutex;
+import static com.martinandersson.qsb.impl.Lockable.noLock;
+import com.martinandersson.qsb.impl.PojoMessage;
+import com.martinandersson.qsb.impl.PriorityLanes;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * A queue service that honor message priorities.<p>
+ * 
+ * Uses {@code PojoMessage}, a {@code HashMap} guarded by Java's {@code
+ * synchronized} keyword and {@code PriorityLanes} of {@code ArrayDeque}s.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public class PriorityQS extends AbstractQS<PojoMessage>
+{
+    public PriorityQS(Duration timeout) {
+        this(timeout, x -> {});
+    }
+    
+    /**
+     * Constructs a {@code PriorityQS}.
+     * 
+     * @param timeout  message timeout
+     * @param options  configuration options
+     */
+    public PriorityQS(Duration timeout, Consumer<Configuration<?>> options) {
+        super(message(PojoMessage::new).
+              payload(PojoMessage::new).
+              offHeap(PojoMessage::new).
+              timeout(timeout).
+              map(mutex(new HashMap<>())).
+              queue(noLock(() -> new PriorityLanes<>(PojoMessage::priority, ArrayDeque::new))),
+              options);
+    }
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.martinandersson.qsb.impl.readwritelock;
 
 import com.martinandersson.qsb.impl.AbstractQS;
+import com.martinandersson.qsb.impl.Configuration;
 import static com.martinandersson.qsb.impl.Configuration.message;
 import static com.martinandersson.qsb.impl.Lockable.readWrite;
 import com.martinandersson.qsb.impl.PojoMessage;
@@ -8,6 +9,7 @@ import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 /**
  * Queue service that use {@code ReentrantReadWriteLock} for synchronization.
@@ -22,9 +24,22 @@ public class ReadWriteLockedQS extends AbstractQS<PojoMessage>
      * @param timeout  message timeout
      */
     public ReadWriteLockedQS(Duration timeout) {
+        this(timeout, x -> {});
+    }
+    
+    /**
+     * Constructs a {@code ReadWriteLockedQS}.
+     * 
+     * @param timeout  message timeout
+     * @param options  configuration options
+     */
+    public ReadWriteLockedQS(Duration timeout, Consumer<Configuration<?>> options) {
         super(message(PojoMessage::new).
+              payload(PojoMessage::new).
+              offHeap(PojoMessage::new).
               timeout(timeout).
               map(readWrite(new HashMap<>(), new ReentrantReadWriteLock())).
-              queue(readWrite(ArrayDeque::new, ReentrantReadWriteLock::new)));
+              queue(readWrite(ArrayDeque::new, ReentrantReadWriteLock::new)),
+              options);
     }
 }
\ No newline at end of file
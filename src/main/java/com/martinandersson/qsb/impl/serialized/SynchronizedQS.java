@@ -1,6 +1,7 @@
 package com.martinandersson.qsb.impl.serialized;
 
 import com.martinandersson.qsb.impl.AbstractQS;
+import com.martinandersson.qsb.impl.Configuration;
 import static com.martinandersson.qsb.impl.Configuration.message;
 import static com.martinandersson.qsb.impl.Lockable.mutex;
 import static com.martinandersson.qsb.impl.Lockable.noLock;
@@ -8,6 +9,7 @@ import com.martinandersson.qsb.impl.PojoMessage;
 import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.function.Consumer;
 
 /**
  * A queue service that uses Java's {@code synchronized} keyword.
@@ -17,9 +19,22 @@ import java.util.HashMap;
 public class SynchronizedQS extends AbstractQS<PojoMessage>
 {
     public SynchronizedQS(Duration timeout) {
+        this(timeout, x -> {});
+    }
+    
+    /**
+     * Constructs a {@code SynchronizedQS}.
+     * 
+     * @param timeout  message timeout
+     * @param options  configuration options
+     */
+    public SynchronizedQS(Duration timeout, Consumer<Configuration<?>> options) {
         super(message(PojoMessage::new).
+              payload(PojoMessage::new).
+              offHeap(PojoMessage::new).
               timeout(timeout).
               map(mutex(new HashMap<>())).
-              queue(noLock(ArrayDeque::new)));
+              queue(noLock(ArrayDeque::new)),
+              options);
     }
 }
\ No newline at end of file
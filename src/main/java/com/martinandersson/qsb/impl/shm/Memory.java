@@ -0,0 +1,89 @@
+package com.martinandersson.qsb.impl.shm;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import sun.misc.Unsafe;
+
+/**
+ * Atomic access of {@code long} and {@code int} words in a direct buffer, by
+ * absolute address.<p>
+ * 
+ * {@code ByteBuffer} has no compare-and-set, and in Java 8 there are no var
+ * handles, so this class use {@code sun.misc.Unsafe}. The address of a word
+ * must be naturally aligned, or the operations are not atomic. All methods are
+ * static and take an address obtained from {@link #address(ByteBuffer)} plus
+ * an offset; the caller must keep the buffer reachable.<p>
+ * 
+ * Public for the other implementations of this library, not for
+ * applications.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Memory
+{
+    private static final Unsafe UNSAFE;
+    
+    private static final long ADDRESS;
+    
+    static {
+        try {
+            final Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (Unsafe) f.get(null);
+            ADDRESS = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private Memory() {
+        // Empty
+    }
+    
+    /**
+     * Returns the base address of specified direct buffer.
+     * 
+     * @param buffer  a direct buffer
+     * 
+     * @return the base address of the buffer
+     * 
+     * @throws IllegalArgumentException if the buffer is not direct
+     */
+    public static long address(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Not direct.");
+        }
+        
+        return UNSAFE.getLong(buffer, ADDRESS);
+    }
+    
+    public static long getLongVolatile(long address) {
+        return UNSAFE.getLongVolatile(null, address);
+    }
+    
+    public static void putLongVolatile(long address, long value) {
+        UNSAFE.putLongVolatile(null, address, value);
+    }
+    
+    public static void putLongOrdered(long address, long value) {
+        UNSAFE.putOrderedLong(null, address, value);
+    }
+    
+    public static boolean compareAndSetLong(long address, long expected, long value) {
+        return UNSAFE.compareAndSwapLong(null, address, expected, value);
+    }
+    
+    public static int getIntVolatile(long address) {
+        return UNSAFE.getIntVolatile(null, address);
+    }
+    
+    public static void putIntOrdered(long address, int value) {
+        UNSAFE.putOrderedInt(null, address, value);
+    }
+    
+    public static int incrementInt(long address) {
+        return UNSAFE.getAndAddInt(null, address, 1) + 1;
+    }
+}
\ No newline at end of file
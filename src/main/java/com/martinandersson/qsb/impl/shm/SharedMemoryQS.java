@@ -0,0 +1,689 @@
+package com.martinandersson.qsb.impl.shm;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue service shared by processes on the same host, through a
+ * memory-mapped file.<p>
+ * 
+ * All state lives in the file, by default under {@code /dev/shm} which is a
+ * memory-backed file system on Linux. Each process maps the file and use
+ * compare-and-set on the mapped memory to coordinate with the others; there
+ * are no locks, sockets or serialization round trips. The file is created by
+ * the first process and must be deleted when no longer used.<p>
+ * 
+ * The file holds a fixed number of queues, each with a fixed number of
+ * fixed-size slots:
+ * 
+ * <pre>
+ *   header:  long state, int magic, int version, int queues, int slots,
+ *            int slot size
+ *   queues:  long state, int name length, name, long head, long tail
+ *            (head and tail on cache lines of their own)
+ *   slots:   long sequence, long lease, int deliveries, int content length,
+ *            content
+ * </pre>
+ * 
+ * A queue is claimed by the first push to its name, using open addressing of
+ * the queue table. Each queue is a bounded ring; a push claims the slot at the
+ * tail by a compare-and-set and publish the message by writing the sequence of
+ * the slot. A poll walks from the head to the tail and leases the first
+ * message that is available, or whose lease has expired, by a compare-and-set
+ * of the lease word. Completing a message is another compare-and-set. The head
+ * is moved past completed messages, which frees their slots for the next
+ * lap.<p>
+ * 
+ * The lease word carry the lap of the message in its upper bits and the lease
+ * deadline in the lower bits, so that a slow process can never lease or
+ * complete a message of a later lap that reuse the same slot. Deadlines are
+ * measured by the wall clock, the only clock shared by processes.<p>
+ * 
+ * The message id is the position of the message in its ring. A poll copies the
+ * content out of the slot.<p>
+ * 
+ * This queue service support the core API only: push and poll (by queue name
+ * and by registered id), leases, negative acknowledgement and completion. A
+ * push to a full queue, or of a message that does not fit in a slot, fails.<p>
+ * 
+ * A process that dies between claiming a slot and publishing the message
+ * wedges the queue: the slot is never published, so the head can not move
+ * past it and once the ring has lapped, every push fails as if the queue was
+ * full. Claims are not reclaimed, since a producer that is merely slow could
+ * then write its content into a slot already reused for another message. A
+ * wedged queue is recovered only by deleting the file.<p>
+ * 
+ * Likewise, a process that dies between claiming an entry of the queue table
+ * and writing the queue name leaves the entry claimed for good. A lookup that
+ * probes the entry waits for the name for 10 seconds, then fails with an
+ * {@code IllegalStateException}; so does every later lookup of a queue whose
+ * probe sequence pass the entry, until the file is deleted.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class SharedMemoryQS implements QueueService
+{
+    /**
+     * Default directory of shared files.
+     */
+    public static final Path SHM = Paths.get("/dev/shm");
+    
+    private static final int MAGIC = 0x51534253, // "QSBS"
+                             VERSION = 1;
+    
+    private static final int HEADER = 64,
+                             ENTRY = 192,
+                             MAX_NAME = 52;
+    
+    // Header offsets
+    private static final int H_STATE = 0, H_MAGIC = 8, H_VERSION = 12,
+                             H_QUEUES = 16, H_SLOTS = 20, H_SLOT_SIZE = 24;
+    
+    // Queue entry offsets
+    private static final int E_STATE = 0, E_LENGTH = 8, E_NAME = 12,
+                             E_HEAD = 64, E_TAIL = 128;
+    
+    // Slot offsets
+    private static final int S_SEQUENCE = 0, S_LEASE = 8, S_DELIVERIES = 16,
+                             S_LENGTH = 20, S_CONTENT = 24;
+    
+    // File states
+    private static final long UNINITIALIZED = 0, INITIALIZING = 1, INITIALIZED = 2;
+    
+    // Queue entry states
+    private static final long FREE = 0, CLAIMED = 1, NAMED = 2;
+    
+    /** Bits of a lease word that hold the value, the rest hold the lap. */
+    private static final int VALUE_BITS = 43;
+    
+    // Lease values
+    private static final long VALUE_MASK = (1L << VALUE_BITS) - 1,
+                              AVAILABLE  = 0,
+                              COMPLETED  = VALUE_MASK;
+    
+    private static final long INIT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    
+    private final Path file;
+    
+    /**
+     * The mapping. Used for bulk and header access; it must also stay
+     * reachable for as long as {@code base} is used.
+     */
+    private final MappedByteBuffer buffer;
+    
+    private final long base;
+    
+    private final int queues, slots, slotSize, shift;
+    
+    private final long lease;
+    
+    /** Queue name to index of the queue table. */
+    private final Map<String, Integer> indices = new ConcurrentHashMap<>();
+    
+    /**
+     * Registered queues, indexed by id.<p>
+     * 
+     * Copy-on-write, written by {@code register()} while holding {@code this}.
+     */
+    private volatile String[] registered = new String[0];
+    
+    
+    
+    /**
+     * Constructs a {@code SharedMemoryQS} using a file under {@link #SHM},
+     * with 64 queues of 4096 slots of 256 bytes.
+     * 
+     * @param name     file name
+     * @param timeout  lease length
+     * 
+     * @throws UncheckedIOException on I/O error
+     * @throws IllegalStateException
+     *             if the file was created with a different geometry
+     */
+    public SharedMemoryQS(String name, Duration timeout) {
+        this(SHM.resolve(name), 64, 4096, 256, timeout);
+    }
+    
+    /**
+     * Constructs a {@code SharedMemoryQS}.<p>
+     * 
+     * The file is created and initialized if need be. All processes must use
+     * the same geometry.
+     * 
+     * @param file      shared file
+     * @param queues    max number of queues
+     * @param slots     slots per queue, a power of two
+     * @param slotSize  size of each slot in bytes, a multiple of 8, including
+     *                  a header of 24 bytes
+     * @param timeout   lease length
+     * 
+     * @throws IllegalArgumentException if the geometry is not valid
+     * @throws UncheckedIOException on I/O error
+     * @throws IllegalStateException
+     *             if the file was created with a different geometry
+     */
+    public SharedMemoryQS(Path file, int queues, int slots, int slotSize, Duration timeout) {
+        final long size = HEADER + (long) queues * ENTRY + (long) queues * slots * slotSize;
+        
+        if (queues <= 0 || slots <= 0 || Integer.bitCount(slots) != 1 ||
+                slotSize <= S_CONTENT || slotSize % 8 != 0 || size > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("queues=" + queues +
+                    ", slots=" + slots + ", slotSize=" + slotSize);
+        }
+        
+        this.file = file;
+        this.queues = queues;
+        this.slots = slots;
+        this.slotSize = slotSize;
+        this.shift = Integer.numberOfTrailingZeros(slots);
+        this.lease = millis(timeout);
+        
+        try (FileChannel ch = FileChannel.open(file, CREATE, READ, WRITE)) {
+            if (ch.size() < size) {
+                ch.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+            
+            buffer = ch.map(READ_WRITE, 0, size);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        buffer.order(ByteOrder.nativeOrder());
+        base = Memory.address(buffer);
+        init();
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void push(String queue, String message) {
+        push(queue, message.getBytes(UTF_8));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException
+     *             if the message does not fit in a slot, or the queue name is
+     *             longer than 52 bytes
+     * @throws IllegalStateException
+     *             if the queue is full, there is no room for another queue,
+     *             or the queue table hold an entry never named
+     */
+    @Override
+    public void push(String queue, byte[] message) {
+        if (message.length > slotSize - S_CONTENT) {
+            throw new IllegalArgumentException("Message too large: " + message.length + " bytes.");
+        }
+        
+        final int q = index(queue, true);
+        final long tail = base + entry(q) + E_TAIL;
+        
+        for (;;) {
+            final long pos = Memory.getLongVolatile(tail),
+                       lap = pos >>> shift,
+                       seq = Memory.getLongVolatile(base + slot(q, pos) + S_SEQUENCE);
+            
+            if (seq == lap << 1) {
+                if (Memory.compareAndSetLong(tail, pos, pos + 1)) {
+                    write(slot(q, pos), lap, message);
+                    return;
+                }
+            }
+            else if (seq < lap << 1) {
+                throw new IllegalStateException("Queue full: " + queue);
+            }
+            
+            // ..else another producer claimed the slot, try again
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void push(int queue, String message) {
+        push(registered(queue), message);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Message poll(String queue) {
+        return poll(queue, lease);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Message poll(String queue, Duration lease) {
+        if (lease.isNegative()) {
+            throw new IllegalArgumentException("Negative: " + lease);
+        }
+        
+        return poll(queue, millis(lease));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Message poll(int queue) {
+        return poll(registered(queue), lease);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean extend(Message message, Duration lease) {
+        if (lease.isNegative()) {
+            throw new IllegalArgumentException("Negative: " + lease);
+        }
+        
+        final SharedMessage m = (SharedMessage) message;
+        final long now = System.currentTimeMillis();
+        
+        return relet(m.index(), m.id(), now, deadline(now, millis(lease)));
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * The message is available again once the backoff has passed.
+     */
+    @Override
+    public void nack(Message message, Duration backoff) {
+        if (backoff.isNegative()) {
+            throw new IllegalArgumentException("Negative: " + backoff);
+        }
+        
+        final SharedMessage m = (SharedMessage) message;
+        final long now = System.currentTimeMillis();
+        
+        relet(m.index(), m.id(), now, deadline(now, millis(backoff)));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void complete(Message message) {
+        final SharedMessage m = (SharedMessage) message;
+        complete(m.index(), m.id());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void complete(String queue, long id) {
+        final int q = index(queue, false);
+        
+        if (q >= 0) {
+            complete(q, id);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int register(String queue) {
+        index(queue, true);
+        
+        final String[] arr = registered;
+        
+        for (int i = 0; i < arr.length; ++i) {
+            if (arr[i].equals(queue)) {
+                return i;
+            }
+        }
+        
+        final String[] copy = Arrays.copyOf(arr, arr.length + 1);
+        copy[arr.length] = queue;
+        registered = copy;
+        return arr.length;
+    }
+    
+    /**
+     * Returns the shared file.
+     * 
+     * @return the shared file
+     */
+    public Path file() {
+        return file;
+    }
+    
+    
+    
+    private Message poll(String queue, long lease) {
+        final int q = index(queue, false);
+        
+        if (q < 0) {
+            return null;
+        }
+        
+        final long now = System.currentTimeMillis(),
+                   deadline = deadline(now, lease),
+                   end = Memory.getLongVolatile(base + entry(q) + E_TAIL);
+        
+        for (long pos = Memory.getLongVolatile(base + entry(q) + E_HEAD); pos < end; ++pos) {
+            final long slot = slot(q, pos),
+                       lap  = pos >>> shift;
+            
+            if (Memory.getLongVolatile(base + slot + S_SEQUENCE) != (lap << 1) + 1) {
+                // ..not yet published, or already recycled
+                continue;
+            }
+            
+            final long w = Memory.getLongVolatile(base + slot + S_LEASE),
+                       v = w & VALUE_MASK;
+            
+            if (w != word(lap, v) || v == COMPLETED || (v != AVAILABLE && v > now)) {
+                continue;
+            }
+            
+            if (Memory.compareAndSetLong(base + slot + S_LEASE, w, word(lap, deadline))) {
+                final int deliveries = Memory.incrementInt(base + slot + S_DELIVERIES);
+                return new SharedMessage(this, queue, q, pos, read(slot), deliveries);
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Set a new deadline of a leased message.
+     * 
+     * @return {@code true} if the message was leased, otherwise {@code false}
+     */
+    private boolean relet(int q, long id, long now, long deadline) {
+        final long addr = base + slot(q, id) + S_LEASE,
+                   lap  = id >>> shift;
+        
+        for (;;) {
+            final long w = Memory.getLongVolatile(addr),
+                       v = w & VALUE_MASK;
+            
+            if (w != word(lap, v) || v == COMPLETED || v == AVAILABLE || v <= now) {
+                return false;
+            }
+            
+            if (Memory.compareAndSetLong(addr, w, word(lap, deadline))) {
+                return true;
+            }
+        }
+    }
+    
+    private void complete(int q, long id) {
+        final long slot = slot(q, id),
+                   lap  = id >>> shift;
+        
+        if (id < 0 || Memory.getLongVolatile(base + slot + S_SEQUENCE) != (lap << 1) + 1) {
+            return;
+        }
+        
+        for (;;) {
+            final long w = Memory.getLongVolatile(base + slot + S_LEASE),
+                       v = w & VALUE_MASK;
+            
+            // ..only a delivered message can be completed
+            if (w != word(lap, v) || v == COMPLETED || v == AVAILABLE) {
+                return;
+            }
+            
+            if (Memory.compareAndSetLong(base + slot + S_LEASE, w, word(lap, COMPLETED))) {
+                advance(q);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Move the head past completed messages, freeing their slots.
+     */
+    private void advance(int q) {
+        final long head = base + entry(q) + E_HEAD;
+        
+        for (;;) {
+            final long pos  = Memory.getLongVolatile(head),
+                       slot = slot(q, pos),
+                       lap  = pos >>> shift;
+            
+            if (Memory.getLongVolatile(base + slot + S_SEQUENCE) != (lap << 1) + 1 ||
+                    Memory.getLongVolatile(base + slot + S_LEASE) != word(lap, COMPLETED)) {
+                return;
+            }
+            
+            if (Memory.compareAndSetLong(head, pos, pos + 1)) {
+                Memory.putLongOrdered(base + slot + S_SEQUENCE, (lap + 1) << 1);
+            }
+        }
+    }
+    
+    private void write(long slot, long lap, byte[] content) {
+        final ByteBuffer b = buffer.duplicate();
+        b.position((int) slot + S_CONTENT);
+        b.put(content);
+        
+        buffer.putInt((int) slot + S_DELIVERIES, 0);
+        buffer.putInt((int) slot + S_LENGTH, content.length);
+        buffer.putLong((int) slot + S_LEASE, word(lap, AVAILABLE));
+        
+        // Publish
+        Memory.putLongVolatile(base + slot + S_SEQUENCE, (lap << 1) + 1);
+    }
+    
+    private byte[] read(long slot) {
+        final byte[] content = new byte[buffer.getInt((int) slot + S_LENGTH)];
+        final ByteBuffer b = buffer.duplicate();
+        b.position((int) slot + S_CONTENT);
+        b.get(content);
+        return content;
+    }
+    
+    /**
+     * Initialize the header, or wait for another process to do so and verify
+     * the geometry.
+     */
+    private void init() {
+        final long state = base + H_STATE;
+        
+        if (Memory.compareAndSetLong(state, UNINITIALIZED, INITIALIZING)) {
+            buffer.putInt(H_MAGIC, MAGIC)
+                  .putInt(H_VERSION, VERSION)
+                  .putInt(H_QUEUES, queues)
+                  .putInt(H_SLOTS, slots)
+                  .putInt(H_SLOT_SIZE, slotSize);
+            
+            Memory.putLongVolatile(state, INITIALIZED);
+            return;
+        }
+        
+        final long giveUp = System.currentTimeMillis() + INIT_TIMEOUT;
+        
+        while (Memory.getLongVolatile(state) != INITIALIZED) {
+            if (System.currentTimeMillis() > giveUp) {
+                throw new IllegalStateException("Not initialized: " + file);
+            }
+            
+            Thread.yield();
+        }
+        
+        if (buffer.getInt(H_MAGIC)     != MAGIC  ||
+            buffer.getInt(H_VERSION)   != VERSION ||
+            buffer.getInt(H_QUEUES)    != queues ||
+            buffer.getInt(H_SLOTS)     != slots  ||
+            buffer.getInt(H_SLOT_SIZE) != slotSize)
+        {
+            throw new IllegalStateException("Incompatible file: " + file);
+        }
+    }
+    
+    /**
+     * Returns the index of a queue in the queue table, or -1 if the queue does
+     * not exist and {@code create} is {@code false}.
+     */
+    private int index(String queue, boolean create) {
+        final Integer cached = indices.get(requireNonNull(queue));
+        
+        if (cached != null) {
+            return cached;
+        }
+        
+        final byte[] name = queue.getBytes(UTF_8);
+        
+        if (name.length > MAX_NAME) {
+            throw new IllegalArgumentException("Queue name too long: " + queue);
+        }
+        
+        final int start = (queue.hashCode() & Integer.MAX_VALUE) % queues;
+        
+        for (int n = 0; n < queues; ++n) {
+            final int i = (start + n) % queues,
+                      e = entry(i);
+            
+            final long state = base + e + E_STATE;
+            
+            if (Memory.getLongVolatile(state) == FREE) {
+                if (!create) {
+                    return -1;
+                }
+                
+                if (Memory.compareAndSetLong(state, FREE, CLAIMED)) {
+                    buffer.putInt(e + E_LENGTH, name.length);
+                    
+                    for (int k = 0; k < name.length; ++k) {
+                        buffer.put(e + E_NAME + k, name[k]);
+                    }
+                    
+                    Memory.putLongVolatile(state, NAMED);
+                    indices.put(queue, i);
+                    return i;
+                }
+            }
+            
+            awaitNamed(state, queue);
+            
+            if (matches(e, name)) {
+                indices.put(queue, i);
+                return i;
+            }
+        }
+        
+        if (create) {
+            throw new IllegalStateException("No room for queue: " + queue);
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Wait for a queue entry claimed by another process to be named. A
+     * process that died before naming the entry is given up on after the
+     * same timeout as {@link #init()}.
+     */
+    private void awaitNamed(long state, String queue) {
+        if (Memory.getLongVolatile(state) != CLAIMED) {
+            return;
+        }
+        
+        final long giveUp = System.currentTimeMillis() + INIT_TIMEOUT;
+        
+        while (Memory.getLongVolatile(state) == CLAIMED) {
+            if (System.currentTimeMillis() > giveUp) {
+                throw new IllegalStateException(
+                        "Queue entry never named, looking for " + queue + " in " + file);
+            }
+            
+            Thread.yield();
+        }
+    }
+    
+    private boolean matches(int entry, byte[] name) {
+        if (buffer.getInt(entry + E_LENGTH) != name.length) {
+            return false;
+        }
+        
+        for (int k = 0; k < name.length; ++k) {
+            if (buffer.get(entry + E_NAME + k) != name[k]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private String registered(int id) {
+        final String[] arr = registered;
+        
+        if (id < 0 || id >= arr.length) {
+            throw new IllegalArgumentException("Unknown queue id: " + id);
+        }
+        
+        return arr[id];
+    }
+    
+    private static int entry(int queue) {
+        return HEADER + queue * ENTRY;
+    }
+    
+    /**
+     * Returns the buffer offset of the slot of a ring position.
+     */
+    private long slot(int queue, long pos) {
+        return HEADER + (long) queues * ENTRY +
+               ((long) queue * slots + (pos & (slots - 1))) * slotSize;
+    }
+    
+    /**
+     * Returns a lease word of specified lap and value.
+     */
+    private static long word(long lap, long value) {
+        return lap << VALUE_BITS | value;
+    }
+    
+    private static long millis(Duration duration) {
+        try {
+            return duration.toMillis();
+        }
+        catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+    
+    /**
+     * Returns {@code now + lease}, saturated so that the result never reach
+     * the completed sentinel.
+     */
+    private static long deadline(long now, long lease) {
+        return lease >= COMPLETED - 1 - now ? COMPLETED - 1 : now + lease;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,113 @@
+package com.martinandersson.qsb.impl.shm;
+
+import com.martinandersson.qsb.api.Message;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A delivered message of a {@link SharedMemoryQS}.<p>
+ * 
+ * This is a copy of the message taken by a successful poll; the message itself
+ * lives in a slot of the shared file. Two copies of the same message are
+ * equal, even if polled through different instances of the queue service.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class SharedMessage implements Message
+{
+    private final SharedMemoryQS owner;
+    
+    private final String queue;
+    
+    /** Index of the queue in the queue table. */
+    private final int index;
+    
+    private final long id;
+    
+    private final byte[] content;
+    
+    private final int deliveries;
+    
+    
+    
+    SharedMessage(SharedMemoryQS owner, String queue, int index, long id, byte[] content, int deliveries) {
+        this.owner      = owner;
+        this.queue      = queue;
+        this.index      = index;
+        this.id         = id;
+        this.content    = content;
+        this.deliveries = deliveries;
+    }
+    
+    
+    
+    int index() {
+        return index;
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * The id is the position of the message in the ring of its queue.
+     */
+    @Override
+    public long id() {
+        return id;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int deliveries() {
+        return deliveries;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String queue() {
+        return queue;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String get() {
+        return new String(content, UTF_8);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id) ^ queue.hashCode();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SharedMessage)) {
+            return false;
+        }
+        
+        final SharedMessage that = (SharedMessage) other;
+        
+        return this.id == that.id &&
+               this.queue.equals(that.queue) &&
+               this.owner.file().equals(that.owner.file());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.martinandersson.qsb.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of direct buffers of one size.<p>
+ * 
+ * Direct buffers are expensive to allocate and are released only by the
+ * garbage collector, so a connection borrow its buffers only while it has
+ * bytes to read or write, and return them when they are empty again. An idle
+ * connection holds no buffer. At most {@code retain} buffers are kept in the
+ * pool, excess buffers are dropped.<p>
+ * 
+ * Not thread-safe; a pool is used by the selector thread only.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class BufferPool
+{
+    private final int size, retain;
+    
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+    
+    private long allocated;
+    
+    BufferPool(int size, int retain) {
+        this.size = size;
+        this.retain = retain;
+    }
+    
+    /**
+     * Returns a cleared buffer.
+     * 
+     * @return a cleared buffer
+     */
+    ByteBuffer acquire() {
+        final ByteBuffer b = free.pollFirst();
+        
+        if (b != null) {
+            return b;
+        }
+        
+        ++allocated;
+        return ByteBuffer.allocateDirect(size);
+    }
+    
+    /**
+     * Return a buffer to the pool.
+     * 
+     * @param buffer  buffer to return
+     */
+    void release(ByteBuffer buffer) {
+        if (free.size() < retain) {
+            buffer.clear();
+            free.addFirst(buffer);
+        }
+    }
+    
+    /**
+     * Returns the number of buffers allocated by this pool.
+     * 
+     * @return the number of buffers allocated by this pool
+     */
+    long allocated() {
+        return allocated;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,180 @@
+package com.martinandersson.qsb.net;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The binary protocol of {@link QueueServer} and {@link QueueClient}.<p>
+ * 
+ * Each request and each response is a frame; an {@code int} length of the rest
+ * of the frame, an {@code int} correlation id, an operation code (request) or
+ * a status (response) and a body. The response to a request has the
+ * correlation id of the request. All numbers are big-endian. A string is a
+ * {@code short} length followed by UTF-8, content is an {@code int} length
+ * followed by the bytes.
+ * 
+ * <pre>
+ *   PUSH            queue, content
+ *   PUSH_BATCH      queue, int count, content...
+ *   POLL            queue, long lease
+ *   POLL_BATCH      queue, long lease, int max
+ *   COMPLETE        queue, long id
+ *   COMPLETE_BATCH  queue, int count, long id...
+ * </pre>
+ * 
+ * A lease of -1 means the default lease of the queue service, otherwise the
+ * lease is in milliseconds.<p>
+ * 
+ * A response with status {@code OK} to a push or a complete has an empty body,
+ * except that the body of a response to a push batch is an {@code int} count
+ * of messages pushed; fewer than in the request if the queue became full. The
+ * body of a response to a poll is an {@code int} count followed by, for
+ * each message, a {@code long} id, an {@code int} delivery count and the
+ * content. A response with status {@code ERROR} has a {@code byte} kind of
+ * error and a string message.<p>
+ * 
+ * A client may send many requests without waiting for the responses. Requests
+ * on a connection are served in order, and consecutive pushes to the same
+ * queue may be executed as one batch. A frame, length included, can not be
+ * larger than {@link #MAX_FRAME}, and the content of a message not larger than
+ * {@link #MAX_CONTENT}. A malformed frame closes the connection.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class Protocol
+{
+    /** Max size of a frame, in bytes. */
+    static final int MAX_FRAME = 1 << 20;
+    
+    /** Max size of message content, in bytes. */
+    static final int MAX_CONTENT = 64 * 1024;
+    
+    // Operation codes
+    static final byte PUSH           = 1,
+                      PUSH_BATCH     = 2,
+                      POLL           = 3,
+                      POLL_BATCH     = 4,
+                      COMPLETE       = 5,
+                      COMPLETE_BATCH = 6;
+    
+    // Status
+    static final byte OK    = 0,
+                      ERROR = 1;
+    
+    // Kinds of error
+    static final byte ILLEGAL_STATE    = 1,
+                      ILLEGAL_ARGUMENT = 2,
+                      UNSUPPORTED      = 3,
+                      OTHER            = 4;
+    
+    /** Lease meaning the default lease of the queue service. */
+    static final long DEFAULT_LEASE = -1;
+    
+    /** Size of the frame header; length, correlation id and operation or status. */
+    static final int HEADER = 4 + 4 + 1;
+    
+    /** Size of a polled message in a response, not counting the content. */
+    static final int MESSAGE_OVERHEAD = 8 + 4 + 4;
+    
+    private Protocol() {
+        // Empty
+    }
+    
+    /**
+     * Thrown when a frame is malformed; the connection can not be used after
+     * this point.
+     */
+    static final class ProtocolException extends RuntimeException {
+        private static final long serialVersionUID = 1;
+        
+        ProtocolException(String message) {
+            super(message);
+        }
+    }
+    
+    static void putString(ByteBuffer b, String s) {
+        final byte[] bytes = s.getBytes(UTF_8);
+        
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("String too long: " + bytes.length + " bytes.");
+        }
+        
+        b.putShort((short) bytes.length).put(bytes);
+    }
+    
+    static String getString(ByteBuffer b) {
+        final int length = b.getShort();
+        
+        if (length < 0 || length > b.remaining()) {
+            throw new ProtocolException("String length: " + length);
+        }
+        
+        final byte[] bytes = new byte[length];
+        b.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+    
+    static void putContent(ByteBuffer b, byte[] content) {
+        b.putInt(content.length).put(content);
+    }
+    
+    static byte[] getContent(ByteBuffer b) {
+        final int length = b.getInt();
+        
+        if (length < 0 || length > b.remaining()) {
+            throw new ProtocolException("Content length: " + length);
+        }
+        
+        final byte[] bytes = new byte[length];
+        b.get(bytes);
+        return bytes;
+    }
+    
+    /**
+     * Verify that content is not too large.
+     * 
+     * @throws IllegalArgumentException if it is
+     */
+    static byte[] checkContent(byte[] content) {
+        if (content.length > MAX_CONTENT) {
+            throw new IllegalArgumentException("Message too large: " + content.length + " bytes.");
+        }
+        
+        return content;
+    }
+    
+    /**
+     * Returns the error kind of an exception thrown by the queue service.
+     */
+    static byte kind(RuntimeException e) {
+        return e instanceof IllegalStateException ? ILLEGAL_STATE :
+               e instanceof IllegalArgumentException ? ILLEGAL_ARGUMENT :
+               e instanceof UnsupportedOperationException ? UNSUPPORTED :
+               OTHER;
+    }
+    
+    /**
+     * Read an error response and return the exception to throw.
+     */
+    static RuntimeException error(ByteBuffer b) {
+        try {
+            final byte kind = b.get();
+            final String message = getString(b);
+            
+            switch (kind) {
+                case ILLEGAL_STATE:
+                    return new IllegalStateException(message);
+                case ILLEGAL_ARGUMENT:
+                    return new IllegalArgumentException(message);
+                case UNSUPPORTED:
+                    return new UnsupportedOperationException(message);
+                default:
+                    return new RuntimeException(message);
+            }
+        }
+        catch (BufferUnderflowException e) {
+            return new ProtocolException("Malformed error.");
+        }
+    }
+}
\ No newline at end of file
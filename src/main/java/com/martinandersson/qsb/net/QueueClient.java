@@ -0,0 +1,758 @@
+package com.martinandersson.qsb.net;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import static com.martinandersson.qsb.net.Protocol.COMPLETE;
+import static com.martinandersson.qsb.net.Protocol.COMPLETE_BATCH;
+import static com.martinandersson.qsb.net.Protocol.DEFAULT_LEASE;
+import static com.martinandersson.qsb.net.Protocol.HEADER;
+import static com.martinandersson.qsb.net.Protocol.MAX_FRAME;
+import static com.martinandersson.qsb.net.Protocol.OK;
+import static com.martinandersson.qsb.net.Protocol.POLL;
+import static com.martinandersson.qsb.net.Protocol.POLL_BATCH;
+import static com.martinandersson.qsb.net.Protocol.PUSH;
+import static com.martinandersson.qsb.net.Protocol.PUSH_BATCH;
+import com.martinandersson.qsb.net.Protocol.ProtocolException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A client of a {@link QueueServer}.<p>
+ * 
+ * Each client has one connection. The {@code async} methods send a request
+ * without waiting for the response and return a future of the response, so
+ * many requests can be in flight at once. Responses are matched to requests by
+ * correlation id, by a reader thread of the client. Requests are buffered and
+ * sent when the buffer is full, when {@link #flush()} is called, or by any of
+ * the blocking methods.<p>
+ * 
+ * The futures returned by the {@code async} methods are completed by an
+ * executor, the common pool by default, never by the reader thread. A callback
+ * may therefore block, or call the blocking methods of the same client, without
+ * stalling the responses of other requests. Callbacks of different requests
+ * may run in any order, and concurrently.<p>
+ * 
+ * The blocking methods, those of the {@code QueueService} interface, send the
+ * request together with all requests buffered before it, and wait for the
+ * response. A client may be shared by threads. Besides the core API, the
+ * client has batch forms of push, poll and complete that cost one request
+ * each.<p>
+ * 
+ * Messages can be completed through any client connected to the same server.
+ * An error reported by the queue service is thrown, or fails the future, as an
+ * exception of the same kind, for example {@code IllegalStateException} if a
+ * bounded queue is full. An I/O error is thrown as an {@code
+ * UncheckedIOException}, after which all requests fail and the client should
+ * be closed.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class QueueClient implements QueueService, AutoCloseable
+{
+    /** Max number of ids completed by one request. */
+    private static final int MAX_IDS = (MAX_FRAME - 1024) / 8;
+    
+    /**
+     * A request waiting for its response.
+     */
+    private static final class Pending<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        
+        /** Decodes the body of an {@code OK} response. */
+        final Function<ByteBuffer, T> decoder;
+        
+        Pending(Function<ByteBuffer, T> decoder) {
+            this.decoder = decoder;
+        }
+        
+        void complete(ByteBuffer body) {
+            future.complete(decoder.apply(body));
+        }
+    }
+    
+    private final SocketChannel channel;
+    
+    /** Requests not yet sent. Guarded by {@code this}. */
+    private final ByteBuffer out = ByteBuffer.allocateDirect(MAX_FRAME);
+    
+    /** Correlation id of the next request. Guarded by {@code this}. */
+    private int correlation;
+    
+    private final Map<Integer, Pending<?>> pending = new ConcurrentHashMap<>();
+    
+    private final Thread reader;
+    
+    /** Completes the futures returned to the user. */
+    private final Executor executor;
+    
+    /** Set once, when the connection fails or is closed. */
+    private volatile UncheckedIOException failure;
+    
+    
+    
+    /**
+     * Constructs a {@code QueueClient} connected to a server, completing
+     * futures using the common pool.
+     * 
+     * @param server  address of server
+     * 
+     * @throws UncheckedIOException if the connection fails
+     */
+    public QueueClient(InetSocketAddress server) {
+        this(server, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Constructs a {@code QueueClient} connected to a server.
+     * 
+     * @param server    address of server
+     * @param executor  executor that completes the futures returned by the
+     *                  {@code async} methods
+     * 
+     * @throws NullPointerException if {@code executor} is {@code null}
+     * @throws UncheckedIOException if the connection fails
+     */
+    public QueueClient(InetSocketAddress server, Executor executor) {
+        this.executor = requireNonNull(executor);
+        
+        try {
+            channel = SocketChannel.open(server);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        reader = new Thread(this::read, "queue-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void push(String queue, String message) {
+        push(queue, message.getBytes(UTF_8));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException
+     *             if the message is larger than 64 KiB
+     */
+    @Override
+    public void push(String queue, byte[] message) {
+        await(pushRequest(queue, message));
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * All messages are sent in one request.
+     */
+    @Override
+    public void push(String queue, String message, String... more) {
+        final List<String> all = new ArrayList<>(more.length + 1);
+        all.add(message);
+        Collections.addAll(all, more);
+        push(queue, all);
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * All messages are sent in one request. If a push fails, the messages
+     * before it have been pushed.
+     * 
+     * @throws IllegalArgumentException
+     *             if a message is larger than 64 KiB, or the messages are
+     *             larger than 1 MiB in total
+     * @throws IllegalStateException
+     *             if the queue became full, with the number of messages pushed
+     *             in the exception message
+     */
+    @Override
+    public void push(String queue, Iterable<String> messages) {
+        final List<byte[]> bytes = new ArrayList<>();
+        
+        for (String m : messages) {
+            bytes.add(m.getBytes(UTF_8));
+        }
+        
+        final int n = pushBatch(queue, bytes);
+        
+        if (n < bytes.size()) {
+            throw new IllegalStateException(
+                    "Queue full: " + queue + ", pushed " + n + " of " + bytes.size() + ".");
+        }
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * All messages are sent in one request.
+     * 
+     * @throws IllegalArgumentException
+     *             if a message is larger than 64 KiB, or the messages are
+     *             larger than 1 MiB in total
+     */
+    @Override
+    public int pushBatch(String queue, Iterable<byte[]> messages) {
+        return await(send(PUSH_BATCH, queue, b -> {
+            final int count = b.position();
+            b.putInt(0);
+            
+            int n = 0;
+            
+            for (byte[] m : messages) {
+                Protocol.putContent(b, Protocol.checkContent(m));
+                ++n;
+            }
+            
+            b.putInt(count, n);
+        }, ByteBuffer::getInt));
+    }
+    
+    /**
+     * Push a message without waiting for the response.
+     * 
+     * @param queue    queue [name]
+     * @param message  message
+     * 
+     * @return a future completed when the message has been pushed
+     * 
+     * @throws IllegalArgumentException
+     *             if the message is larger than 64 KiB
+     * @throws UncheckedIOException if the connection has failed
+     */
+    public CompletableFuture<Void> pushAsync(String queue, String message) {
+        return pushAsync(queue, message.getBytes(UTF_8));
+    }
+    
+    /**
+     * Push a message without waiting for the response.
+     * 
+     * @param queue    queue [name]
+     * @param message  message
+     * 
+     * @return a future completed when the message has been pushed
+     * 
+     * @throws IllegalArgumentException
+     *             if the message is larger than 64 KiB
+     * @throws UncheckedIOException if the connection has failed
+     */
+    public CompletableFuture<Void> pushAsync(String queue, byte[] message) {
+        return async(pushRequest(queue, message));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Message poll(String queue) {
+        return first(await(pollRequest(queue, 1, DEFAULT_LEASE)));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Message poll(String queue, Duration lease) {
+        return first(await(pollRequest(queue, 1, millis(lease))));
+    }
+    
+    /**
+     * Poll up to {@code max} messages in one request.<p>
+     * 
+     * The server may return fewer messages than there are, if the response
+     * would be too large.
+     * 
+     * @param queue  queue [name]
+     * @param max    max number of messages
+     * 
+     * @return messages polled, possibly none
+     */
+    public List<Message> poll(String queue, int max) {
+        return await(pollRequest(queue, max, DEFAULT_LEASE));
+    }
+    
+    /**
+     * Poll up to {@code max} messages in one request, using a specified lease.
+     * 
+     * @param queue  queue [name]
+     * @param max    max number of messages
+     * @param lease  lease of each message
+     * 
+     * @return messages polled, possibly none
+     */
+    public List<Message> poll(String queue, int max, Duration lease) {
+        return await(pollRequest(queue, max, millis(lease)));
+    }
+    
+    /**
+     * Poll a message without waiting for the response.
+     * 
+     * @param queue  queue [name]
+     * 
+     * @return a future of the message, or of {@code null} if there was none
+     * 
+     * @throws UncheckedIOException if the connection has failed
+     */
+    public CompletableFuture<Message> pollAsync(String queue) {
+        return async(pollRequest(queue, 1, DEFAULT_LEASE).thenApply(QueueClient::first));
+    }
+    
+    /**
+     * Poll a message using a specified lease, without waiting for the
+     * response.
+     * 
+     * @param queue  queue [name]
+     * @param lease  lease
+     * 
+     * @return a future of the message, or of {@code null} if there was none
+     * 
+     * @throws UncheckedIOException if the connection has failed
+     */
+    public CompletableFuture<Message> pollAsync(String queue, Duration lease) {
+        return async(pollRequest(queue, 1, millis(lease)).thenApply(QueueClient::first));
+    }
+    
+    /**
+     * Poll up to {@code max} messages in one request, without waiting for the
+     * response.
+     * 
+     * @param queue  queue [name]
+     * @param max    max number of messages
+     * 
+     * @return a future of the messages polled, possibly none
+     * 
+     * @throws UncheckedIOException if the connection has failed
+     */
+    public CompletableFuture<List<Message>> pollAsync(String queue, int max) {
+        return async(pollRequest(queue, max, DEFAULT_LEASE));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void complete(Message message) {
+        await(completeRequest(message.queue(), message.id()));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void complete(String queue, long id) {
+        await(completeRequest(queue, id));
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * The ids are sent in as few requests as possible.
+     */
+    @Override
+    public void complete(String queue, long fromId, long toId) {
+        final long[] ids = new long[(int) Math.min(MAX_IDS, Math.max(0, toId - fromId))];
+        
+        for (long id = fromId; id < toId; ) {
+            int n = 0;
+            
+            while (n < ids.length && id < toId) {
+                ids[n++] = id++;
+            }
+            
+            complete(queue, ids, n);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * The ids are sent in as few requests as possible.
+     */
+    @Override
+    public void complete(String queue, long baseId, BitSet offsets) {
+        complete(queue, offsets.stream().mapToLong(i -> baseId + i).toArray());
+    }
+    
+    /**
+     * Complete messages, in one request per queue.
+     * 
+     * @param messages  messages to complete
+     */
+    public void complete(Collection<? extends Message> messages) {
+        final Map<String, List<Long>> ids = new LinkedHashMap<>();
+        
+        for (Message m : messages) {
+            ids.computeIfAbsent(m.queue(), k -> new ArrayList<>()).add(m.id());
+        }
+        
+        ids.forEach((queue, list) ->
+                complete(queue, list.stream().mapToLong(Long::longValue).toArray()));
+    }
+    
+    /**
+     * Complete a message without waiting for the response.
+     * 
+     * @param message  message to complete
+     * 
+     * @return a future completed when the message has been completed
+     * 
+     * @throws UncheckedIOException if the connection has failed
+     */
+    public CompletableFuture<Void> completeAsync(Message message) {
+        return completeAsync(message.queue(), message.id());
+    }
+    
+    /**
+     * Complete a message by id, without waiting for the response.
+     * 
+     * @param queue  queue [name]
+     * @param id     message id
+     * 
+     * @return a future completed when the message has been completed
+     * 
+     * @throws UncheckedIOException if the connection has failed
+     */
+    public CompletableFuture<Void> completeAsync(String queue, long id) {
+        return async(completeRequest(queue, id));
+    }
+    
+    /**
+     * Send all buffered requests.
+     * 
+     * @throws UncheckedIOException if the connection has failed
+     */
+    public synchronized void flush() {
+        out.flip();
+        
+        try {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+            throw failure;
+        }
+        finally {
+            out.clear();
+        }
+    }
+    
+    /**
+     * Close the connection. Requests in flight fail.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            try {
+                reader.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    
+    
+    private CompletableFuture<Void> pushRequest(String queue, byte[] message) {
+        Protocol.checkContent(message);
+        return send(PUSH, queue, b -> Protocol.putContent(b, message), body -> null);
+    }
+    
+    private CompletableFuture<List<Message>> pollRequest(String queue, int max, long lease) {
+        return send(max == 1 ? POLL : POLL_BATCH, queue, b -> {
+            b.putLong(lease);
+            
+            if (max != 1) {
+                b.putInt(max);
+            }
+        }, r -> {
+            final int n = r.getInt();
+            
+            if (n == 0) {
+                return Collections.emptyList();
+            }
+            
+            final List<Message> messages = new ArrayList<>(n);
+            
+            for (int i = 0; i < n; ++i) {
+                final long id = r.getLong();
+                final int deliveries = r.getInt();
+                messages.add(new RemoteMessage(queue, id, deliveries, Protocol.getContent(r)));
+            }
+            
+            return messages;
+        });
+    }
+    
+    private CompletableFuture<Void> completeRequest(String queue, long id) {
+        return send(COMPLETE, queue, b -> b.putLong(id), body -> null);
+    }
+    
+    private void complete(String queue, long[] ids) {
+        for (int from = 0; from < ids.length; from += MAX_IDS) {
+            final long[] chunk = new long[Math.min(MAX_IDS, ids.length - from)];
+            System.arraycopy(ids, from, chunk, 0, chunk.length);
+            complete(queue, chunk, chunk.length);
+        }
+    }
+    
+    private void complete(String queue, long[] ids, int n) {
+        await(send(COMPLETE_BATCH, queue, b -> {
+            b.putInt(n);
+            
+            for (int i = 0; i < n; ++i) {
+                b.putLong(ids[i]);
+            }
+        }, r -> null));
+    }
+    
+    /**
+     * Buffer a request.
+     * 
+     * @param op       operation
+     * @param queue    queue [name]
+     * @param body     writes the body of the request
+     * @param decoder  decodes the body of an {@code OK} response
+     * 
+     * @return a future of the response
+     */
+    private synchronized <T> CompletableFuture<T> send(
+            byte op, String queue, Consumer<ByteBuffer> body, Function<ByteBuffer, T> decoder)
+    {
+        final int id = correlation++;
+        final Pending<T> p = new Pending<>(decoder);
+        
+        // The reader sets failure before it fails what is pending
+        pending.put(id, p);
+        
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            
+            encode(id, op, queue, body);
+        }
+        catch (RuntimeException e) {
+            pending.remove(id);
+            throw e;
+        }
+        
+        return p.future;
+    }
+    
+    /**
+     * Write a request frame to {@code out}, first flushing {@code out} if the
+     * frame does not fit.
+     */
+    private void encode(int id, byte op, String queue, Consumer<ByteBuffer> body) {
+        final int start = out.position();
+        
+        try {
+            out.putInt(0).putInt(id).put(op);
+            Protocol.putString(out, queue);
+            body.accept(out);
+            out.putInt(start, out.position() - start - 4);
+        }
+        catch (BufferOverflowException e) {
+            out.position(start);
+            
+            if (start == 0) {
+                throw new IllegalArgumentException("Request too large.");
+            }
+            
+            flush();
+            encode(id, op, queue, body);
+        }
+        catch (RuntimeException e) {
+            out.position(start);
+            throw e;
+        }
+    }
+    
+    /**
+     * Returns a future completed by the executor, once the response is.<p>
+     * 
+     * The response future is completed by the reader thread, which must never
+     * run user code.
+     */
+    private <T> CompletableFuture<T> async(CompletableFuture<T> response) {
+        return response.thenApplyAsync(Function.identity(), executor);
+    }
+    
+    /**
+     * Send all buffered requests, if need be, and wait for the response.
+     * 
+     * @return the response
+     */
+    private <T> T await(CompletableFuture<T> response) {
+        if (!response.isDone()) {
+            flush();
+        }
+        
+        try {
+            return response.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            
+            throw e;
+        }
+    }
+    
+    /**
+     * Read responses until the connection fails or is closed.
+     */
+    private void read() {
+        final ByteBuffer in = ByteBuffer.allocateDirect(MAX_FRAME);
+        
+        try {
+            for (;;) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("Connection closed by server.");
+                }
+                
+                in.flip();
+                
+                while (in.remaining() >= 4) {
+                    final int length = in.getInt(in.position());
+                    
+                    if (length < HEADER - 4 || length > MAX_FRAME - 4) {
+                        throw new ProtocolException("Frame length: " + length);
+                    }
+                    
+                    if (in.remaining() < 4 + length) {
+                        break;
+                    }
+                    
+                    final int limit = in.limit(),
+                              end   = in.position() + 4 + length;
+                    
+                    in.position(in.position() + 4).limit(end);
+                    dispatch(in);
+                    in.limit(limit).position(end);
+                }
+                
+                in.compact();
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+        catch (ProtocolException e) {
+            fail(new IOException(e));
+        }
+    }
+    
+    /**
+     * Complete the request of a response.
+     */
+    private void dispatch(ByteBuffer frame) {
+        final int id = frame.getInt();
+        final byte status = frame.get();
+        final Pending<?> p = pending.remove(id);
+        
+        if (p == null) {
+            throw new ProtocolException("Unknown correlation id: " + id);
+        }
+        
+        if (status != OK) {
+            p.future.completeExceptionally(Protocol.error(frame));
+            return;
+        }
+        
+        try {
+            p.complete(frame);
+        }
+        catch (BufferUnderflowException | ProtocolException e) {
+            final ProtocolException malformed = new ProtocolException("Malformed response.");
+            p.future.completeExceptionally(malformed);
+            throw malformed;
+        }
+    }
+    
+    /**
+     * Fail all pending and future requests.
+     */
+    private void fail(IOException cause) {
+        synchronized (pending) {
+            if (failure == null) {
+                failure = new UncheckedIOException(cause);
+            }
+        }
+        
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+        
+        for (Integer id : pending.keySet()) {
+            final Pending<?> p = pending.remove(id);
+            
+            if (p != null) {
+                p.future.completeExceptionally(failure);
+            }
+        }
+    }
+    
+    private static Message first(List<Message> messages) {
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+    
+    private static long millis(Duration lease) {
+        if (lease.isNegative()) {
+            throw new IllegalArgumentException("Negative: " + lease);
+        }
+        
+        try {
+            return lease.toMillis();
+        }
+        catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,720 @@
+package com.martinandersson.qsb.net;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import static com.martinandersson.qsb.net.Protocol.COMPLETE;
+import static com.martinandersson.qsb.net.Protocol.COMPLETE_BATCH;
+import static com.martinandersson.qsb.net.Protocol.DEFAULT_LEASE;
+import static com.martinandersson.qsb.net.Protocol.ERROR;
+import static com.martinandersson.qsb.net.Protocol.HEADER;
+import static com.martinandersson.qsb.net.Protocol.MAX_CONTENT;
+import static com.martinandersson.qsb.net.Protocol.MAX_FRAME;
+import static com.martinandersson.qsb.net.Protocol.MESSAGE_OVERHEAD;
+import static com.martinandersson.qsb.net.Protocol.OK;
+import static com.martinandersson.qsb.net.Protocol.POLL;
+import static com.martinandersson.qsb.net.Protocol.POLL_BATCH;
+import static com.martinandersson.qsb.net.Protocol.PUSH;
+import static com.martinandersson.qsb.net.Protocol.PUSH_BATCH;
+import com.martinandersson.qsb.net.Protocol.ProtocolException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import static java.nio.channels.SelectionKey.OP_ACCEPT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves a {@link QueueService} over TCP, using the binary {@link Protocol}.<p>
+ * 
+ * One selector thread accepts connections, reads requests, executes them
+ * against the queue service and writes the responses. Requests are executed on
+ * the selector thread, so the queue service must not block; a service
+ * configured to block a push to a full queue stalls all connections.<p>
+ * 
+ * A connection borrows direct buffers from a pool while it has bytes to read
+ * or responses to write. If a client does not read its responses, the server
+ * stop reading the requests of that client once a full buffer of responses is
+ * pending.<p>
+ * 
+ * A client may pipeline requests, see {@link Protocol}. Consecutive pushes to
+ * the same queue that has been read together are executed as one batch, see
+ * {@link QueueService#pushBatch(String, Iterable)}.<p>
+ * 
+ * Messages are completed by queue and id, so a poll leaves no state in the
+ * server. A message polled through a connection that is closed before the
+ * message is completed is redelivered once its lease expire.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see QueueClient
+ */
+public final class QueueServer implements AutoCloseable
+{
+    /** Max number of buffers kept in the pool. */
+    private static final int RETAIN = 64;
+    
+    private final QueueService service;
+    
+    private final Selector selector;
+    
+    private final ServerSocketChannel server;
+    
+    private final BufferPool pool = new BufferPool(MAX_FRAME, RETAIN);
+    
+    /** Where a response is encoded, before it is queued on the connection. */
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_FRAME);
+    
+    /** Content of the pushes of a batch. */
+    private final List<byte[]> contents = new ArrayList<>();
+    
+    /** Correlation ids of the pushes of a batch. */
+    private int[] correlations = new int[64];
+    
+    private final LongAdder pushes  = new LongAdder(),
+                            batches = new LongAdder();
+    
+    private final Thread thread;
+    
+    private volatile boolean closed;
+    
+    
+    
+    /**
+     * Constructs a {@code QueueServer} and start serving.<p>
+     * 
+     * Use port 0 to bind an ephemeral port, and {@link #address()} to learn
+     * which one.
+     * 
+     * @param service  queue service to serve
+     * @param address  address to bind
+     * 
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws UncheckedIOException if the address can not be bound
+     */
+    public QueueServer(QueueService service, InetSocketAddress address) {
+        this.service = requireNonNull(service);
+        requireNonNull(address);
+        
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            
+            try {
+                server.bind(address);
+                server.configureBlocking(false);
+                server.register(selector, OP_ACCEPT);
+            }
+            catch (IOException e) {
+                server.close();
+                selector.close();
+                throw e;
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        thread = new Thread(this::run, "queue-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    
+    
+    /**
+     * Returns the address bound.
+     * 
+     * @return the address bound
+     * 
+     * @throws UncheckedIOException on I/O error
+     */
+    public InetSocketAddress address() {
+        try {
+            return (InetSocketAddress) server.getLocalAddress();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Returns the number of messages pushed, or attempted to push.
+     * 
+     * @return the number of messages pushed
+     */
+    public long pushes() {
+        return pushes.sum();
+    }
+    
+    /**
+     * Returns the number of batches the pushes were executed in.<p>
+     * 
+     * Consecutive push requests to the same queue, that has been read but not
+     * yet executed, are executed as one batch. {@code pushes() / batches()} is
+     * the average batch size.
+     * 
+     * @return the number of batches the pushes were executed in
+     */
+    public long batches() {
+        return batches.sum();
+    }
+    
+    /**
+     * Stop serving and close all connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    
+    
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                
+                final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    
+                    final Connection c = (Connection) key.attachment();
+                    
+                    try {
+                        if (key.isWritable()) {
+                            c.writable();
+                        }
+                        
+                        if (key.isValid() && key.isReadable()) {
+                            c.readable();
+                        }
+                    }
+                    catch (IOException | ProtocolException e) {
+                        c.close();
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            // Selector failed, nothing left to do but stop
+        }
+        finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            
+            try {
+                server.close();
+                selector.close();
+            }
+            catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+    
+    /**
+     * Accept a connection.<p>
+     * 
+     * A failure, for example when out of file descriptors or when the peer has
+     * already reset the connection, only fail that connection.
+     */
+    private void accept() {
+        final SocketChannel ch;
+        
+        try {
+            ch = server.accept();
+        }
+        catch (IOException e) {
+            // ..try again on the next selection
+            return;
+        }
+        
+        if (ch == null) {
+            return;
+        }
+        
+        try {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            
+            final SelectionKey key = ch.register(selector, OP_READ);
+            key.attach(new Connection(ch, key));
+        }
+        catch (IOException e) {
+            try {
+                ch.close();
+            }
+            catch (IOException ignored) {
+                // Ignore
+            }
+        }
+    }
+    
+    /**
+     * Execute a request and encode the response into {@code scratch}.
+     * 
+     * @param frame  request, positioned after the frame length and limited to
+     *               the end of the frame
+     */
+    private void execute(ByteBuffer frame) {
+        final int correlation;
+        
+        try {
+            correlation = frame.getInt();
+        }
+        catch (BufferUnderflowException e) {
+            throw new ProtocolException("Malformed frame.");
+        }
+        
+        begin(correlation, OK);
+        
+        try {
+            final byte op = frame.get();
+            final String queue = Protocol.getString(frame);
+            
+            // PUSH is executed by executePushes()
+            switch (op) {
+                case PUSH_BATCH:
+                    contents.clear();
+                    
+                    for (int n = frame.getInt(); n > 0; --n) {
+                        contents.add(Protocol.getContent(frame));
+                    }
+                    
+                    end(frame);
+                    
+                    // ..a partial push is not an error, the client learn how
+                    // many were pushed
+                    scratch.putInt(pushBatch(queue));
+                    break;
+                case POLL:
+                    poll(queue, frame.getLong(), 1);
+                    break;
+                case POLL_BATCH:
+                    poll(queue, frame.getLong(), frame.getInt());
+                    break;
+                case COMPLETE:
+                    service.complete(queue, frame.getLong());
+                    break;
+                case COMPLETE_BATCH:
+                    for (int n = frame.getInt(); n > 0; --n) {
+                        service.complete(queue, frame.getLong());
+                    }
+                    break;
+                default:
+                    throw new ProtocolException("Operation: " + op);
+            }
+            
+            end(frame);
+        }
+        catch (BufferUnderflowException e) {
+            throw new ProtocolException("Malformed frame.");
+        }
+        catch (ProtocolException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            error(correlation, e);
+        }
+        
+        finish();
+    }
+    
+    /**
+     * Execute a run of pushes to one queue as one batch, and encode the
+     * responses into {@code out}.<p>
+     * 
+     * Pushes that the batch did not have room for fail with {@code
+     * IllegalStateException}, as they would have one at a time.
+     * 
+     * @param queue    queue [name]
+     * @param respond  called with each response in {@code scratch}, in order
+     */
+    private void executePushes(String queue, Runnable respond) {
+        int n;
+        RuntimeException failure = null;
+        
+        try {
+            n = pushBatch(queue);
+        }
+        catch (RuntimeException e) {
+            n = 0;
+            failure = e;
+        }
+        
+        for (int i = 0; i < contents.size(); ++i) {
+            if (i < n) {
+                begin(correlations[i], OK);
+            }
+            else {
+                error(correlations[i], failure != null ? failure :
+                        new IllegalStateException("Queue full: " + queue));
+            }
+            
+            finish();
+            respond.run();
+        }
+    }
+    
+    /**
+     * Push {@code contents} as one engine batch.
+     * 
+     * @return number of messages pushed
+     */
+    private int pushBatch(String queue) {
+        final int n = service.pushBatch(queue, contents);
+        pushes.add(contents.size());
+        batches.increment();
+        return n;
+    }
+    
+    private void begin(int correlation, byte status) {
+        scratch.clear();
+        scratch.putInt(0).putInt(correlation).put(status);
+    }
+    
+    private void error(int correlation, RuntimeException e) {
+        String message = String.valueOf(e.getMessage());
+        
+        if (message.length() > 1000) {
+            message = message.substring(0, 1000);
+        }
+        
+        begin(correlation, ERROR);
+        scratch.put(Protocol.kind(e));
+        Protocol.putString(scratch, message);
+    }
+    
+    private void finish() {
+        scratch.putInt(0, scratch.position() - 4).flip();
+    }
+    
+    private static void end(ByteBuffer frame) {
+        if (frame.hasRemaining()) {
+            throw new ProtocolException("Trailing bytes: " + frame.remaining());
+        }
+    }
+    
+    /**
+     * Poll up to {@code max} messages, as many as the response has room for.<p>
+     * 
+     * A message too large for the protocol, pushed in-process, ends the batch
+     * and stays leased until its lease expire. It fails the poll only if it is
+     * the first message polled, so that messages already leased by the batch
+     * are not lost with the response.
+     */
+    private void poll(String queue, long lease, int max) {
+        final int count = scratch.position();
+        scratch.putInt(0);
+        
+        int n = 0;
+        
+        while (n < max && scratch.remaining() >= MESSAGE_OVERHEAD + MAX_CONTENT) {
+            final Message m = lease == DEFAULT_LEASE ?
+                    service.poll(queue) :
+                    service.poll(queue, Duration.ofMillis(lease));
+            
+            if (m == null) {
+                break;
+            }
+            
+            final ByteBuffer content = m.buffer();
+            
+            if (content.remaining() > MAX_CONTENT) {
+                if (n == 0) {
+                    throw new IllegalStateException("Message too large: " + content.remaining() + " bytes.");
+                }
+                
+                break;
+            }
+            
+            scratch.putLong(m.id())
+                   .putInt(m.deliveries())
+                   .putInt(content.remaining())
+                   .put(content);
+            
+            ++n;
+        }
+        
+        scratch.putInt(count, n);
+    }
+    
+    /**
+     * A client connection.<p>
+     * 
+     * {@code in} and the buffers of {@code out} are kept in write mode between
+     * selections, and are returned to the pool when empty.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        
+        final SelectionKey key;
+        
+        /** Bytes read, not yet executed. {@code null} if none. */
+        ByteBuffer in;
+        
+        /** Responses not yet written, oldest first. */
+        final Deque<ByteBuffer> out = new ArrayDeque<>();
+        
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+        
+        void readable() throws IOException {
+            if (in == null) {
+                in = pool.acquire();
+            }
+            
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            
+            execute();
+            flush();
+            interest();
+        }
+        
+        void writable() throws IOException {
+            flush();
+            
+            if (!backpressured()) {
+                execute();
+                flush();
+            }
+            
+            interest();
+        }
+        
+        /**
+         * Execute all complete requests read, until the responses pending
+         * fill a buffer.
+         */
+        void execute() {
+            if (in == null) {
+                return;
+            }
+            
+            in.flip();
+            
+            while (!backpressured() && complete(in.position())) {
+                if (in.get(in.position() + 8) == PUSH) {
+                    executePushes();
+                    continue;
+                }
+                
+                final int limit = in.limit(),
+                          end   = in.position() + 4 + in.getInt(in.position());
+                
+                in.position(in.position() + 4).limit(end);
+                QueueServer.this.execute(in);
+                in.limit(limit).position(end);
+                
+                respond();
+            }
+            
+            if (in.hasRemaining()) {
+                in.compact();
+            }
+            else {
+                pool.release(in);
+                in = null;
+            }
+        }
+        
+        /**
+         * Returns {@code true} if {@code in} holds a complete frame at
+         * specified position.
+         * 
+         * @throws ProtocolException if the frame length is not valid
+         */
+        boolean complete(int pos) {
+            if (in.limit() - pos < 4) {
+                return false;
+            }
+            
+            final int length = in.getInt(pos);
+            
+            if (length < HEADER - 4 || length > MAX_FRAME - 4) {
+                throw new ProtocolException("Frame length: " + length);
+            }
+            
+            return in.limit() - pos - 4 >= length;
+        }
+        
+        /**
+         * Execute the push at the position of {@code in}, and all complete
+         * pushes to the same queue after it, as one batch.
+         */
+        void executePushes() {
+            final int first = in.position();
+            final String queue;
+            
+            contents.clear();
+            
+            try {
+                final ByteBuffer f = in.duplicate();
+                f.position(first + HEADER);
+                queue = Protocol.getString(f);
+                
+                final int name = f.position() - first - HEADER;
+                int pos = first;
+                
+                while (complete(pos) && in.get(pos + 8) == PUSH &&
+                        in.getInt(pos) >= HEADER - 4 + name &&
+                        sameQueue(first + HEADER, pos + HEADER, name))
+                {
+                    final int end = pos + 4 + in.getInt(pos);
+                    
+                    f.limit(end).position(pos + HEADER + name);
+                    final byte[] content = Protocol.getContent(f);
+                    end(f);
+                    
+                    if (contents.size() == correlations.length) {
+                        correlations = Arrays.copyOf(correlations, correlations.length * 2);
+                    }
+                    
+                    correlations[contents.size()] = in.getInt(pos + 4);
+                    contents.add(content);
+                    pos = end;
+                    f.limit(in.limit());
+                }
+                
+                if (contents.isEmpty()) {
+                    throw new ProtocolException("Malformed frame.");
+                }
+                
+                in.position(pos);
+            }
+            catch (BufferUnderflowException e) {
+                throw new ProtocolException("Malformed frame.");
+            }
+            
+            QueueServer.this.executePushes(queue, this::respond);
+        }
+        
+        /**
+         * Returns {@code true} if the length-prefixed queue names at specified
+         * positions of {@code in} are equal.
+         */
+        boolean sameQueue(int a, int b, int length) {
+            if (a == b) {
+                return true;
+            }
+            
+            if (in.limit() - b < length) {
+                return false;
+            }
+            
+            for (int i = 0; i < length; ++i) {
+                if (in.get(a + i) != in.get(b + i)) {
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+        
+        /**
+         * Queue the response in {@code scratch}.
+         */
+        void respond() {
+            ByteBuffer last = out.peekLast();
+            
+            if (last == null || last.remaining() < scratch.remaining()) {
+                last = pool.acquire();
+                out.addLast(last);
+            }
+            
+            last.put(scratch);
+        }
+        
+        /**
+         * Write as much as possible without blocking.
+         */
+        void flush() throws IOException {
+            while (!out.isEmpty()) {
+                final ByteBuffer b = out.peekFirst();
+                b.flip();
+                channel.write(b);
+                
+                if (b.hasRemaining()) {
+                    b.compact();
+                    return;
+                }
+                
+                pool.release(out.removeFirst());
+            }
+        }
+        
+        boolean backpressured() {
+            return out.size() > 1;
+        }
+        
+        void interest() {
+            if (key.isValid()) {
+                key.interestOps((backpressured() ? 0 : OP_READ) |
+                                (out.isEmpty()   ? 0 : OP_WRITE));
+            }
+        }
+        
+        void close() {
+            key.cancel();
+            
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                // Ignore
+            }
+            
+            if (in != null) {
+                pool.release(in);
+                in = null;
+            }
+            
+            while (!out.isEmpty()) {
+                pool.release(out.removeFirst());
+            }
+        }
+    }
+}
\ No newline at end of file
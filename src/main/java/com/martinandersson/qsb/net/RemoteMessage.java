@@ -0,0 +1,95 @@
+package com.martinandersson.qsb.net;
+
+import com.martinandersson.qsb.api.Message;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A message received by a {@link QueueClient}.<p>
+ * 
+ * Two messages are equal if they have the same queue and id.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class RemoteMessage implements Message
+{
+    private final String queue;
+    
+    private final long id;
+    
+    private final int deliveries;
+    
+    private final byte[] content;
+    
+    
+    
+    RemoteMessage(String queue, long id, int deliveries, byte[] content) {
+        this.queue      = queue;
+        this.id         = id;
+        this.deliveries = deliveries;
+        this.content    = content;
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long id() {
+        return id;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int deliveries() {
+        return deliveries;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String queue() {
+        return queue;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String get() {
+        return new String(content, UTF_8);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id) ^ queue.hashCode();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RemoteMessage)) {
+            return false;
+        }
+        
+        final RemoteMessage that = (RemoteMessage) other;
+        return this.id == that.id && this.queue.equals(that.queue);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,47 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.Message;
+import java.time.Duration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Same workload as {@link QueueServiceBenchmark}, except each queue has a
+ * backlog of delayed messages that will not become due during the
+ * benchmark.<p>
+ * 
+ * The backlog is evenly spread across all queues. Ideally, the backlog size
+ * should have no effect on throughput.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+public class DelayedBacklogBenchmark extends QueueServiceBenchmark
+{
+    private static final Duration DELAY = Duration.ofDays(1);
+    
+    @Param({"0", "10000", "1000000"})
+    int backlog;
+    
+    @Override
+    void setupQueues() {
+        for (int i = 0; i < backlog; ++i) {
+            qs.push("Q" + (1 + i % QueueName.QUEUES), "delayed", DELAY);
+        }
+    }
+    
+    @Group("")
+    @Benchmark
+    public void writer(QueueName queue, QueueMessage message) {
+        write(queue.get(), message.msg);
+    }
+    
+    @Group("")
+    @Benchmark
+    public Message reader(QueueName queue, ReadStatistics rs) {
+        return read(queue.get(), rs);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,114 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.SyncPolicy;
+import com.martinandersson.qsb.impl.WriteAheadLog;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import static java.lang.System.out;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Same workload as {@link QueueServiceBenchmark}, with and without a
+ * write-ahead log, using each {@link SyncPolicy}.<p>
+ * 
+ * Each iteration write a new log to a temporary directory, which is deleted
+ * when the iteration ends. The number of forces per iteration is printed.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+public class JournalBenchmark extends QueueServiceBenchmark
+{
+    public enum Persistence {
+        NONE,
+        WAL             (SyncPolicy.NONE),
+        WAL_PER_MESSAGE (SyncPolicy.PER_MESSAGE),
+        WAL_GROUPED     (SyncPolicy.GROUPED),
+        WAL_PERIODIC    (SyncPolicy.PERIODIC);
+        
+        final SyncPolicy policy;
+        
+        private Persistence() {
+            this(null);
+        }
+        
+        private Persistence(SyncPolicy policy) {
+            this.policy = policy;
+        }
+    }
+    
+    private static final int SEGMENT_SIZE = 64 << 20,
+                             GROUP_BYTES  = 256 << 10;
+    
+    private static final Duration GROUP_WINDOW = Duration.ofMillis(1),
+                                  PERIOD       = Duration.ofMillis(10);
+    
+    @Param
+    Persistence persistence;
+    
+    private Path dir;
+    
+    private WriteAheadLog log;
+    
+    @Override
+    QueueService newQueueService() {
+        if (persistence == Persistence.NONE) {
+            return impl.get();
+        }
+        
+        try {
+            dir = Files.createTempDirectory("qsb-wal");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        log = new WriteAheadLog(dir, SEGMENT_SIZE, persistence.policy,
+                persistence == Persistence.WAL_PERIODIC ? PERIOD : GROUP_WINDOW,
+                GROUP_BYTES);
+        
+        return impl.get(c -> c.journal(log));
+    }
+    
+    @TearDown(Level.Iteration)
+    public void deleteLog() throws IOException {
+        if (dir == null) {
+            return;
+        }
+        
+        log.close();
+        out.println("Forces: " + log.forces());
+        log = null;
+        
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+        
+        dir = null;
+    }
+    
+    @Group("")
+    @Benchmark
+    public void writer(QueueName queue, QueueMessage message) {
+        write(queue.get(), message.msg);
+    }
+    
+    @Group("")
+    @Benchmark
+    public Message reader(QueueName queue, ReadStatistics rs) {
+        return read(queue.get(), rs);
+    }
+}
\ No newline at end of file
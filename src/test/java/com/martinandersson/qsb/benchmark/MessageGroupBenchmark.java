@@ -0,0 +1,36 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Mode;
+
+/**
+ * Same setup as {@link QueueServiceBenchmark}, except writers push messages to
+ * a parameterized number of message groups.<p>
+ * 
+ * At most one message per group can be delivered at any given time. With few
+ * groups, readers will therefore have to iterate past blocked messages and
+ * the number of successful reads is expected to scale with the number of
+ * groups.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see QueueGroup
+ */
+@BenchmarkMode(Mode.Throughput)
+public class MessageGroupBenchmark extends QueueServiceBenchmark
+{
+    @Group("")
+    @Benchmark
+    public void writer(QueueName queue, QueueGroup group, QueueMessage message) {
+        qs.pushGrouped(queue.get(), group.get(), message.msg);
+    }
+    
+    @Group("")
+    @Benchmark
+    public Message reader(QueueName queue, ReadStatistics rs) {
+        return read(queue.get(), rs);
+    }
+}
\ No newline at end of file
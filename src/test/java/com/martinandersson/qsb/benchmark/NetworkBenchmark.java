@@ -0,0 +1,140 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.net.QueueClient;
+import com.martinandersson.qsb.net.QueueServer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures messages passed through a {@link QueueServer} over loopback.<p>
+ * 
+ * Each benchmark thread has a client and a queue of its own. One operation is
+ * one message pushed, polled and completed. {@code roundTrip} makes a round
+ * trip for each of the three requests; {@code batch} pushes, polls and
+ * completes {@value #BATCH} messages at a time, one round trip each;
+ * {@code pipelined} sends {@value #BATCH} single pushes and polls without
+ * waiting for the responses, then completes the messages the same way. The
+ * pushes are coalesced by the server into engine batches.<p>
+ * 
+ * Run with more threads ({@code -t}) to put more connections on the selector
+ * thread of the server.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class NetworkBenchmark
+{
+    private static final int BATCH = 100;
+    
+    @Param({"ConcurrentAtomic"})
+    QSImpl impl;
+    
+    @Param({"32"})
+    int size;
+    
+    private QueueServer server;
+    
+    @Setup(Level.Trial)
+    public void startServer() {
+        server = new QueueServer(impl.get(), new InetSocketAddress("127.0.0.1", 0));
+    }
+    
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.close();
+    }
+    
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicInteger SEQ = new AtomicInteger();
+        
+        QueueClient client;
+        
+        final String queue = "Q" + SEQ.getAndIncrement();
+        
+        String message;
+        
+        List<String> batch;
+        
+        @Setup(Level.Trial)
+        public void connect(NetworkBenchmark bm) {
+            client = new QueueClient(bm.server.address());
+            
+            final char[] chars = new char[bm.size];
+            Arrays.fill(chars, 'x');
+            message = new String(chars);
+            
+            batch = new ArrayList<>(BATCH);
+            
+            for (int i = 0; i < BATCH; ++i) {
+                batch.add(message);
+            }
+        }
+        
+        @TearDown(Level.Trial)
+        public void disconnect() {
+            client.close();
+        }
+    }
+    
+    @Benchmark
+    public Message roundTrip(Client c) {
+        c.client.push(c.queue, c.message);
+        final Message m = c.client.poll(c.queue);
+        c.client.complete(m);
+        return m;
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<Message> batch(Client c) {
+        c.client.push(c.queue, c.batch);
+        final List<Message> polled = c.client.poll(c.queue, BATCH);
+        c.client.complete(polled);
+        return polled;
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object pipelined(Client c) {
+        final List<CompletableFuture<?>> pushed = new ArrayList<>(BATCH);
+        final List<CompletableFuture<Message>> polled = new ArrayList<>(BATCH);
+        
+        for (int i = 0; i < BATCH; ++i) {
+            pushed.add(c.client.pushAsync(c.queue, c.message));
+        }
+        
+        for (int i = 0; i < BATCH; ++i) {
+            polled.add(c.client.pollAsync(c.queue));
+        }
+        
+        c.client.flush();
+        pushed.forEach(CompletableFuture::join);
+        
+        final List<CompletableFuture<Void>> completed = new ArrayList<>(BATCH);
+        
+        for (CompletableFuture<Message> m : polled) {
+            completed.add(c.client.completeAsync(m.join()));
+        }
+        
+        c.client.flush();
+        completed.forEach(CompletableFuture::join);
+        return completed;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,104 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.benchmark.PayloadBenchmark.Json;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compare message content stored on the heap against content stored off-heap
+ * in slabs, or in memory-mapped segment files.<p>
+ * 
+ * Besides the queues written to and read from, the queue service holds a
+ * resident backlog of messages in a queue of its own that is never read. With
+ * content on the heap, the backlog is old garbage-collected state that has to
+ * be traced by each major collection. Run with the GC profiler ({@code
+ * -Pgc=true}) to see GC time next to throughput.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+public class OffHeapBenchmark extends QueueServiceBenchmark
+{
+    public enum Storage {
+        HEAP, OFF_HEAP, MAPPED
+    }
+    
+    private static final int SLAB_SIZE = 1 << 20,
+                             SLAB_POOL = 16;
+    
+    @Param
+    Storage storage;
+    
+    @Param({"0", "1000000"})
+    int backlog;
+    
+    private Path dir;
+    
+    @Override
+    QueueService newQueueService() {
+        switch (storage) {
+            case HEAP:
+                return impl.get();
+            case OFF_HEAP:
+                return impl.get(c -> c.slabs(SLAB_SIZE, SLAB_POOL));
+            case MAPPED:
+                try {
+                    dir = Files.createTempDirectory("qsb-mapped");
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                
+                return impl.get(c -> c.mapped(dir, SLAB_SIZE));
+            default:
+                throw new AssertionError(storage);
+        }
+    }
+    
+    @TearDown(Level.Iteration)
+    public void deleteSegments() throws IOException {
+        if (dir == null) {
+            return;
+        }
+        
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+        
+        dir = null;
+    }
+    
+    @Override
+    void setupQueues() {
+        final byte[] json = Json.encode(0);
+        
+        for (int i = 0; i < backlog; ++i) {
+            qs.push("backlog", json);
+        }
+    }
+    
+    @Group("")
+    @Benchmark
+    public void writer(QueueName queue, Json message) {
+        qs.push(queue.get(), message.bytes);
+    }
+    
+    @Group("")
+    @Benchmark
+    public Message reader(QueueName queue, ReadStatistics rs) {
+        return read(queue.get(), rs);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,99 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.AbstractQS;
+import static java.lang.System.out;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compare {@code String} content against UTF-8 {@code byte[]} content.<p>
+ * 
+ * Producers and consumers are assumed to speak UTF-8 JSON. The {@code STRING}
+ * payload therefore decodes the bytes before push and encodes the content
+ * after poll, whereas the {@code BYTES} payload pass the bytes through.<p>
+ * 
+ * Content bytes per message, as accounted for by the queue service, is
+ * printed when the trial starts.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+public class PayloadBenchmark extends QueueServiceBenchmark
+{
+    public enum Payload {
+        STRING, BYTES
+    }
+    
+    @Param
+    Payload payload;
+    
+    @Setup
+    public void printBytesPerMessage() {
+        final QueueService probe = impl.get();
+        
+        if (!(probe instanceof AbstractQS)) {
+            return;
+        }
+        
+        push(probe, "probe", Json.encode(0));
+        
+        out.println();
+        out.println("Content bytes per message (" + payload + "): " +
+                ((AbstractQS<?>) probe).bytes());
+    }
+    
+    @Group("")
+    @Benchmark
+    public void writer(QueueName queue, Json message) {
+        push(qs, queue.get(), message.bytes);
+    }
+    
+    @Group("")
+    @Benchmark
+    public int reader(QueueName queue, ReadStatistics rs) {
+        final Message m = read(queue.get(), rs);
+        
+        if (m == null) {
+            return 0;
+        }
+        
+        // Consumer want bytes
+        return payload == Payload.BYTES ?
+                m.buffer().remaining() :
+                m.get().getBytes(UTF_8).length;
+    }
+    
+    private void push(QueueService qs, String queue, byte[] json) {
+        if (payload == Payload.BYTES) {
+            qs.push(queue, json);
+        }
+        else {
+            qs.push(queue, new String(json, UTF_8));
+        }
+    }
+    
+    /**
+     * A UTF-8 JSON message of a couple of hundred bytes.
+     */
+    @State(Scope.Thread)
+    public static class Json {
+        final byte[] bytes = encode(Thread.currentThread().getId());
+        
+        static byte[] encode(long id) {
+            return ("{\"id\":" + id + ",\"type\":\"order\",\"customer\":\"J\u00f6rgen\"," +
+                    "\"items\":[{\"sku\":\"A-1001\",\"qty\":2,\"price\":19.90}," +
+                    "{\"sku\":\"B-2002\",\"qty\":1,\"price\":149.00}]," +
+                    "\"note\":\"Leave at the door, please.\"}").getBytes(UTF_8);
+        }
+    }
+}
\ No newline at end of file
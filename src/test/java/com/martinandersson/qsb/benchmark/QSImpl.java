@@ -3,10 +3,14 @@ package com.martinandersson.qsb.benchmark;
 import com.martinandersson.qsb.api.QueueService;
 import com.martinandersson.qsb.impl.concurrent.ConcurrentQSWithPojoMessage;
 import com.martinandersson.qsb.impl.concurrent.atomic.ConcurrentQSWithAtomicMessage;
+import com.martinandersson.qsb.impl.handle.HandleQS;
+import com.martinandersson.qsb.impl.priority.PriorityQS;
 import com.martinandersson.qsb.impl.readwritelock.ReadWriteLockedQS;
 import com.martinandersson.qsb.impl.serialized.SynchronizedQS;
+import com.martinandersson.qsb.impl.Configuration;
 import java.time.Duration;
-import java.util.function.Function;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
@@ -19,18 +23,37 @@ public enum QSImpl implements Supplier<QueueService>
     Synchronized     (SynchronizedQS::new),
     ReadWriteLock    (ReadWriteLockedQS::new),
     ConcurrentPojo   (ConcurrentQSWithPojoMessage::new),
-    ConcurrentAtomic (ConcurrentQSWithAtomicMessage::new);
+    ConcurrentAtomic (ConcurrentQSWithAtomicMessage::new),
+    Priority         (PriorityQS::new),
+    
+    /**
+     * Core API only, configuration options are ignored.
+     * 
+     * @see HandleQS
+     */
+    Handles          ((timeout, options) -> new HandleQS(timeout));
     
     private static final Duration MSG_TIMEOUT = Duration.ofDays(999);
     
-    private final Function<Duration, QueueService> delegate;
+    private final BiFunction<Duration, Consumer<Configuration<?>>, QueueService> delegate;
 
-    private QSImpl(Function<Duration, QueueService> delegate) {
+    private QSImpl(BiFunction<Duration, Consumer<Configuration<?>>, QueueService> delegate) {
         this.delegate = delegate;
     }
 
     @Override
     public final QueueService get() {
-        return delegate.apply(MSG_TIMEOUT);
+        return get(c -> {});
+    }
+    
+    /**
+     * Create a queue service with specified configuration options.
+     * 
+     * @param options  configuration options
+     * 
+     * @return a new queue service
+     */
+    public final QueueService get(Consumer<Configuration<?>> options) {
+        return delegate.apply(MSG_TIMEOUT, options);
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.martinandersson.qsb.benchmark;
 
+import com.martinandersson.qsb.impl.PriorityLanes;
 import java.util.ArrayDeque;
 import java.util.LinkedList;
 import java.util.PriorityQueue;
@@ -93,6 +94,14 @@ public abstract class QueueBenchmark
     
     protected abstract Queue<Long> getQueue();
     
+    /**
+     * Returns priority lanes with a priority derived from the element, which
+     * is the id of the writer thread.
+     */
+    private static Queue<Long> lanes(Supplier<Queue<Long>> lane) {
+        return new PriorityLanes<>(l -> (int) (l % PriorityLanes.LEVELS), lane);
+    }
+    
     
     
     // This is the work we do. We write and read..
@@ -138,7 +147,8 @@ public abstract class QueueBenchmark
         public enum Impl implements Supplier<Queue<Long>> {
             ArrayDeque    (ArrayDeque::new),
             LinkedList    (LinkedList::new),
-            PriorityQueue (PriorityQueue::new);
+            PriorityQueue (PriorityQueue::new),
+            PriorityLanes (() -> lanes(ArrayDeque::new));
             
             private final Supplier<Queue<Long>> delegate;
             
@@ -174,7 +184,8 @@ public abstract class QueueBenchmark
             LinkedTransferQueue   (LinkedTransferQueue::new),
             ConcurrentLinkedQueue (ConcurrentLinkedQueue::new),
             ConcurrentLinkedDeque (ConcurrentLinkedDeque::new),
-            PriorityBlockingQueue (PriorityBlockingQueue::new);
+            PriorityBlockingQueue (PriorityBlockingQueue::new),
+            PriorityLanes         (() -> lanes(ConcurrentLinkedQueue::new));
             // TODO: Add our QueueService implementations!
             
             private final Supplier<Queue<Long>> delegate;
@@ -0,0 +1,34 @@
+package com.martinandersson.qsb.benchmark;
+
+import java.util.Iterator;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Loops through the names of a parameterized number of message groups.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@State(Scope.Thread)
+public class QueueGroup implements Supplier<String>
+{
+    @Param({"1", "4", "16", "64", "256"})
+    int groups;
+    
+    private Iterator<String> name;
+    
+    @Setup
+    public void setupThread() {
+        name = new FixedCostLoopingIterator<>(
+                IntStream.range(0, groups).mapToObj(n -> "G" + n));
+    }
+    
+    @Override
+    public String get() {
+        return name.next();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,52 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.QueueService;
+import static java.util.Arrays.stream;
+import java.util.Iterator;
+import java.util.function.IntSupplier;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Same workload as {@link QueueName}, except the queues are referred to using
+ * the id they got when {@linkplain #register(QueueService) registered}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@State(Scope.Thread)
+public class QueueId implements IntSupplier
+{
+    /**
+     * Register all queue names "Q1".."Qn" with the specified queue service.<p>
+     * 
+     * The queue named "Qn" get id n - 1.
+     * 
+     * @param qs  queue service
+     */
+    static void register(QueueService qs) {
+        for (int n = 1; n <= QueueName.QUEUES; ++n) {
+            if (qs.register("Q" + n) != n - 1) {
+                throw new AssertionError("Ids are not dense.");
+            }
+        }
+    }
+    
+    
+    
+    private Iterator<Integer> id;
+    
+    @Setup
+    public void setupThread() {
+        // Same iterator type as QueueName, so both pay the same price.
+        int[] seq = QueueName.shuffle(IntStream.range(0, QueueName.QUEUES).toArray());
+        
+        id = new FixedCostLoopingIterator<>(stream(seq).boxed());
+    }
+    
+    @Override
+    public int getAsInt() {
+        return id.next();
+    }
+}
\ No newline at end of file
@@ -34,7 +34,7 @@ public class QueueName implements Supplier<String>
                 stream(seq).mapToObj(n -> "Q" + n));
     }
 
-    private static int[] shuffle(int[] arr) {
+    static int[] shuffle(int[] arr) {
         final Random rnd = ThreadLocalRandom.current();
 
         // Thank you: http://stackoverflow.com/a/1520212
@@ -31,7 +31,11 @@ import org.openjdk.jmh.infra.ThreadParams;
  * specified using a system property "tg". For example, "1-2" will yield 1 reader
  * thread and 1 writer thread.<p>
  * 
- * We also need to know the queue size. Use system property "q" to specify that.
+ * We also need to know the queue size. Use system property "q" to specify that.<p>
+ * 
+ * Benchmark classes with the suffix "ById" run the same workload as their
+ * counterpart, but use the id-based API of the queue service. Each queue
+ * is then registered before the iteration starts.
  * 
  * @author Martin Anderson (webmaster at martinandersson.com)
  * 
@@ -82,6 +86,20 @@ public abstract class QueueServiceBenchmark
         return rs.report(read(queue));
     }
     
+    protected final void write(int queue, String message) {
+        qs.push(queue, message);
+    }
+    
+    protected final Message read(int queue, ReadStatistics rs) {
+        final Message m = qs.poll(queue);
+        
+        if (m != null) {
+            qs.complete(m);
+        }
+        
+        return rs.report(m);
+    }
+    
     
     
     // Setup
@@ -117,7 +135,30 @@ public abstract class QueueServiceBenchmark
     
     @Setup(Level.Iteration)
     public void setupIteration() {
-        qs = impl.get();
+        qs = newQueueService();
+        setupQueues();
+    }
+    
+    /**
+     * Create the queue service of an iteration.
+     * 
+     * @implSpec
+     * The default implementation returns {@code impl.get()}.
+     * 
+     * @return the queue service of an iteration
+     */
+    QueueService newQueueService() {
+        return impl.get();
+    }
+    
+    /**
+     * Called after the queue service of an iteration has been created.
+     * 
+     * @implSpec
+     * The default implementation does nothing.
+     */
+    void setupQueues() {
+        // Empty
     }
     
     @TearDown(Level.Iteration)
@@ -160,6 +201,46 @@ public abstract class QueueServiceBenchmark
         }
     }
     
+    @BenchmarkMode(Mode.Throughput)
+    public static class ThrptById extends QueueServiceBenchmark {
+        @Override
+        void setupQueues() {
+            QueueId.register(qs);
+        }
+        
+        @Group("")
+        @Benchmark
+        public void writer(QueueId queue, QueueMessage message) {
+            write(queue.getAsInt(), message.msg);
+        }
+        
+        @Group("")
+        @Benchmark
+        public Message reader(QueueId queue, ReadStatistics rs) {
+            return read(queue.getAsInt(), rs);
+        }
+    }
+    
+    @BenchmarkMode(Mode.AverageTime)
+    public static class AvgById extends QueueServiceBenchmark {
+        @Override
+        void setupQueues() {
+            QueueId.register(qs);
+        }
+        
+        @Group("")
+        @Benchmark
+        public void writer(QueueId queue, QueueMessage message) {
+            write(queue.getAsInt(), message.msg);
+        }
+        
+        @Group("")
+        @Benchmark
+        public Message reader(QueueId queue, ReadStatistics rs) {
+            return read(queue.getAsInt(), rs);
+        }
+    }
+    
     @BenchmarkMode(Mode.SingleShotTime)
     @Measurement(iterations = SS_ITERATIONS, batchSize = SS_BATCH_SIZE)
     public static class SingleShot extends QueueServiceBenchmark {
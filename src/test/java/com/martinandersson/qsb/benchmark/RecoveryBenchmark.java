@@ -0,0 +1,115 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.Checkpointer;
+import com.martinandersson.qsb.impl.Recovery;
+import com.martinandersson.qsb.impl.WriteAheadLog;
+import java.io.IOException;
+import static java.lang.System.out;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the time it takes to restart a queue service from its write-ahead
+ * log, for different backlog sizes.<p>
+ * 
+ * The log is written once per trial. Of all messages pushed, only {@code
+ * backlog} messages remain pending; the rest has been completed, so the log is
+ * {@value #CHURN} times larger than the backlog. Each invocation recover the
+ * messages and restore them into a new queue service, which is the time a
+ * restart would take.<p>
+ * 
+ * With {@code LOG_ONLY}, the whole log is replayed. With {@code SNAPSHOT}, a
+ * checkpoint is taken after all but the last 1% of the pushes, and only the log
+ * tail after the snapshot is replayed.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecoveryBenchmark
+{
+    public enum Startup {
+        LOG_ONLY, SNAPSHOT
+    }
+    
+    /** Messages pushed per message left pending. */
+    private static final int CHURN = 4;
+    
+    private static final int SEGMENT_SIZE = 64 << 20;
+    
+    private static final String QUEUE = "Q", CONTENT = "recovered message";
+    
+    @Param({"10000", "100000", "1000000"})
+    int backlog;
+    
+    @Param
+    Startup startup;
+    
+    @Param({"ConcurrentAtomic"})
+    QSImpl impl;
+    
+    private Path dir;
+    
+    @Setup(Level.Trial)
+    public void writeLog() throws IOException {
+        dir = Files.createTempDirectory("qsb-recovery");
+        
+        final WriteAheadLog log = new WriteAheadLog(dir, SEGMENT_SIZE);
+        final QueueService qs = impl.get(c -> c.journal(log));
+        
+        final long pushes = (long) backlog * CHURN,
+                   tail   = startup == Startup.SNAPSHOT ? pushes / 100 : 0;
+        
+        for (long i = 0; i < pushes; ++i) {
+            if (i == pushes - tail) {
+                try (Checkpointer cp = new Checkpointer(log, Duration.ofDays(1))) {
+                    cp.checkpoint();
+                }
+            }
+            
+            qs.push(QUEUE, CONTENT);
+            
+            // Complete all but every CHURN:th message
+            if (i % CHURN != 0) {
+                qs.complete(qs.poll(QUEUE));
+            }
+        }
+        
+        log.close();
+        out.println("Log size: " + (log.position() >> 20) + " MiB");
+    }
+    
+    @TearDown(Level.Trial)
+    public void deleteLog() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+    
+    @Benchmark
+    public QueueService restart() {
+        final Recovery r = Recovery.load(dir, SEGMENT_SIZE);
+        
+        if (r.messages() != backlog) {
+            throw new AssertionError("Recovered " + r.messages() + ", expected " + backlog);
+        }
+        
+        return impl.get(c -> c.restore(r));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.InMemoryTransport;
+import com.martinandersson.qsb.impl.Replicator;
+import com.martinandersson.qsb.impl.Standby;
+import static java.lang.System.out;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Same workload as {@link QueueServiceBenchmark}, with and without a hot
+ * standby fed by a {@link Replicator} over an {@link InMemoryTransport}.<p>
+ * 
+ * Each iteration replicate to a new standby. The number of events and batches
+ * per iteration, and the lag when the iteration ended, is printed.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+public class ReplicationBenchmark extends QueueServiceBenchmark
+{
+    @Param({"false", "true"})
+    boolean replicate;
+    
+    private InMemoryTransport transport;
+    
+    private Replicator replicator;
+    
+    @Override
+    QueueService newQueueService() {
+        if (!replicate) {
+            return impl.get();
+        }
+        
+        transport = new InMemoryTransport(new Standby());
+        replicator = new Replicator(transport);
+        
+        return impl.get(c -> c.journal(replicator));
+    }
+    
+    @TearDown(Level.Iteration)
+    public void stopReplication() {
+        if (replicator == null) {
+            return;
+        }
+        
+        final long lag = replicator.lag();
+        
+        replicator.close();
+        transport.close();
+        
+        out.println("Events: " + replicator.events() +
+                ", batches: " + replicator.batches() + ", lag: " + lag);
+        
+        replicator = null;
+        transport = null;
+    }
+    
+    @Group("")
+    @Benchmark
+    public void writer(QueueName queue, QueueMessage message) {
+        write(queue.get(), message.msg);
+    }
+    
+    @Group("")
+    @Benchmark
+    public Message reader(QueueName queue, ReadStatistics rs) {
+        return read(queue.get(), rs);
+    }
+}
\ No newline at end of file
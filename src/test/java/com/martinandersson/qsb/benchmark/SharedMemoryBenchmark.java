@@ -0,0 +1,121 @@
+package com.martinandersson.qsb.benchmark;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.impl.shm.SharedMemoryQS;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures messages passed between processes through a {@link
+ * SharedMemoryQS}.<p>
+ * 
+ * Each trial starts {@code producers} child JVMs that push to the same queue
+ * of a shared file, as fast as the queue has room. The benchmark thread polls
+ * and completes; one operation is one message received from another process.
+ * The file is put under {@code /dev/shm} if that directory exist, otherwise in
+ * the temp directory.<p>
+ * 
+ * The child JVMs are started without JMH's JVM options, and live only for the
+ * trial.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class SharedMemoryBenchmark
+{
+    private static final String QUEUE = "Q";
+    
+    private static final int QUEUES = 4, SLOTS = 1 << 16, SLOT_SIZE = 128;
+    
+    private static final Duration LEASE = Duration.ofSeconds(60);
+    
+    @Param({"1", "2"})
+    int producers;
+    
+    @Param({"32"})
+    int size;
+    
+    private Path file;
+    
+    private SharedMemoryQS qs;
+    
+    private final List<Process> processes = new ArrayList<>();
+    
+    @Setup(Level.Trial)
+    public void startProducers() throws IOException {
+        final Path dir = Files.isDirectory(SharedMemoryQS.SHM) ?
+                SharedMemoryQS.SHM : Paths.get(System.getProperty("java.io.tmpdir"));
+        
+        file = Files.createTempFile(dir, "qsb-", ".shm");
+        qs = new SharedMemoryQS(file, QUEUES, SLOTS, SLOT_SIZE, LEASE);
+        
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        
+        for (int i = 0; i < producers; ++i) {
+            processes.add(new ProcessBuilder(java,
+                    "-cp", System.getProperty("java.class.path"),
+                    Producer.class.getName(), file.toString(), Integer.toString(size))
+                    .inheritIO()
+                    .start());
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void stopProducers() throws IOException, InterruptedException {
+        for (Process p : processes) {
+            p.destroyForcibly().waitFor();
+        }
+        
+        processes.clear();
+        Files.deleteIfExists(file);
+    }
+    
+    @Benchmark
+    public Message receive() {
+        Message m;
+        
+        while ((m = qs.poll(QUEUE)) == null) {
+            Thread.yield();
+        }
+        
+        qs.complete(m);
+        return m;
+    }
+    
+    /**
+     * A child process pushing messages until killed.
+     */
+    public static final class Producer {
+        public static void main(String... args) {
+            final SharedMemoryQS qs = new SharedMemoryQS(
+                    Paths.get(args[0]), QUEUES, SLOTS, SLOT_SIZE, LEASE);
+            
+            final byte[] message = new byte[Integer.parseInt(args[1])];
+            
+            for (;;) {
+                try {
+                    qs.push(QUEUE, message);
+                }
+                catch (IllegalStateException e) {
+                    // Queue full
+                    Thread.yield();
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
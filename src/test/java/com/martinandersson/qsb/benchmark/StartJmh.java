@@ -4,6 +4,7 @@ import java.nio.file.Paths;
 import static java.util.Arrays.stream;
 import java.util.regex.Pattern;
 import static java.util.stream.Collectors.joining;
+import org.openjdk.jmh.profile.GCProfiler;
 import org.openjdk.jmh.results.format.ResultFormatType;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
@@ -56,6 +57,12 @@ public class StartJmh
                     return Integer.parseInt(str);
                 }).toArray()));
         
+        SystemProperties.GC_PROFILER.ifPresent(gc -> {
+            if (!gc.equalsIgnoreCase("false")) {
+                b.addProfiler(GCProfiler.class);
+            }
+        });
+        
         new Runner(b.build()).run();
     }
     
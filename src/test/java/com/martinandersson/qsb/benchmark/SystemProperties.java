@@ -175,7 +175,17 @@ public enum SystemProperties
      * The property key is "q" and the property is required when running {@code
      * QueueServiceBenchmark}
      */
-    QUEUE_SIZE ("q", "queue size");
+    QUEUE_SIZE ("q", "queue size"),
+    
+    /**
+     * Add the JMH GC profiler.<p>
+     * 
+     * The property key is "gc" and any value other than "false" enables the
+     * profiler, which report the count of GC events and the time spent in GC
+     * (an approximation of pause time for stop-the-world collectors) next to
+     * the throughput of each benchmark.
+     */
+    GC_PROFILER ("gc", "gc profiler");
     
     
     
@@ -2,11 +2,21 @@ package com.martinandersson.qsb.impl;
 
 import com.martinandersson.qsb.api.Message;
 import com.martinandersson.qsb.api.QueueService;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import static java.util.Arrays.asList;
 import static java.util.Arrays.copyOf;
 import static java.util.Arrays.stream;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -16,13 +26,18 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import static java.util.stream.Collectors.counting;
 import static java.util.stream.Collectors.groupingBy;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import static java.util.stream.Stream.concat;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -40,6 +55,13 @@ public abstract class AbstractQSTest
 {
     protected abstract Function<Duration, QueueService> getFactory();
     
+    /**
+     * Returns a factory that also accept configuration options.
+     * 
+     * @return a factory that also accept configuration options
+     */
+    protected abstract BiFunction<Duration, Consumer<Configuration<?>>, QueueService> getConfiguredFactory();
+    
     private QueueService testee;
     
     
@@ -120,6 +142,667 @@ public abstract class AbstractQSTest
         assert_queue_content("q");
     }
     
+    public void test_register() {
+        final int q1 = testee.register("q1"),
+                  q2 = testee.register("q2");
+        
+        assertEquals(q1, 0);
+        assertEquals(q2, 1);
+        assertEquals(testee.register("q1"), q1);
+        
+        testee.push(q1, "m1");
+        testee.push("q1", "m2");
+        
+        Message msg = testee.poll(q1);
+        assertEquals(msg.queue(), "q1");
+        assertEquals(msg.get(), "m1");
+        testee.complete(msg);
+        
+        assert_queue_content("q1", "m2");
+        
+        // Registered queues are never deleted, even when empty:
+        assertNull(testee.poll(q1));
+        assertNull(testee.poll(q2));
+        testee.push(q2, "m3");
+        assert_queue_content("q2", "m3");
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_unknown_id() {
+        testee.poll(0);
+    }
+    
+    public void test_ids() {
+        testee.push("q", "m1", "m2");
+        
+        Message m1 = testee.poll("q"),
+                m2 = testee.poll("q");
+        
+        assertTrue(m1.id() >= 0);
+        assertTrue(m2.id() > m1.id());
+    }
+    
+    public void test_complete_by_id() {
+        given_timeout(0);
+        
+        testee.push("q", "m1", "m2");
+        testee.complete("q", testee.poll("q").id());
+        
+        // Unknown ids are ignored
+        testee.complete("q", Long.MAX_VALUE);
+        testee.complete("unknown", 0);
+        
+        Message m2 = testee.poll("q");
+        assertEquals(m2.get(), "m2");
+        
+        // Re-delivered immediately because of timeout
+        assertEquals(testee.poll("q"), m2);
+        testee.complete("q", m2.id());
+        
+        assertNull(testee.poll("q"));
+    }
+    
+    public void test_complete_range_and_bitmap() {
+        given_timeout(0);
+        
+        testee.push("q", "m1", "m2", "m3");
+        
+        Message m1 = testee.poll("q");
+        
+        // m2 has not been delivered and is not affected
+        testee.complete("q", m1.id(), m1.id() + 2);
+        
+        Message m2 = testee.poll("q");
+        assertEquals(m2.get(), "m2");
+        assertEquals(testee.poll("q"), m2);
+        
+        BitSet bits = new BitSet();
+        bits.set(1);
+        testee.complete("q", m1.id(), bits);
+        
+        Message m3 = testee.poll("q");
+        assertEquals(m3.get(), "m3");
+        testee.complete("q", m3.id(), m3.id() + 1);
+        
+        assertNull(testee.poll("q"));
+    }
+    
+    /**
+     * A range is applied when completed, not when a poll walk past the
+     * messages.
+     */
+    public void test_complete_range_eagerly() {
+        testee.push("q", "m1", "m2");
+        
+        Message m1 = testee.poll("q");
+        testee.complete("q", m1.id(), m1.id() + 2);
+        assertFalse(testee.extend(m1, Duration.ofMinutes(1)));
+        
+        // ..and m2, delivered after, is not completed by it
+        Message m2 = testee.poll("q");
+        assertEquals(m2.get(), "m2");
+        assertTrue(testee.extend(m2, Duration.ofMinutes(1)));
+    }
+    
+    public void test_message_groups() {
+        testee.pushGrouped("q", "g1", "a1");
+        testee.pushGrouped("q", "g1", "a2");
+        testee.pushGrouped("q", "g2", "b1");
+        testee.push("q", "u");
+        
+        Message a1 = testee.poll("q");
+        assertEquals(a1.get(), "a1");
+        
+        // a2 must wait for a1
+        assertEquals(testee.poll("q").get(), "b1");
+        assertEquals(testee.poll("q").get(), "u");
+        assertNull(testee.poll("q"));
+        
+        testee.complete(a1);
+        assertEquals(testee.poll("q").get(), "a2");
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_group_too_long() {
+        testee.pushGrouped("q", new String(new char[Short.MAX_VALUE]).replace('\0', '\u00e9'), "m");
+    }
+    
+    public void test_push_idempotent() {
+        assertTrue(testee.pushIdempotent("q", "k1", "m1"));
+        assertFalse(testee.pushIdempotent("q", "k1", "m2"));
+        assertTrue(testee.pushIdempotent("q", "k2", "m3"));
+        
+        testee.complete(testee.poll("q"));
+        testee.complete(testee.poll("q"));
+        assertNull(testee.poll("q"));
+        
+        // Keys survive the queue being emptied
+        assertFalse(testee.pushIdempotent("q", "k1", "m4"));
+        assertNull(testee.poll("q"));
+        
+        // ..but are specific to the queue
+        assertTrue(testee.pushIdempotent("other", "k1", "m5"));
+    }
+    
+    /**
+     * A push that fails does not keep its key, so it can be retried.
+     */
+    public void test_push_idempotent_retry() {
+        final boolean[] broken = {true};
+        
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10), c -> c.journal(new Journal() {
+            @Override
+            public void pushed(Message message, String group) {
+                if (broken[0]) {
+                    throw new IllegalStateException("Broken");
+                }
+            }
+            
+            @Override
+            public void leased(Message message) {
+                // Empty
+            }
+            
+            @Override
+            public void completed(String queue, long id) {
+                // Empty
+            }
+        }));
+        
+        try {
+            testee.pushIdempotent("q", "k", "m");
+            fail("Expected broken.");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        broken[0] = false;
+        assertTrue(testee.pushIdempotent("q", "k", "m"));
+        assertEquals(testee.poll("q").get(), "m");
+    }
+    
+    public void test_poll_with_lease() throws InterruptedException {
+        testee.push("q", "m");
+        
+        Message m = testee.poll("q", Duration.ofMillis(50));
+        assertNull(testee.poll("q"));
+        
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(testee.poll("q"), m);
+    }
+    
+    public void test_extend() throws InterruptedException {
+        testee.push("q", "m1", "m2");
+        
+        Message m1 = testee.poll("q", Duration.ofMillis(50));
+        assertTrue(testee.extend(m1, Duration.ofSeconds(10)));
+        
+        TimeUnit.MILLISECONDS.sleep(100);
+        
+        // m1 still leased, m2 is redelivered at once
+        Message m2 = testee.poll("q", Duration.ZERO);
+        assertEquals(m2.get(), "m2");
+        assertEquals(testee.poll("q", Duration.ZERO), m2);
+        
+        // Expired lease can not be extended
+        assertFalse(testee.extend(m2, Duration.ofSeconds(10)));
+        
+        testee.complete(m1);
+        assertFalse(testee.extend(m1, Duration.ofSeconds(10)));
+    }
+    
+    public void test_nack() throws InterruptedException {
+        testee.push("q", "m1", "m2");
+        
+        Message m1 = testee.poll("q");
+        testee.nack(m1);
+        assertEquals(testee.poll("q"), m1);
+        assertEquals(m1.deliveries(), 2);
+        
+        testee.nack(m1, Duration.ofMillis(50));
+        assertEquals(testee.poll("q").get(), "m2");
+        assertNull(testee.poll("q"));
+        
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(testee.poll("q"), m1);
+    }
+    
+    public void test_dead_letter() throws InterruptedException {
+        testee = getConfiguredFactory().apply(Duration.ofMillis(50),
+                c -> c.deadLetter(2, q -> q + ".dlq"));
+        
+        testee.push("q", "poison");
+        
+        Message m = testee.poll("q");
+        assertEquals(m.deliveries(), 1);
+        
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(testee.poll("q"), m);
+        assertEquals(m.deliveries(), 2);
+        
+        // Third time's not a charm
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertNull(testee.poll("q"));
+        
+        Message dead = testee.poll("q.dlq");
+        assertEquals(dead.get(), "poison");
+        assertEquals(dead.deliveries(), 1);
+        
+        AbstractQS<?> impl = (AbstractQS<?>) testee;
+        assertEquals(impl.redeliveries(), 1);
+        assertEquals(impl.deadLettered(), 1);
+    }
+    
+    public void test_bounded_reject() {
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.capacity(2, Overflow.REJECT, Duration.ZERO));
+        
+        testee.push("q", "m1", "m2");
+        assert_full("q");
+        
+        // Delivered but not completed still count
+        Message m1 = testee.poll("q");
+        assert_full("q");
+        
+        testee.complete(m1);
+        testee.push("q", "m3");
+        assert_queue_content("q", "m2", "m3");
+    }
+    
+    public void test_bounded_drop_oldest() {
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.capacity(2, Overflow.DROP_OLDEST, Duration.ZERO));
+        
+        testee.push("q", "m1", "m2", "m3");
+        assert_queue_content("q", "m2", "m3");
+        
+        assertEquals(((AbstractQS<?>) testee).dropped(), 1);
+    }
+    
+    /**
+     * A leased message is not dropped.
+     */
+    public void test_bounded_drop_oldest_leased() {
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.capacity(2, Overflow.DROP_OLDEST, Duration.ZERO));
+        
+        testee.push("q", "m1", "m2");
+        Message m1 = testee.poll("q");
+        
+        testee.push("q", "m3");
+        assertEquals(m1.get(), "m1");
+        testee.complete(m1);
+        
+        Message m3 = testee.poll("q");
+        assertEquals(m3.get(), "m3");
+        assertNull(testee.poll("q"));
+        
+        // Both remaining are leased
+        testee.push("q", "m4");
+        Message m4 = testee.poll("q");
+        assert_full("q");
+        
+        testee.complete(m3);
+        testee.complete(m4);
+        assertEquals(((AbstractQS<?>) testee).dropped(), 1);
+    }
+    
+    public void test_bounded_block() throws InterruptedException {
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.capacity(1, Overflow.BLOCK, Duration.ofMillis(50)));
+        
+        testee.push("q", "m1");
+        
+        long then = System.nanoTime();
+        
+        try {
+            testee.push("q", "m2");
+            fail("Queue is full");
+        }
+        catch (IllegalStateException e) {
+            assertTrue(System.nanoTime() - then >= TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        
+        Message m1 = testee.poll("q");
+        
+        Thread consumer = new Thread(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            
+            testee.complete(m1);
+        });
+        
+        consumer.start();
+        testee.push("q", "m2");
+        consumer.join();
+        
+        assert_queue_content("q", "m2");
+    }
+    
+    /**
+     * A batch that does not fit push what fits, in order.
+     */
+    public void test_push_batch() {
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.capacity(3, Overflow.REJECT, Duration.ZERO));
+        
+        testee.push("q", asList("m1", "m2"));
+        
+        assertEquals(testee.pushBatch("q",
+                asList("m3".getBytes(UTF_8), "m4".getBytes(UTF_8))), 1);
+        
+        try {
+            testee.push("q", asList("m4"));
+            fail("Queue is full");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        assert_queue_content("q", "m1", "m2", "m3");
+        
+        assertEquals(testee.pushBatch("empty", Collections.emptyList()), 0);
+        assertNull(testee.poll("empty"));
+    }
+    
+    public void test_byte_payloads() {
+        byte[] hello = "h\u00e9llo".getBytes(UTF_8);
+        ByteBuffer abc = ByteBuffer.wrap("abc".getBytes(UTF_8));
+        
+        testee.push("q", hello);
+        testee.push("q", abc);
+        
+        // Position of the pushed buffer is left alone
+        assertEquals(abc.remaining(), 3);
+        
+        Message m1 = testee.poll("q"),
+                m2 = testee.poll("q");
+        
+        assertEquals(m1.get(), "h\u00e9llo");
+        assertEquals(m1.buffer(), ByteBuffer.wrap(hello));
+        assertTrue(m1.buffer().isReadOnly());
+        
+        assertEquals(m2.get(), "abc");
+        
+        // String content is encoded on demand
+        testee.push("q", "h\u00e9llo");
+        assertEquals(testee.poll("q").buffer(), ByteBuffer.wrap(hello));
+    }
+    
+    public void test_memory_accounting() {
+        AbstractQS<?> impl = (AbstractQS<?>) testee;
+        
+        testee.push("q1", "abcd");
+        testee.push("q2", "ab");
+        
+        assertEquals(impl.bytes("q1"), 8);
+        assertEquals(impl.bytes("q2"), 4);
+        assertEquals(impl.bytes(), 12);
+        
+        testee.complete(testee.poll("q1"));
+        
+        // Bytes are refunded on eviction
+        assertNull(testee.poll("q1"));
+        assertEquals(impl.bytes("q1"), 0);
+        assertEquals(impl.bytes(), 4);
+    }
+    
+    public void test_off_heap() {
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.slabs(16, 0));
+        
+        AbstractQS<?> impl = (AbstractQS<?>) testee;
+        
+        byte[] big = new byte[40];
+        Arrays.fill(big, (byte) 'x');
+        
+        testee.push("q", "h\u00e9llo");
+        testee.push("q", "abcdefghijkl".getBytes(UTF_8));
+        testee.push("q", big);
+        
+        // The second message did not fit, the third got a slab of its own
+        assertEquals(impl.slabs(), 3);
+        assertEquals(impl.bytes(), 6 + 12 + 40);
+        
+        Message m1 = testee.poll("q"),
+                m2 = testee.poll("q"),
+                m3 = testee.poll("q");
+        
+        assertEquals(m1.get(), "h\u00e9llo");
+        assertTrue(m1.buffer().isReadOnly());
+        assertEquals(m2.get(), "abcdefghijkl");
+        assertEquals(m3.buffer(), ByteBuffer.wrap(big));
+        
+        asList(m1, m2, m3).forEach(testee::complete);
+        
+        // Only the current slab survive eviction
+        assertNull(testee.poll("q"));
+        assertEquals(impl.bytes(), 0);
+        assertEquals(impl.slabs(), 1);
+    }
+    
+    public void test_mapped() throws IOException {
+        Path dir = Files.createTempDirectory("mapped");
+        
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.mapped(dir, 64));
+        
+        AbstractQS<?> impl = (AbstractQS<?>) testee;
+        
+        byte[] a = new byte[40], b = new byte[40];
+        Arrays.fill(a, (byte) 'a');
+        Arrays.fill(b, (byte) 'b');
+        
+        testee.push("q", a);
+        testee.push("q", b);
+        
+        assertEquals(impl.slabs(), 2);
+        
+        Message m1 = testee.poll("q"),
+                m2 = testee.poll("q");
+        
+        ByteBuffer view = m1.buffer();
+        assertTrue(view.isReadOnly());
+        assertTrue(view.isDirect());
+        assertEquals(view, ByteBuffer.wrap(a));
+        
+        testee.complete(m1);
+        testee.complete(m2);
+        
+        // Evicted, only the current segment survive
+        assertNull(testee.poll("q"));
+        assertEquals(impl.slabs(), 1);
+        
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(files.count(), 1);
+        }
+        
+        // A view held after completion is still valid
+        assertEquals(view, ByteBuffer.wrap(a));
+    }
+    
+    public void test_spill() throws IOException {
+        Path dir = Files.createTempDirectory("spill");
+        
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.spill(dir, 20, 64, 30));
+        
+        AbstractQS<?> impl = (AbstractQS<?>) testee;
+        
+        for (int i = 0; i < 20; ++i) {
+            testee.push("q", "message " + i);
+        }
+        
+        // Only the head fit in memory, the rest was spilled as UTF-8
+        assertEquals(impl.bytes(), 18);
+        assertEquals(impl.spilled(), 9 * 9 + 10 * 10);
+        
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.count() > 1);
+        }
+        
+        for (int i = 0; i < 20; ++i) {
+            Message m = testee.poll("q");
+            assertEquals(m.get(), "message " + i);
+            testee.complete(m);
+        }
+        
+        assertNull(testee.poll("q"));
+        assertEquals(impl.bytes(), 0);
+        assertEquals(impl.spilled(), 0);
+        
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(files.count(), 0);
+        }
+        
+        Files.delete(dir);
+    }
+    
+    /**
+     * Records read ahead but not consumed are kept for the next read back.
+     */
+    public void test_spill_read_ahead() throws IOException {
+        Path dir = Files.createTempDirectory("spill");
+        
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.spill(dir, 20, 4096, 30));
+        
+        for (int i = 0; i < 200; ++i) {
+            testee.push("q", "message " + i);
+        }
+        
+        for (int i = 0; i < 200; ++i) {
+            Message m = testee.poll("q");
+            assertEquals(m.get(), "message " + i);
+            testee.complete(m);
+        }
+        
+        assertNull(testee.poll("q"));
+        assertEquals(((AbstractQS<?>) testee).spilled(), 0);
+        
+        Files.delete(dir);
+    }
+    
+    /**
+     * A message that can not be spilled behind a tail is not kept in memory
+     * ahead of the tail.
+     */
+    public void test_spill_failure_keeps_order() throws IOException {
+        Path dir = Files.createTempDirectory("spill"),
+             gone = dir.resolveSibling(dir.getFileName() + "-gone");
+        
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.spill(dir, 20, 64, 30));
+        
+        int pushed = 0;
+        
+        for (; pushed < 5; ++pushed) {
+            testee.push("q", "message " + pushed);
+        }
+        
+        // ..no new segment can be created
+        Files.move(dir, gone);
+        
+        try {
+            for (;; ++pushed) {
+                testee.push("q", "message " + pushed);
+            }
+        }
+        catch (UncheckedIOException e) {
+            // Expected
+        }
+        finally {
+            Files.move(gone, dir);
+        }
+        
+        for (int i = 0; i < pushed; ++i) {
+            Message m = testee.poll("q");
+            assertEquals(m.get(), "message " + i);
+            testee.complete(m);
+        }
+        
+        assertNull(testee.poll("q"));
+        
+        Files.delete(dir);
+    }
+    
+    public void test_journal() {
+        List<String> events = new ArrayList<>();
+        
+        Journal recorder = new Journal() {
+            @Override public synchronized void pushed(Message message, String group) {
+                events.add("push " + message.get() + " " + group);
+            }
+            @Override public synchronized void leased(Message message) {
+                events.add("lease " + message.get() + " " + message.deliveries());
+            }
+            @Override public synchronized void completed(String queue, long id) {
+                events.add("complete " + queue);
+            }
+        };
+        
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.journal(recorder));
+        
+        testee.push("q", "m1");
+        testee.pushGrouped("q", "g", "m2");
+        
+        Message m1 = testee.poll("q");
+        testee.extend(m1, Duration.ofSeconds(20));
+        testee.complete(m1);
+        
+        // Completing twice is one event
+        testee.complete(m1);
+        
+        assertEquals(events, asList(
+                "push m1 null", "push m2 g",
+                "lease m1 1", "lease m1 1",
+                "complete q"));
+    }
+    
+    public void test_memory_budget() {
+        testee = getConfiguredFactory().apply(Duration.ofSeconds(10),
+                c -> c.memoryBudget(10));
+        
+        testee.push("q", "abcd");
+        assert_full("q");
+        
+        testee.complete(testee.poll("q"));
+        assertNull(testee.poll("q"));
+        
+        testee.push("q", "abcd");
+    }
+    
+    public void test_delayed() throws InterruptedException {
+        testee.push("q", "later", Duration.ofMillis(200));
+        testee.push("q", "now", Instant.now().minusSeconds(1));
+        
+        testee.complete(testee.poll("q"));
+        assertNull(testee.poll("q"));
+        
+        TimeUnit.MILLISECONDS.sleep(250);
+        
+        assertEquals(testee.poll("q").get(), "later");
+    }
+    
+    /**
+     * A delay too long for the clocks is cut short, not thrown or wrapped
+     * around to the past.
+     */
+    public void test_delayed_forever() {
+        testee.push("q", "never", Duration.ofSeconds(Long.MAX_VALUE));
+        testee.push("q", "never", Instant.MAX);
+        testee.push("q", "now");
+        
+        assertEquals(testee.poll("q").get(), "now");
+        assertNull(testee.poll("q"));
+    }
+    
     public void test_timeout() {
         // timeout immediately lol - what a great feature!
         given_timeout(0);
@@ -260,6 +943,21 @@ public abstract class AbstractQSTest
         assertNull(testee.poll(queue));
     }
     
+    /**
+     * Asserts that a push to specified {@code queue} fails.
+     * 
+     * @param queue  queue to push to
+     */
+    private void assert_full(String queue) {
+        try {
+            testee.push(queue, "overflow");
+            fail("Queue is full");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+    
     private static String[] mkStrings(int n, String prefix) {
         return IntStream.range(0, n)
                 .mapToObj(i -> prefix + i)
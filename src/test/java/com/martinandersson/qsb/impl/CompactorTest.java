@@ -0,0 +1,220 @@
+package com.martinandersson.qsb.impl;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.serialized.SynchronizedQS;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@code Compactor}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@Test
+public class CompactorTest
+{
+    private static final int SEGMENT = 512;
+    
+    private static final Duration TIMEOUT = Duration.ofMinutes(1),
+                                  NEVER   = Duration.ofHours(1);
+    
+    private Path dir;
+    
+    private WriteAheadLog log;
+    
+    private QueueService qs;
+    
+    @BeforeMethod
+    public void before_method() throws IOException {
+        dir = Files.createTempDirectory("compactor");
+        log = new WriteAheadLog(dir, SEGMENT);
+        qs = new SynchronizedQS(TIMEOUT, c -> c.journal(log));
+    }
+    
+    @AfterMethod
+    public void after_method() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+    
+    public void test_rewrite_keeps_live_messages() throws IOException {
+        // Two live messages in the first segment, surrounded by dead ones
+        qs.push("q", "live 1");
+        qs.push("q", "live 2");
+        qs.poll("q");
+        qs.poll("q");
+        churn(40);
+        
+        final long before = size();
+        
+        try (Compactor c = new Compactor(log, NEVER, Long.MAX_VALUE)) {
+            assertTrue(c.compact() > 0);
+            assertEquals(c.reclaimed(), before - size());
+            assertEquals(c.rewritten(), 1);
+            assertTrue(c.deleted() > 0);
+            
+            // Nothing more to reclaim
+            assertEquals(c.compact(), 0);
+        }
+        
+        Recovery r = Recovery.load(dir, SEGMENT);
+        assertEquals(r.messages(), 2);
+        
+        QueueService restored = new SynchronizedQS(TIMEOUT, c -> c.restore(r));
+        
+        Message m = restored.poll("q");
+        assertEquals(m.get(), "live 1");
+        assertEquals(m.deliveries(), 2);
+        assertEquals(restored.poll("q").get(), "live 2");
+        assertNull(restored.poll("q"));
+    }
+    
+    /**
+     * Live messages completed out of order, across the growth of the id set
+     * of the compactor.
+     */
+    public void test_many_live_messages() {
+        final int n = 200;
+        final Message[] messages = new Message[n];
+        
+        for (int i = 0; i < n; ++i) {
+            qs.push("q", "m" + i);
+            messages[i] = qs.poll("q");
+        }
+        
+        try (Compactor c = new Compactor(log, NEVER, Long.MAX_VALUE)) {
+            c.compact();
+            
+            // Complete every other message, newest first
+            for (int i = n - 1; i >= 0; i -= 2) {
+                qs.complete(messages[i]);
+            }
+            
+            churn(40);
+            c.compact();
+        }
+        
+        QueueService restored = new SynchronizedQS(TIMEOUT,
+                c -> c.restore(Recovery.load(dir, SEGMENT)));
+        
+        for (int i = 0; i < n; i += 2) {
+            assertEquals(restored.poll("q").get(), "m" + i);
+        }
+        
+        assertNull(restored.poll("q"));
+    }
+    
+    public void test_completed_later_is_dropped_later() {
+        qs.push("q", "late");
+        Message late = qs.poll("q");
+        churn(40);
+        
+        try (Compactor c = new Compactor(log, NEVER, Long.MAX_VALUE)) {
+            c.compact();
+            assertEquals(c.rewritten(), 1);
+            
+            qs.complete(late);
+            churn(20);
+            c.compact();
+            
+            // The rewritten segment is now empty
+            assertEquals(c.rewritten(), 1);
+        }
+        
+        assertEquals(Recovery.load(dir, SEGMENT).messages(), 0);
+    }
+    
+    public void test_delete_before_snapshot() throws IOException {
+        qs.push("q", "live");
+        churn(40);
+        
+        try (Checkpointer cp = new Checkpointer(log, NEVER);
+             Compactor c = new Compactor(log, NEVER, Long.MAX_VALUE))
+        {
+            assertTrue(c.compact() > 0);
+            assertEquals(c.rewritten(), 0);
+            assertTrue(c.deleted() > 0);
+        }
+        
+        qs.push("q", "after");
+        
+        Recovery r = Recovery.load(dir, SEGMENT);
+        assertEquals(r.messages(), 2);
+    }
+    
+    /**
+     * A checkpoint after the segments were deleted copy the content from the
+     * previous snapshot.
+     */
+    public void test_checkpoint_after_delete() {
+        qs.push("q", "live");
+        churn(40);
+        
+        try (Checkpointer cp = new Checkpointer(log, NEVER);
+             Compactor c = new Compactor(log, NEVER, Long.MAX_VALUE))
+        {
+            c.compact();
+            assertTrue(c.deleted() > 0);
+            
+            qs.push("q", "after");
+            cp.checkpoint();
+        }
+        
+        QueueService restored = new SynchronizedQS(TIMEOUT,
+                c -> c.restore(Recovery.load(dir, SEGMENT)));
+        
+        assertEquals(restored.poll("q").get(), "live");
+        assertEquals(restored.poll("q").get(), "after");
+        assertNull(restored.poll("q"));
+    }
+    
+    public void test_throttled() {
+        churn(40);
+        final long segments = log.position() / SEGMENT;
+        
+        // ..the first segment is free, the rest at one segment per 50 ms
+        try (Compactor c = new Compactor(log, NEVER, SEGMENT * 20)) {
+            final long start = System.nanoTime();
+            c.compact();
+            final long millis = (System.nanoTime() - start) / 1_000_000;
+            
+            assertEquals(c.deleted(), segments);
+            assertTrue(millis >= (segments - 1) * 40, "Took " + millis + " ms.");
+        }
+    }
+    
+    /**
+     * Push and complete messages until the log has rolled over a few segments.
+     */
+    private void churn(int messages) {
+        for (int i = 0; i < messages; ++i) {
+            qs.push("q", "dead");
+            Message m = qs.poll("q");
+            
+            // Skip over the live messages
+            while (!m.get().equals("dead")) {
+                m = qs.poll("q");
+            }
+            
+            qs.complete(m);
+        }
+    }
+    
+    private long size() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,169 @@
+package com.martinandersson.qsb.impl;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.serialized.SynchronizedQS;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@code Recovery} and {@code Checkpointer}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@Test
+public class RecoveryTest
+{
+    private static final int SEGMENT = 512;
+    
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    
+    private Path dir;
+    
+    @BeforeMethod
+    public void before_method() throws IOException {
+        dir = Files.createTempDirectory("recovery");
+    }
+    
+    @AfterMethod
+    public void after_method() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+    
+    public void test_replay_log() {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT);
+        QueueService first = new SynchronizedQS(TIMEOUT, c -> c.journal(log));
+        
+        first.push("q", "a", "b", "c");
+        Message a = first.poll("q");
+        first.complete(a);
+        
+        Recovery r = Recovery.load(dir, SEGMENT);
+        assertEquals(r.snapshot(), 0);
+        assertEquals(r.replayed(), 5);
+        assertEquals(r.messages(), 2);
+        
+        QueueService second = new SynchronizedQS(TIMEOUT, c -> c.restore(r));
+        
+        Message b = second.poll("q");
+        assertEquals(b.get(), "b");
+        assertEquals(b.id(), a.id() + 1);
+        assertEquals(second.poll("q").get(), "c");
+        assertNull(second.poll("q"));
+        
+        second.push("q", "d");
+        assertEquals(second.poll("q").id(), a.id() + 3);
+    }
+    
+    public void test_deliveries_survive() {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT);
+        QueueService first = new SynchronizedQS(TIMEOUT, c -> c.journal(log));
+        
+        first.push("q", "a");
+        assertEquals(first.poll("q").deliveries(), 1);
+        
+        Recovery r = Recovery.load(dir, SEGMENT);
+        QueueService second = new SynchronizedQS(TIMEOUT, c -> c.restore(r));
+        
+        // Lease is not recovered
+        assertEquals(second.poll("q").deliveries(), 2);
+    }
+    
+    public void test_replay_tail_after_snapshot() {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT);
+        QueueService first = new SynchronizedQS(TIMEOUT, c -> c.journal(log));
+        
+        for (int i = 0; i < 20; ++i) {
+            first.push("q", "m" + i);
+        }
+        
+        final long pos;
+        
+        try (Checkpointer cp = new Checkpointer(log, Duration.ofHours(1))) {
+            pos = cp.checkpoint();
+        }
+        
+        assertTrue(pos > 0);
+        
+        first.complete(first.poll("q"));
+        first.push("q", "m20");
+        
+        Recovery r = Recovery.load(dir, SEGMENT);
+        assertEquals(r.snapshot(), pos);
+        assertEquals(r.replayed(), 3);
+        assertEquals(r.messages(), 20);
+        
+        QueueService second = new SynchronizedQS(TIMEOUT, c -> c.restore(r));
+        
+        for (int i = 1; i <= 20; ++i) {
+            Message m = second.poll("q");
+            assertEquals(m.get(), "m" + i);
+            second.complete(m);
+        }
+        
+        assertNull(second.poll("q"));
+    }
+    
+    public void test_checkpoint_after_restart() {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT);
+        QueueService first = new SynchronizedQS(TIMEOUT, c -> c.journal(log));
+        first.push("q", "a", "b");
+        
+        // Restart, the next log start in a new segment
+        Recovery r = Recovery.load(dir, SEGMENT);
+        WriteAheadLog next = new WriteAheadLog(dir, SEGMENT);
+        assertTrue(next.start() > 0);
+        
+        QueueService second = new SynchronizedQS(TIMEOUT, c -> c.restore(r).journal(next));
+        second.complete(second.poll("q"));
+        second.push("q", "c");
+        
+        try (Checkpointer cp = new Checkpointer(next, Duration.ofHours(1))) {
+            cp.checkpoint();
+        }
+        
+        Recovery last = Recovery.load(dir, SEGMENT);
+        assertEquals(last.replayed(), 0);
+        assertEquals(last.messages(), 2);
+    }
+    
+    public void test_delayed_survive() {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT);
+        QueueService first = new SynchronizedQS(TIMEOUT, c -> c.journal(log));
+        
+        first.push("q", "late", Duration.ofHours(1));
+        first.push("q", "soon", Duration.ofMillis(1));
+        first.push("q", "now");
+        
+        Recovery r = Recovery.load(dir, SEGMENT);
+        assertEquals(r.messages(), 3);
+        
+        try (Checkpointer cp = new Checkpointer(log, Duration.ofHours(1))) {
+            cp.checkpoint();
+        }
+        
+        Recovery snapshot = Recovery.load(dir, SEGMENT);
+        assertEquals(snapshot.replayed(), 0);
+        
+        for (Recovery each : new Recovery[]{r, snapshot}) {
+            QueueService second = new SynchronizedQS(TIMEOUT, c -> c.restore(each));
+            
+            // ..the delay of "soon" has passed, it is restored in push order
+            assertEquals(second.poll("q").get(), "soon");
+            assertEquals(second.poll("q").get(), "now");
+            assertNull(second.poll("q"));
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,323 @@
+package com.martinandersson.qsb.impl;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.concurrent.atomic.ConcurrentQSWithAtomicMessage;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@code Replicator} and {@code Standby}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@Test
+public class ReplicationTest
+{
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    
+    public void test_failover() {
+        Standby standby = new Standby();
+        
+        try (InMemoryTransport transport = new InMemoryTransport(standby);
+             Replicator replicator = new Replicator(transport))
+        {
+            QueueService primary = new ConcurrentQSWithAtomicMessage(TIMEOUT,
+                    c -> c.journal(replicator));
+            
+            primary.push("q", "a", "b", "c");
+            Message a = primary.poll("q");
+            primary.complete(a);
+            assertEquals(primary.poll("q").get(), "b");
+            
+            await(() -> replicator.lag() == 0);
+            assertEquals(replicator.events(), 6);
+            assertEquals(standby.applied(), 6);
+            assertEquals(standby.messages(), 2);
+        }
+        
+        QueueService promoted = new ConcurrentQSWithAtomicMessage(TIMEOUT,
+                c -> c.restore(standby.promote()));
+        
+        // Lease is not replicated
+        Message b = promoted.poll("q");
+        assertEquals(b.get(), "b");
+        assertEquals(b.deliveries(), 2);
+        assertEquals(promoted.poll("q").get(), "c");
+        assertNull(promoted.poll("q"));
+        
+        try {
+            standby.apply(batch(6));
+            fail("Expected promoted.");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * Events reported while a batch is in flight are shipped in one batch.
+     */
+    public void test_batch_and_lag() {
+        Standby standby = new Standby();
+        HeldTransport transport = new HeldTransport(standby);
+        Replicator replicator = new Replicator(transport, 64 * 1024, 1, 1_000);
+        
+        try {
+            QueueService primary = new ConcurrentQSWithAtomicMessage(TIMEOUT,
+                    c -> c.journal(replicator));
+            
+            primary.push("q", "m0");
+            await(() -> transport.held() == 1);
+            
+            for (int i = 1; i < 100; ++i) {
+                primary.push("q", "m" + i);
+            }
+            
+            assertEquals(replicator.lag(), 100);
+            assertTrue(replicator.lagTime().compareTo(Duration.ZERO) > 0);
+            
+            transport.release();
+            await(() -> transport.held() == 1);
+            transport.release();
+            
+            await(() -> replicator.lag() == 0);
+            assertEquals(replicator.batches(), 2);
+            assertEquals(replicator.lagTime(), Duration.ZERO);
+            assertEquals(standby.messages(), 100);
+        }
+        finally {
+            // ..release first, or close wait for what is held
+            transport.close();
+            replicator.close();
+        }
+    }
+    
+    /**
+     * A push wait while the lag exceeds the max lag.
+     */
+    public void test_max_lag() throws InterruptedException {
+        Standby standby = new Standby();
+        HeldTransport transport = new HeldTransport(standby);
+        Replicator replicator = new Replicator(transport, 64 * 1024, 1, 2);
+        
+        try {
+            QueueService primary = new ConcurrentQSWithAtomicMessage(TIMEOUT,
+                    c -> c.journal(replicator));
+            
+            primary.push("q", "m0", "m1");
+            await(() -> transport.held() == 1);
+            
+            Thread pusher = new Thread(() -> primary.push("q", "m2"));
+            pusher.start();
+            
+            pusher.join(100);
+            assertTrue(pusher.isAlive());
+            
+            transport.release();
+            pusher.join(TimeUnit.MINUTES.toMillis(1));
+            assertFalse(pusher.isAlive());
+            
+            await(() -> {
+                transport.release();
+                return replicator.lag() == 0;
+            });
+        }
+        finally {
+            transport.close();
+            replicator.close();
+        }
+        
+        assertEquals(standby.messages(), 3);
+    }
+    
+    public void test_transport_failure() {
+        Standby standby = new Standby();
+        
+        ReplicationTransport broken = batch -> {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            f.completeExceptionally(new IllegalStateException("Broken"));
+            return f;
+        };
+        
+        try (Replicator replicator = new Replicator(broken, 64 * 1024, 1, 1)) {
+            QueueService primary = new ConcurrentQSWithAtomicMessage(TIMEOUT,
+                    c -> c.journal(replicator));
+            
+            primary.push("q", "m0");
+            await(() -> replicator.failure() != null);
+            
+            // Not blocked by the lag
+            primary.push("q", "m1", "m2");
+            assertEquals(replicator.lag(), 3);
+            assertEquals(primary.poll("q").get(), "m0");
+        }
+    }
+    
+    /**
+     * An {@code Error} thrown by the transport stops replication as well.
+     */
+    public void test_transport_error() {
+        ReplicationTransport broken = batch -> {
+            throw new AssertionError("Broken");
+        };
+        
+        try (Replicator replicator = new Replicator(broken, 64 * 1024, 1, 1)) {
+            QueueService primary = new ConcurrentQSWithAtomicMessage(TIMEOUT,
+                    c -> c.journal(replicator));
+            
+            primary.push("q", "m0");
+            await(() -> replicator.failure() != null);
+            assertTrue(replicator.failure() instanceof AssertionError);
+            
+            // Not blocked by the lag
+            primary.push("q", "m1", "m2");
+            assertEquals(replicator.lag(), 3);
+        }
+    }
+    
+    /**
+     * Closing does not wait for ever on a transport that never apply a batch.
+     */
+    public void test_close_timeout() {
+        ReplicationTransport stuck = batch -> new CompletableFuture<>();
+        
+        Replicator replicator = new Replicator(stuck, 64 * 1024, 1, 1_000);
+        QueueService primary = new ConcurrentQSWithAtomicMessage(TIMEOUT,
+                c -> c.journal(replicator));
+        
+        primary.push("q", "m0");
+        await(() -> replicator.batches() == 1);
+        
+        // ..the window is full, so this event is not shipped
+        primary.push("q", "m1");
+        
+        replicator.close(Duration.ofMillis(100));
+        assertTrue(replicator.failure() instanceof TimeoutException);
+        assertEquals(replicator.batches(), 1);
+    }
+    
+    public void test_missing_events() {
+        Standby standby = new Standby();
+        standby.apply(batch(0));
+        
+        // ..duplicates are skipped
+        standby.apply(batch(0));
+        assertEquals(standby.applied(), 1);
+        
+        try {
+            standby.apply(batch(2));
+            fail("Expected missing events.");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        standby.apply(batch(1));
+        assertEquals(standby.applied(), 2);
+        assertEquals(standby.messages(), 0);
+    }
+    
+    /**
+     * Returns a batch of one event; a push of message 1 if {@code first} is 0,
+     * otherwise a completion of message 1.
+     */
+    private static ByteBuffer batch(long first) {
+        final byte[] queue = "q".getBytes();
+        final int length = WriteAheadLog.HEADER + queue.length + (first == 0 ? 1 + 2 + 4 + 1 : 0);
+        
+        final ByteBuffer b = ByteBuffer.allocate(Replicator.BATCH_HEADER + length)
+                .putLong(first).putInt(1)
+                .putInt(length)
+                .put(first == 0 ? WriteAheadLog.PUSH : WriteAheadLog.COMPLETE)
+                .putShort((short) queue.length).put(queue)
+                .putLong(1);
+        
+        if (first == 0) {
+            b.put((byte) 0).putShort((short) -1).putInt(1).put((byte) 'x');
+        }
+        
+        b.flip();
+        return b;
+    }
+    
+    private static void await(BooleanSupplier condition) {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timed out.");
+            }
+            
+            Thread.yield();
+        }
+    }
+    
+    /**
+     * Holds each batch until released. Once closed, batches are applied when
+     * sent.
+     */
+    private static final class HeldTransport implements ReplicationTransport, AutoCloseable {
+        final Standby standby;
+        
+        final List<CompletableFuture<Void>> held = new ArrayList<>();
+        
+        final List<ByteBuffer> batches = new ArrayList<>();
+        
+        boolean closed;
+        
+        HeldTransport(Standby standby) {
+            this.standby = standby;
+        }
+        
+        synchronized int held() {
+            return held.size();
+        }
+        
+        @Override
+        public synchronized CompletableFuture<?> send(ByteBuffer batch) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            held.add(f);
+            batches.add(batch);
+            
+            if (closed) {
+                release();
+            }
+            
+            return f;
+        }
+        
+        /**
+         * Release what is held, and stop holding.
+         */
+        @Override
+        public synchronized void close() {
+            closed = true;
+            release();
+        }
+        
+        /**
+         * Apply and acknowledge the held batches.
+         */
+        synchronized void release() {
+            batches.forEach(standby::apply);
+            batches.clear();
+            
+            List<CompletableFuture<Void>> done = new ArrayList<>(held);
+            held.clear();
+            done.forEach(f -> f.complete(null));
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,249 @@
+package com.martinandersson.qsb.impl;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.serialized.SynchronizedQS;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@code WriteAheadLog}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@Test
+public class WriteAheadLogTest
+{
+    private static final int SEGMENT = 256;
+    
+    private Path dir;
+    
+    @BeforeMethod
+    public void before_method() throws IOException {
+        dir = Files.createTempDirectory("wal");
+    }
+    
+    @AfterMethod
+    public void after_method() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+    
+    public void test_records_roll_over_segments() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT);
+        Message msg = new PojoMessage("queue", "content");
+        
+        for (int i = 0; i < 20; ++i) {
+            log.pushed(msg, null);
+            log.completed("queue", i);
+        }
+        
+        assertTrue(log.position() > SEGMENT * 2);
+        
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(files.count(), log.position() / SEGMENT + 1);
+        }
+    }
+    
+    public void test_existing_log_is_not_overwritten() throws IOException {
+        WriteAheadLog first = new WriteAheadLog(dir, SEGMENT);
+        first.completed("q", 1);
+        
+        WriteAheadLog second = new WriteAheadLog(dir, SEGMENT);
+        assertEquals(second.position(), SEGMENT);
+    }
+    
+    public void test_per_message_sync() {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT,
+                SyncPolicy.PER_MESSAGE, Duration.ZERO, 0);
+        
+        // Nothing written by this thread, nothing to force
+        log.sync();
+        assertEquals(log.forces(), 0);
+        
+        log.completed("q", 1);
+        log.sync();
+        log.completed("q", 2);
+        log.sync();
+        
+        assertEquals(log.forces(), 2);
+    }
+    
+    /**
+     * Closing force what no sync has, but nothing if all is forced.
+     */
+    public void test_close_forces() {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT,
+                SyncPolicy.PER_MESSAGE, Duration.ZERO, 0);
+        
+        log.completed("q", 1);
+        log.sync();
+        log.close();
+        assertEquals(log.forces(), 1);
+        
+        log = new WriteAheadLog(dir, SEGMENT,
+                SyncPolicy.PER_MESSAGE, Duration.ZERO, 0);
+        
+        log.completed("q", 1);
+        log.close();
+        assertEquals(log.forces(), 1);
+    }
+    
+    /**
+     * A force walk the lengths of the records claimed by all threads, across
+     * segments and padding.
+     */
+    public void test_sync_with_concurrent_writers() throws InterruptedException {
+        final int threads = 4, records = 500;
+        
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT,
+                SyncPolicy.PER_MESSAGE, Duration.ZERO, 0);
+        
+        CountDownLatch finished = new CountDownLatch(threads);
+        
+        for (int t = 0; t < threads; ++t) {
+            final String queue = new String(new char[t * 7 + 1]).replace('\0', 'q');
+            final boolean syncs = t == 0;
+            
+            new Thread(() -> {
+                for (int i = 0; i < records; ++i) {
+                    log.completed(queue, i);
+                    
+                    if (syncs) {
+                        log.sync();
+                    }
+                }
+                
+                finished.countDown();
+            }).start();
+        }
+        
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(log.forces(), records);
+    }
+    
+    /**
+     * A record whose segment can not be mapped is not claimed, so it does not
+     * hold up a later force.
+     */
+    public void test_unmappable_segment() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT,
+                SyncPolicy.PER_MESSAGE, Duration.ZERO, 0);
+        
+        Path away = dir.resolveSibling(dir.getFileName() + ".away");
+        Files.move(dir, away);
+        
+        try {
+            for (int i = 0; ; ++i) {
+                log.completed("q", i);
+            }
+        }
+        catch (UncheckedIOException e) {
+            // Expected, the next segment can not be created
+        }
+        finally {
+            Files.move(away, dir);
+        }
+        
+        final long before = log.position();
+        log.completed("q", -1);
+        log.sync();
+        
+        assertTrue(log.position() > before);
+        assertEquals(log.forces(), 1);
+    }
+    
+    public void test_group_commit() throws InterruptedException {
+        final int threads = 8, syncs = 50;
+        
+        try (WriteAheadLog log = new WriteAheadLog(dir, 1 << 16,
+                SyncPolicy.GROUPED, Duration.ofMillis(2), Integer.MAX_VALUE)) {
+            CountDownLatch finished = new CountDownLatch(threads);
+            
+            for (int t = 0; t < threads; ++t) {
+                new Thread(() -> {
+                    for (int i = 0; i < syncs; ++i) {
+                        log.completed("q", i);
+                        log.sync();
+                    }
+                    
+                    finished.countDown();
+                }).start();
+            }
+            
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            assertTrue(log.forces() > 0);
+            assertTrue(log.forces() < threads * syncs, "forces: " + log.forces());
+        }
+    }
+    
+    public void test_periodic_force() throws InterruptedException {
+        try (WriteAheadLog log = new WriteAheadLog(dir, SEGMENT,
+                SyncPolicy.PERIODIC, Duration.ofMillis(1), 0)) {
+            log.completed("q", 1);
+            
+            // Does not wait
+            log.sync();
+            
+            for (int i = 0; i < 1000 && log.forces() == 0; ++i) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            
+            assertEquals(log.forces(), 1);
+        }
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_record_too_large() {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT);
+        log.pushed(new PojoMessage("q", new String(new char[SEGMENT])), null);
+    }
+    
+    /**
+     * A message too large for the log is rejected before it takes room in a
+     * bounded queue.
+     */
+    public void test_record_too_large_not_admitted() {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT);
+        QueueService qs = new SynchronizedQS(Duration.ofMinutes(1), c -> c
+                .journal(log)
+                .capacity(1, Overflow.REJECT, Duration.ZERO));
+        
+        for (int i = 0; i < 3; ++i) {
+            try {
+                qs.push("q", new String(new char[SEGMENT]));
+                fail("Expected too large.");
+            }
+            catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        
+        qs.push("q", "m");
+        assertEquals(qs.poll("q").get(), "m");
+    }
+    
+    /**
+     * A queue name longer than its 16-bit length field is rejected, not
+     * truncated.
+     */
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_queue_name_too_long() {
+        WriteAheadLog log = new WriteAheadLog(dir, 1 << 20);
+        log.check(new PojoMessage(new String(new char[Short.MAX_VALUE + 1]).replace('\0', 'q'), "m"), null);
+    }
+}
\ No newline at end of file
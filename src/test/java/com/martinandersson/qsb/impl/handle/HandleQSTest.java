@@ -0,0 +1,161 @@
+package com.martinandersson.qsb.impl.handle;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.PojoMessage;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@code HandleQS}.<p>
+ * 
+ * {@code HandleQS} support the core API only, so these tests do not extend
+ * {@code AbstractQSTest}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@Test
+public class HandleQSTest
+{
+    private QueueService testee;
+    
+    @BeforeMethod
+    public void before_method() {
+        testee = new HandleQS(Duration.ofSeconds(10));
+    }
+    
+    public void test_push_poll_complete() {
+        testee.push("q", "m1", "m2");
+        
+        Message m1 = testee.poll("q");
+        assertEquals(m1.queue(), "q");
+        assertEquals(m1.get(), "m1");
+        assertEquals(m1.deliveries(), 1);
+        
+        Message m2 = testee.poll("q");
+        assertEquals(m2.get(), "m2");
+        assertTrue(m2.id() > m1.id());
+        
+        assertNull(testee.poll("q"));
+        assertNull(testee.poll("unknown"));
+        
+        testee.complete(m1);
+        testee.complete(m2);
+        assertNull(testee.poll("q"));
+    }
+    
+    public void test_timeout() {
+        testee = new HandleQS(Duration.ZERO);
+        
+        testee.push("q", "m");
+        
+        Message first = testee.poll("q"),
+                again = testee.poll("q");
+        
+        assertEquals(again, first);
+        assertEquals(again.deliveries(), 2);
+        
+        testee.complete(again);
+        assertNull(testee.poll("q"));
+    }
+    
+    public void test_extend() {
+        testee.push("q", "m");
+        
+        Message m = testee.poll("q", Duration.ofSeconds(10));
+        assertTrue(testee.extend(m, Duration.ZERO));
+        
+        // Lease expired, the message is redelivered and the old lease is lost
+        Message again = testee.poll("q");
+        assertEquals(again, m);
+        assertFalse(testee.extend(m, Duration.ofSeconds(10)));
+        assertTrue(testee.extend(again, Duration.ofSeconds(10)));
+    }
+    
+    public void test_complete_by_id() {
+        testee.push("q", "m1", "m2", "m3");
+        
+        Message m1 = testee.poll("q"),
+                m2 = testee.poll("q");
+        
+        // m3 has not been delivered and is not affected
+        testee.complete("q", m1.id(), m1.id() + 3);
+        
+        assertEquals(testee.poll("q").get(), "m3");
+        assertNull(testee.poll("q"));
+        
+        testee.complete("q", m2.id());
+        testee.complete("unknown", 0);
+    }
+    
+    public void test_many_segments() {
+        final int n = HandleQueue.SIZE * 5 + 3;
+        
+        for (int i = 0; i < n; ++i) {
+            testee.push("q", Integer.toString(i));
+        }
+        
+        List<Message> polled = new ArrayList<>();
+        
+        for (Message m; (m = testee.poll("q")) != null;) {
+            polled.add(m);
+        }
+        
+        assertEquals(polled.size(), n);
+        
+        for (int i = 0; i < n; ++i) {
+            assertEquals(polled.get(i).get(), Integer.toString(i));
+        }
+        
+        // Complete out of order, interleaved with more pushes
+        for (int i = n - 1; i >= 0; --i) {
+            testee.complete(polled.get(i));
+            
+            if (i % HandleQueue.SIZE == 0) {
+                testee.push("q", "tail" + i);
+            }
+        }
+        
+        assertEquals(testee.poll("q").get(), "tail" + (HandleQueue.SIZE * 5));
+    }
+    
+    public void test_register() {
+        final int id = testee.register("q");
+        assertEquals(testee.register("q"), id);
+        
+        testee.push(id, "m1");
+        testee.push("q", "m2");
+        
+        assertEquals(testee.poll(id).get(), "m1");
+        assertEquals(testee.poll("q").get(), "m2");
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_unknown_id() {
+        testee.poll(0);
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_foreign_message() {
+        testee.complete(new PojoMessage("q", "m"));
+    }
+    
+    public void test_bytes() {
+        byte[] bytes = "h\u00e9llo".getBytes(UTF_8);
+        
+        testee.push("q", bytes);
+        
+        Message m = testee.poll("q");
+        assertEquals(m.get(), "h\u00e9llo");
+        assertEquals(m.buffer(), ByteBuffer.wrap(bytes));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,62 @@
+package com.martinandersson.qsb.impl.priority;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.api.QueueService;
+import com.martinandersson.qsb.impl.AbstractQSTest;
+import com.martinandersson.qsb.impl.Configuration;
+import java.time.Duration;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@code PriorityQS}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public class PriorityQSTest extends AbstractQSTest
+{
+    @Override
+    protected final Function<Duration, QueueService> getFactory() {
+        return PriorityQS::new;
+    }
+    
+    @Override
+    protected final BiFunction<Duration, Consumer<Configuration<?>>, QueueService> getConfiguredFactory() {
+        return PriorityQS::new;
+    }
+    
+    @Test
+    public void test_priority() {
+        QueueService testee = getFactory().apply(Duration.ofDays(1));
+        
+        testee.push("q", "low");
+        testee.push("q", "high-1", 7);
+        testee.push("q", "mid", 3);
+        testee.push("q", "high-2", 7);
+        
+        assertEquals(testee.poll("q").get(), "high-1");
+        assertEquals(testee.poll("q").get(), "high-2");
+        assertEquals(testee.poll("q").get(), "mid");
+        assertEquals(testee.poll("q").get(), "low");
+        assertNull(testee.poll("q"));
+    }
+    
+    @Test
+    public void test_range_ack_below_head() {
+        QueueService testee = getFactory().apply(Duration.ofMillis(10));
+        
+        testee.push("q", "low");
+        Message low = testee.poll("q");
+        
+        // Head of the queue now has a higher id than the acknowledged message
+        testee.push("q", "high", 7);
+        testee.complete("q", low.id(), low.id() + 1);
+        
+        assertEquals(testee.poll("q").get(), "high");
+        assertNull(testee.poll("q"));
+    }
+}
\ No newline at end of file
@@ -2,7 +2,10 @@ package com.martinandersson.qsb.impl.readwritelock;
 
 import com.martinandersson.qsb.api.QueueService;
 import com.martinandersson.qsb.impl.AbstractQSTest;
+import com.martinandersson.qsb.impl.Configuration;
 import java.time.Duration;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
@@ -16,4 +19,9 @@ public class ReadWriteLockedQSTest extends AbstractQSTest
     protected final Function<Duration, QueueService> getFactory() {
         return ReadWriteLockedQS::new;
     }
+    
+    @Override
+    protected final BiFunction<Duration, Consumer<Configuration<?>>, QueueService> getConfiguredFactory() {
+        return ReadWriteLockedQS::new;
+    }
 }
\ No newline at end of file
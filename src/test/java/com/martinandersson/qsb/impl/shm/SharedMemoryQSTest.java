@@ -0,0 +1,325 @@
+package com.martinandersson.qsb.impl.shm;
+
+import com.martinandersson.qsb.api.Message;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@code SharedMemoryQS}.<p>
+ * 
+ * {@code SharedMemoryQS} support the core API only, so these tests do not
+ * extend {@code AbstractQSTest}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@Test
+public class SharedMemoryQSTest
+{
+    private Path file;
+    
+    private SharedMemoryQS testee;
+    
+    @BeforeMethod
+    public void before_method() throws IOException {
+        file = Files.createTempFile("qsb-", ".shm");
+        testee = create(Duration.ofSeconds(10));
+    }
+    
+    @AfterMethod
+    public void after_method() throws IOException {
+        Files.deleteIfExists(file);
+    }
+    
+    public void test_push_poll_complete() {
+        testee.push("q", "m1", "m2");
+        
+        Message m1 = testee.poll("q");
+        assertEquals(m1.queue(), "q");
+        assertEquals(m1.get(), "m1");
+        assertEquals(m1.deliveries(), 1);
+        
+        Message m2 = testee.poll("q");
+        assertEquals(m2.get(), "m2");
+        assertTrue(m2.id() > m1.id());
+        
+        assertNull(testee.poll("q"));
+        assertNull(testee.poll("unknown"));
+        
+        testee.complete(m1);
+        testee.complete(m2);
+        assertNull(testee.poll("q"));
+    }
+    
+    public void test_timeout() {
+        testee = create(Duration.ZERO);
+        
+        testee.push("q", "m");
+        
+        Message first = testee.poll("q"),
+                again = testee.poll("q");
+        
+        assertEquals(again, first);
+        assertEquals(again.deliveries(), 2);
+        
+        testee.complete(again);
+        assertNull(testee.poll("q"));
+    }
+    
+    public void test_extend_nack() {
+        testee.push("q", "m");
+        
+        Message m = testee.poll("q");
+        assertTrue(testee.extend(m, Duration.ofSeconds(20)));
+        assertNull(testee.poll("q"));
+        
+        testee.nack(m);
+        Message again = testee.poll("q");
+        assertEquals(again, m);
+        assertEquals(again.deliveries(), 2);
+        
+        testee.complete(again);
+        assertFalse(testee.extend(again, Duration.ofSeconds(10)));
+    }
+    
+    public void test_complete_by_id() {
+        testee.push("q", "m");
+        
+        long id = testee.poll("q").id();
+        testee.complete("q", id);
+        testee.complete("unknown", id);
+        
+        assertNull(testee.poll("q"));
+    }
+    
+    public void test_complete_not_delivered() {
+        testee.push("q", "m");
+        testee.complete("q", 0);
+        
+        Message m = testee.poll("q");
+        assertEquals(m.get(), "m");
+        assertEquals(m.id(), 0);
+        
+        testee.complete(m);
+        assertNull(testee.poll("q"));
+    }
+    
+    public void test_register() {
+        int id = testee.register("q");
+        assertEquals(testee.register("q"), id);
+        
+        testee.push(id, "m");
+        assertEquals(testee.poll(id).get(), "m");
+    }
+    
+    public void test_bytes() {
+        testee.push("q", new byte[]{ 1, 2, 3 });
+        
+        Message m = testee.poll("q");
+        assertEquals(m.buffer().remaining(), 3);
+        assertEquals(m.buffer().get(2), 3);
+    }
+    
+    public void test_full() {
+        for (int i = 0; i < 8; ++i) {
+            testee.push("q", "m" + i);
+        }
+        
+        try {
+            testee.push("q", "m8");
+            fail("Expected full.");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        // Completing the head frees a slot, in order
+        Message m0 = testee.poll("q"),
+                m1 = testee.poll("q");
+        
+        testee.complete(m1);
+        
+        try {
+            testee.push("q", "m8");
+            fail("Expected full.");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        testee.complete(m0);
+        testee.push("q", "m8");
+        testee.push("q", "m9");
+        
+        for (int i = 2; i < 10; ++i) {
+            Message m = testee.poll("q");
+            assertEquals(m.get(), "m" + i);
+            testee.complete(m);
+        }
+        
+        assertNull(testee.poll("q"));
+    }
+    
+    public void test_stale_complete() {
+        // Wrap around so that a completed id and a live message share a slot
+        for (int i = 0; i < 8; ++i) {
+            testee.push("q", "m");
+            testee.complete(testee.poll("q"));
+        }
+        
+        testee.push("q", "live");
+        testee.complete("q", 0);
+        
+        Message m = testee.poll("q");
+        assertEquals(m.get(), "live");
+        assertEquals(m.id(), 8);
+    }
+    
+    public void test_too_large() {
+        try {
+            testee.push("q", new byte[64 - 24 + 1]);
+            fail("Expected too large.");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+        
+        testee.push("q", new byte[64 - 24]);
+    }
+    
+    public void test_shared() {
+        SharedMemoryQS other = create(Duration.ofSeconds(10));
+        
+        testee.push("q", "m");
+        
+        Message m = other.poll("q");
+        assertEquals(m.get(), "m");
+        assertNull(testee.poll("q"));
+        
+        other.complete(m);
+        testee.push("q", "n");
+        assertEquals(testee.poll("q").get(), "n");
+    }
+    
+    public void test_incompatible() {
+        try {
+            new SharedMemoryQS(file, 4, 16, 64, Duration.ZERO);
+            fail("Expected incompatible.");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * A queue entry left claimed by a dead process fails the lookup, instead of
+     * spinning for ever.
+     */
+    @Test(timeOut = 60_000)
+    public void test_entry_never_named() throws IOException {
+        final int entry = 64 + ("q".hashCode() & Integer.MAX_VALUE) % 4 * 192;
+        
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer claimed = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder()).putLong(0, 1);
+            ch.write(claimed, entry);
+        }
+        
+        try {
+            testee.push("q", "m");
+            fail("Expected never named.");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * Messages pushed by another process are polled by this one.
+     */
+    public void test_process() throws IOException, InterruptedException {
+        final Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        
+        final Process p = new ProcessBuilder(java.toString(),
+                "-cp", System.getProperty("java.class.path"),
+                Pusher.class.getName(), file.toString(), "100")
+                .redirectErrorStream(true)
+                .redirectOutput(new File(file + ".log"))
+                .start();
+        
+        Set<String> received = new HashSet<>();
+        final long giveUp = System.currentTimeMillis() + 30_000;
+        
+        try {
+            while (received.size() < 100 && System.currentTimeMillis() < giveUp) {
+                Message m = testee.poll("q");
+                
+                if (m == null) {
+                    Thread.yield();
+                }
+                else {
+                    received.add(m.get());
+                    testee.complete(m);
+                }
+            }
+            
+            assertTrue(p.waitFor(30, TimeUnit.SECONDS));
+            assertEquals(p.exitValue(), 0, new String(Files.readAllBytes(Paths.get(file + ".log"))));
+        }
+        finally {
+            p.destroyForcibly();
+            Files.deleteIfExists(Paths.get(file + ".log"));
+        }
+        
+        assertEquals(received.size(), 100);
+    }
+    
+    private SharedMemoryQS create(Duration timeout) {
+        return new SharedMemoryQS(file, 4, 8, 64, timeout);
+    }
+    
+    /**
+     * Push messages to queue "q" of a shared file, from another process.
+     */
+    public static final class Pusher {
+        public static void main(String... args) {
+            final SharedMemoryQS qs = new SharedMemoryQS(
+                    Paths.get(args[0]), 4, 8, 64, Duration.ofSeconds(10));
+            
+            // The ring has 8 slots, so wait for the parent to make room
+            final int n = Integer.parseInt(args[1]);
+            final long giveUp = System.currentTimeMillis() + 20_000;
+            
+            for (int i = 0; i < n; ) {
+                try {
+                    qs.push("q", "m" + i);
+                    ++i;
+                }
+                catch (IllegalStateException e) {
+                    if (System.currentTimeMillis() > giveUp) {
+                        throw e;
+                    }
+                    
+                    Thread.yield();
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,378 @@
+package com.martinandersson.qsb.net;
+
+import com.martinandersson.qsb.api.Message;
+import com.martinandersson.qsb.impl.Overflow;
+import com.martinandersson.qsb.impl.concurrent.atomic.ConcurrentQSWithAtomicMessage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@code QueueServer} and {@code QueueClient} over loopback.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@Test
+public class QueueServerTest
+{
+    private QueueServer server;
+    
+    private QueueClient client;
+    
+    @BeforeMethod
+    public void before_method() {
+        start(new ConcurrentQSWithAtomicMessage(Duration.ofSeconds(10)));
+    }
+    
+    @AfterMethod
+    public void after_method() {
+        client.close();
+        server.close();
+    }
+    
+    public void test_push_poll_complete() {
+        client.push("q", "m1");
+        client.push("q", "m2".getBytes());
+        
+        Message m1 = client.poll("q");
+        assertEquals(m1.queue(), "q");
+        assertEquals(m1.get(), "m1");
+        assertEquals(m1.deliveries(), 1);
+        
+        Message m2 = client.poll("q");
+        assertEquals(m2.get(), "m2");
+        assertTrue(m2.id() > m1.id());
+        
+        assertNull(client.poll("q"));
+        assertNull(client.poll("unknown"));
+        
+        client.complete(m1);
+        client.complete("q", m2.id());
+    }
+    
+    public void test_lease() {
+        client.push("q", "m");
+        
+        Message first = client.poll("q", Duration.ZERO),
+                again = client.poll("q");
+        
+        assertEquals(again, first);
+        assertEquals(again.deliveries(), 2);
+        assertNull(client.poll("q"));
+    }
+    
+    public void test_batch() {
+        client.push("q", "m0", "m1", "m2");
+        client.push("q", Arrays.asList("m3", "m4"));
+        
+        List<Message> polled = client.poll("q", 10);
+        assertEquals(polled.size(), 5);
+        
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(polled.get(i).get(), "m" + i);
+        }
+        
+        client.complete(polled.subList(0, 2));
+        
+        final long base = polled.get(2).id();
+        final BitSet offsets = new BitSet();
+        offsets.set(0);
+        offsets.set((int) (polled.get(4).id() - base));
+        client.complete("q", base, offsets);
+        
+        client.complete("q", polled.get(3).id(), polled.get(3).id() + 1);
+        
+        assertTrue(client.poll("q", 10, Duration.ZERO).isEmpty());
+    }
+    
+    /**
+     * A poll batch is cut short when the response would be too large.
+     */
+    public void test_large_batch() {
+        final byte[] content = new byte[Protocol.MAX_CONTENT];
+        final int n = 2 * Protocol.MAX_FRAME / content.length;
+        
+        for (int i = 0; i < n; ++i) {
+            client.push("q", content);
+        }
+        
+        List<Message> first = client.poll("q", n);
+        assertTrue(first.size() > 0 && first.size() < n, "Polled: " + first.size());
+        
+        int total = first.size();
+        List<Message> more;
+        
+        while (!(more = client.poll("q", n)).isEmpty()) {
+            total += more.size();
+        }
+        
+        assertEquals(total, n);
+    }
+    
+    /**
+     * A message too large for the protocol ends a poll batch, without losing
+     * the messages polled before it.
+     */
+    public void test_large_message_in_batch() {
+        final ConcurrentQSWithAtomicMessage qs = new ConcurrentQSWithAtomicMessage(Duration.ofSeconds(10));
+        server.close();
+        start(qs);
+        
+        client.push("q", "m0", "m1");
+        qs.push("q", new byte[Protocol.MAX_CONTENT + 1]);
+        client.push("q", "m2");
+        
+        List<Message> polled = client.poll("q", 10);
+        assertEquals(polled.size(), 2);
+        assertEquals(polled.get(0).get(), "m0");
+        assertEquals(polled.get(1).get(), "m1");
+        
+        // ..the large message is leased
+        assertEquals(client.poll("q", 10).get(0).get(), "m2");
+    }
+    
+    public void test_errors() {
+        server.close();
+        start(new ConcurrentQSWithAtomicMessage(Duration.ofSeconds(10),
+                c -> c.capacity(1, Overflow.REJECT, Duration.ZERO)));
+        
+        client.push("q", "m");
+        
+        try {
+            client.push("q", "full");
+            fail("Expected full.");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        try {
+            client.push("q", new byte[Protocol.MAX_CONTENT + 1]);
+            fail("Expected too large.");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+        
+        // The connection is still usable
+        assertEquals(client.poll("q").get(), "m");
+    }
+    
+    /**
+     * A push batch to a queue that becomes full report how many were pushed.
+     */
+    public void test_batch_partial() {
+        server.close();
+        start(new ConcurrentQSWithAtomicMessage(Duration.ofSeconds(10),
+                c -> c.capacity(3, Overflow.REJECT, Duration.ZERO)));
+        
+        client.push("q", "m0");
+        assertEquals(client.pushBatch("q", Arrays.asList(
+                "m1".getBytes(), "m2".getBytes(), "m3".getBytes())), 2);
+        
+        try {
+            client.push("q", Arrays.asList("m4", "m5"));
+            fail("Expected full.");
+        }
+        catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("pushed 0 of 2"), e.getMessage());
+        }
+        
+        assertEquals(client.poll("q", 10).size(), 3);
+    }
+    
+    /**
+     * Pipelined pushes to the same queue are executed in fewer engine
+     * batches.
+     */
+    public void test_pipelined() {
+        final int n = 1000;
+        final List<CompletableFuture<Void>> pushed = new ArrayList<>(n);
+        
+        for (int i = 0; i < n; ++i) {
+            pushed.add(client.pushAsync("q", "m" + i));
+        }
+        
+        client.flush();
+        pushed.forEach(CompletableFuture::join);
+        
+        assertEquals(server.pushes(), n);
+        assertTrue(server.batches() < n, "Batches: " + server.batches());
+        
+        final List<CompletableFuture<Message>> polled = new ArrayList<>(n + 1);
+        
+        for (int i = 0; i <= n; ++i) {
+            polled.add(client.pollAsync("q"));
+        }
+        
+        client.flush();
+        
+        final List<CompletableFuture<Void>> completed = new ArrayList<>(n);
+        
+        for (int i = 0; i < n; ++i) {
+            Message m = polled.get(i).join();
+            assertEquals(m.get(), "m" + i);
+            completed.add(client.completeAsync(m));
+        }
+        
+        assertNull(polled.get(n).join());
+        
+        client.flush();
+        completed.forEach(CompletableFuture::join);
+        assertNull(client.poll("q", Duration.ZERO));
+    }
+    
+    /**
+     * Pipelined pushes executed as one batch fail one by one, in order.
+     */
+    public void test_pipelined_partial() {
+        server.close();
+        start(new ConcurrentQSWithAtomicMessage(Duration.ofSeconds(10),
+                c -> c.capacity(2, Overflow.REJECT, Duration.ZERO)));
+        
+        final List<CompletableFuture<Void>> pushed = new ArrayList<>();
+        
+        for (int i = 0; i < 5; ++i) {
+            pushed.add(client.pushAsync("q", "m" + i));
+        }
+        
+        client.flush();
+        
+        for (int i = 0; i < 5; ++i) {
+            try {
+                pushed.get(i).join();
+                assertTrue(i < 2, "Pushed: " + i);
+            }
+            catch (CompletionException e) {
+                assertTrue(i >= 2, "Failed: " + i);
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        
+        assertEquals(client.poll("q").get(), "m0");
+        assertEquals(client.poll("q").get(), "m1");
+        assertNull(client.poll("q"));
+    }
+    
+    /**
+     * A callback may block on the same client.
+     */
+    public void test_blocking_callback() throws Exception {
+        client.push("q", "m");
+        
+        CompletableFuture<String> polled = client.pollAsync("q")
+                .thenApply(m -> {
+                    client.complete(m);
+                    return client.poll("q") == null ? m.get() : "redelivered";
+                });
+        
+        client.flush();
+        assertEquals(polled.get(10, TimeUnit.SECONDS), "m");
+    }
+    
+    /**
+     * Requests in flight fail when the client is closed.
+     */
+    public void test_async_closed() {
+        CompletableFuture<Message> polled = client.pollAsync("q");
+        client.close();
+        
+        try {
+            polled.join();
+            fail("Expected failure.");
+        }
+        catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+        
+        try {
+            client.pushAsync("q", "m");
+            fail("Expected failure.");
+        }
+        catch (UncheckedIOException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * A malformed frame closes the connection, but not the server.
+     */
+    public void test_malformed() throws IOException {
+        try (SocketChannel ch = SocketChannel.open(server.address())) {
+            ByteBuffer b = ByteBuffer.allocate(8);
+            b.putInt(4).putInt(0x7F000000).flip();
+            ch.write(b);
+            
+            b.clear();
+            assertEquals(ch.read(b), -1);
+        }
+        
+        client.push("q", "m");
+        assertEquals(client.poll("q").get(), "m");
+    }
+    
+    public void test_clients() throws Exception {
+        final int clients = 8, messages = 1000;
+        final ExecutorService pool = Executors.newFixedThreadPool(clients);
+        final List<Future<Set<String>>> results = new ArrayList<>();
+        
+        try {
+            for (int c = 0; c < clients; ++c) {
+                final int id = c;
+                
+                results.add(pool.submit(() -> {
+                    final Set<String> received = new HashSet<>();
+                    
+                    try (QueueClient qc = new QueueClient(server.address())) {
+                        for (int i = 0; i < messages; ++i) {
+                            qc.push("q" + id, id + ":" + i);
+                            Message m = qc.poll("q" + id);
+                            received.add(m.get());
+                            qc.complete(m);
+                        }
+                    }
+                    
+                    return received;
+                }));
+            }
+            
+            for (Future<Set<String>> f : results) {
+                assertEquals(f.get(30, TimeUnit.SECONDS).size(), messages);
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    private void start(ConcurrentQSWithAtomicMessage qs) {
+        if (client != null) {
+            client.close();
+        }
+        
+        server = new QueueServer(qs, new InetSocketAddress("127.0.0.1", 0));
+        client = new QueueClient(server.address());
+    }
+}
\ No newline at end of file